@@ -3,6 +3,7 @@ var logger = Packages.org.slf4j.LoggerFactory.getLogger("extraction-extension"),
     refineServlet = Packages.com.google.refine.RefineServlet,
     extraction = Packages.com.brainymachine.extraction,
     services = extraction.services,
+    operations = extraction.operations,
     commands = extraction.commands;
 
 /* Initialize the extension. */
@@ -11,6 +12,10 @@ function init() {
   var cacheFolder = new refineServlet().getCacheDir("extraction-extension");
   var serviceManager = new services.ExtractionServiceManager(new File(cacheFolder + "/services.json"));
   
+  logger.info("Initializing change store");
+  operations.ChangeStore.setSharedStore(operations.ChangeStore.fromSettings(serviceManager.getChangeDirectory()));
+  operations.ResultAccumulator.setSpillDirectory(serviceManager.getSpillDirectory());
+  
   logger.info("Initializing commands");
   register("services", new commands.ServicesCommand(serviceManager));
   register("extractions", new commands.ExtractionCommand(serviceManager));
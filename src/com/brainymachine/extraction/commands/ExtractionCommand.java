@@ -40,6 +40,6 @@ public class ExtractionCommand extends EngineDependentCommand {
         for (String serviceName : serviceNames)
             services.put(serviceName, serviceManager.getService(serviceName));
         
-        return new ExtractionOperation(column, services, getEngineConfig(request));
+        return new ExtractionOperation(column, services, getEngineConfig(request), serviceManager.getCheckpointDirectory());
     }
 }
@@ -27,7 +27,7 @@ public class ServicesCommand extends ElementExtractionCommand {
     /** {@inheritDoc} */
     @Override
     public void get(final HttpServletRequest request, final JSONWriter response) throws Exception {
-        serviceManager.writeTo(response);
+        serviceManager.writeTo(response, true);
     }
     
     /** {@inheritDoc} */
@@ -0,0 +1,190 @@
+package com.brainymachine.extraction.operations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+
+import com.brainymachine.extraction.util.HashUtil;
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Content-addressed store of the results of extraction changes,
+ * so changes can keep a key instead of their results once they are applied.
+ * Results are compressed files named after the SHA-1 hash of their content, so identical results share a file.
+ * Only changes in memory refer to the files, since loaded changes store their results again,
+ * so the files of earlier sessions are deleted when the store is opened.
+ */
+public class ChangeStore {
+    private final static Logger LOGGER = Logger.getLogger(ChangeStore.class);
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static String SUFFIX = ".rows.gz";
+    private final static String TEMPORARY_SUFFIX = ".tmp";
+    private static ChangeStore sharedStore;
+    
+    private final File directory;
+    
+    /**
+     * Creates a new <tt>ChangeStore</tt>, deleting the files of earlier sessions
+     * @param directory The directory of the files (created if it does not exist)
+     * @throws IOException if the directory cannot be created
+     */
+    public ChangeStore(final File directory) throws IOException {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create change directory " + directory);
+        final File[] files = directory.listFiles();
+        for (final File file : files == null ? new File[0] : files) {
+            final String name = file.getName();
+            if ((name.endsWith(SUFFIX) || name.endsWith(TEMPORARY_SUFFIX)) && !file.delete())
+                LOGGER.warn("Could not delete change file " + file);
+        }
+    }
+    
+    /**
+     * Creates a new <tt>ChangeStore</tt> if the <tt>extraction.change.offload</tt> setting is enabled
+     * @param directory The directory of the files
+     * @return The store, or <tt>null</tt> if changes keep their results in memory
+     */
+    public static ChangeStore fromSettings(final File directory) {
+        if (!SettingsUtil.getBoolean("change.offload", false))
+            return null;
+        try {
+            return new ChangeStore(directory);
+        }
+        catch (IOException error) {
+            LOGGER.error("Could not open the change store; keeping change results in memory.", error);
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the store that extraction changes use
+     * @return The store, or <tt>null</tt> if changes keep their results in memory
+     */
+    public static synchronized ChangeStore getSharedStore() {
+        return sharedStore;
+    }
+    
+    /**
+     * Sets the store that extraction changes use
+     * @param store The store, or <tt>null</tt> to keep change results in memory
+     */
+    public static synchronized void setSharedStore(final ChangeStore store) {
+        sharedStore = store;
+    }
+    
+    /**
+     * Creates a writer for new content, which is stored once it is committed
+     * @return The writer
+     * @throws IOException if the file cannot be created
+     */
+    public ContentWriter create() throws IOException {
+        return new ContentWriter(File.createTempFile("change-", TEMPORARY_SUFFIX, directory));
+    }
+    
+    /**
+     * Opens the content with the specified key
+     * @param key The key of the content
+     * @return The reader of the content
+     * @throws IOException if the content does not exist or cannot be read
+     */
+    public Reader open(final String key) throws IOException {
+        return new InputStreamReader(new GZIPInputStream(new BufferedInputStream(new FileInputStream(getFile(key)), 65536)), UTF8);
+    }
+    
+    /**
+     * Gets the file of the content with the specified key
+     * @param key The key of the content
+     * @return The file
+     */
+    private File getFile(final String key) {
+        return new File(directory, key + SUFFIX);
+    }
+    
+    /**
+     * Writer of new content that calculates its key while it is written
+     */
+    public class ContentWriter extends Writer {
+        private final File temporaryFile;
+        private final MessageDigest digest;
+        private final Writer writer;
+        private boolean closed;
+        
+        /**
+         * Creates a new <tt>ContentWriter</tt>
+         * @param temporaryFile The file to write to until the content is committed
+         * @throws IOException if the file cannot be opened
+         */
+        protected ContentWriter(final File temporaryFile) throws IOException {
+            this.temporaryFile = temporaryFile;
+            digest = HashUtil.createSha1();
+            writer = new BufferedWriter(new OutputStreamWriter(new DigestOutputStream(
+                     new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 65536)), digest), UTF8));
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void write(final char[] buffer, final int offset, final int length) throws IOException {
+            writer.write(buffer, offset, length);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void flush() throws IOException {
+            writer.flush();
+        }
+        
+        /**
+         * Stores the written content under the hash of its content,
+         * keeping an existing file with the same content
+         * @return The key of the content
+         * @throws IOException if the content cannot be stored
+         */
+        public String commit() throws IOException {
+            writer.close();
+            closed = true;
+            final String key = HashUtil.toHex(digest.digest());
+            final File file = getFile(key);
+            if (file.exists()) {
+                temporaryFile.delete();
+            }
+            else if (!temporaryFile.renameTo(file)) {
+                temporaryFile.delete();
+                throw new IOException("Could not store change file " + file);
+            }
+            return key;
+        }
+        
+        /**
+         * {@inheritDoc}
+         * Content that was not committed is discarded.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            try {
+                writer.close();
+            }
+            finally {
+                temporaryFile.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.brainymachine.extraction.operations;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Compact, immutable table of extracted elements per row and service.
+ * Elements are stored as indexes into a pool of distinct strings,
+ * with offset arrays marking where each row and each service result starts,
+ * instead of one array per row and per service.
+ * Results of services that failed on a row are marked, and have no elements.
+ */
+public class ElementTable implements ExtractionResults {
+    private final int serviceCount;
+    private final int rowCount;
+    /** Per row, the index of its first service result; rows without results have none */
+    private final int[] rowStarts;
+    /** Per service result, the index of its first element */
+    private final int[] resultStarts;
+    /** Per element, the index of its value in the pool */
+    private final int[] elements;
+    private final String[] pool;
+    /** The service results that failed */
+    private final BitSet failedResults;
+    
+    private ElementTable(final int serviceCount, final int rowCount, final int[] rowStarts,
+                         final int[] resultStarts, final int[] elements, final String[] pool,
+                         final BitSet failedResults) {
+        this.serviceCount = serviceCount;
+        this.rowCount = rowCount;
+        this.rowStarts = rowStarts;
+        this.resultStarts = resultStarts;
+        this.elements = elements;
+        this.pool = pool;
+        this.failedResults = failedResults;
+    }
+    
+    /**
+     * Creates an <tt>ElementTable</tt> from nested arrays
+     * @param serviceCount The number of services
+     * @param extractedElements The extracted elements per row and service, <tt>null</tt> where a service failed
+     * @return The table
+     */
+    public static ElementTable fromArrays(final int serviceCount, final String[][][] extractedElements) {
+        final Builder builder = new Builder(serviceCount, extractedElements.length);
+        for (final String[][] row : extractedElements)
+            builder.addRow(row);
+        return builder.build();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public int getServiceCount() {
+        return serviceCount;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasResults(final int row) {
+        return rowStarts[row + 1] > rowStarts[row];
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public boolean isFailed(final int row, final int service) {
+        return hasResults(row) && failedResults.get(rowStarts[row] + service);
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasFailures(final int row) {
+        final int firstFailure = failedResults.nextSetBit(rowStarts[row]);
+        return firstFailure >= 0 && firstFailure < rowStarts[row + 1];
+    }
+    
+    /**
+     * Gets the number of failed service results
+     * @return The number of failures
+     */
+    public int getFailureCount() {
+        return failedResults.cardinality();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public int getElementCount(final int row, final int service) {
+        if (!hasResults(row))
+            return 0;
+        final int result = rowStarts[row] + service;
+        return resultStarts[result + 1] - resultStarts[result];
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public int getMaxElementCount(final int row) {
+        int maxElements = 0;
+        for (int result = rowStarts[row]; result < rowStarts[row + 1]; result++)
+            maxElements = Math.max(maxElements, resultStarts[result + 1] - resultStarts[result]);
+        return maxElements;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public String getElement(final int row, final int service, final int index) {
+        return pool[elements[resultStarts[rowStarts[row] + service] + index]];
+    }
+    
+    /**
+     * Gets the elements the service extracted on the row
+     * @param row The row number
+     * @param service The service number
+     * @return The elements
+     */
+    public String[] getElements(final int row, final int service) {
+        final String[] values = new String[getElementCount(row, service)];
+        for (int i = 0; i < values.length; i++)
+            values[i] = getElement(row, service, i);
+        return values;
+    }
+    
+    /**
+     * Receiver of rows that are read one service result and element at a time
+     */
+    public interface RowBuilder {
+        /**
+         * Starts the result of the next service in the current row
+         * @throws IOException if the result cannot be written
+         */
+        public void startResult() throws IOException;
+        
+        /**
+         * Marks the current service result as failed
+         * @throws IOException if the result cannot be written
+         */
+        public void failResult() throws IOException;
+        
+        /**
+         * Appends an element to the current service result
+         * @param value The element
+         * @throws IOException if the element cannot be written
+         */
+        public void addElement(String value) throws IOException;
+        
+        /**
+         * Ends the current row
+         * @throws IOException if the row cannot be written
+         */
+        public void endRow() throws IOException;
+    }
+    
+    /**
+     * Builder that appends rows to a new <tt>ElementTable</tt>,
+     * pooling identical strings
+     */
+    public static class Builder implements RowBuilder {
+        private final int serviceCount;
+        private final HashMap<String, Integer> poolIndexes;
+        private String[] pool;
+        private int poolSize;
+        private int[] rowStarts;
+        private int rowCount;
+        private int[] resultStarts;
+        private int resultCount;
+        private int[] elements;
+        private int elementCount;
+        private final BitSet failedResults;
+        
+        /**
+         * Creates a new <tt>Builder</tt>
+         * @param serviceCount The number of services
+         * @param expectedRows The expected number of rows
+         */
+        public Builder(final int serviceCount, final int expectedRows) {
+            this.serviceCount = serviceCount;
+            this.poolIndexes = new HashMap<String, Integer>();
+            this.pool = new String[16];
+            this.rowStarts = new int[Math.max(1, expectedRows) + 1];
+            this.resultStarts = new int[16];
+            this.elements = new int[16];
+            this.failedResults = new BitSet();
+        }
+        
+        /**
+         * Appends a row
+         * @param row The extracted elements per service, <tt>null</tt> where a service failed,
+         *            or an empty array if the row was not extracted
+         */
+        public void addRow(final String[][] row) {
+            if (row.length != 0 && row.length != serviceCount)
+                throw new IllegalArgumentException(String.format("A row should have results for %d services instead of %d.",
+                                                                 serviceCount, row.length));
+            for (final String[] values : row) {
+                startResult();
+                if (values == null)
+                    failResult();
+                else
+                    for (final String value : values)
+                        addElement(value);
+            }
+            endRow();
+        }
+        
+        /**
+         * Starts the result of the next service in the current row
+         */
+        @Override
+        public void startResult() {
+            if (resultCount + 2 > resultStarts.length)
+                resultStarts = Arrays.copyOf(resultStarts, resultStarts.length * 2);
+            resultStarts[resultCount++] = elementCount;
+        }
+        
+        /**
+         * Marks the current service result as failed
+         */
+        @Override
+        public void failResult() {
+            if (elementCount > resultStarts[resultCount - 1])
+                throw new IllegalStateException("A failed result cannot have elements.");
+            failedResults.set(resultCount - 1);
+        }
+        
+        /**
+         * Appends an element to the current service result
+         * @param value The element
+         */
+        @Override
+        public void addElement(final String value) {
+            Integer poolIndex = poolIndexes.get(value);
+            if (poolIndex == null) {
+                if (poolSize == pool.length)
+                    pool = Arrays.copyOf(pool, pool.length * 2);
+                pool[poolSize] = value;
+                poolIndexes.put(value, poolIndex = poolSize++);
+            }
+            if (elementCount == elements.length)
+                elements = Arrays.copyOf(elements, elements.length * 2);
+            elements[elementCount++] = poolIndex;
+        }
+        
+        /**
+         * Ends the current row
+         */
+        @Override
+        public void endRow() {
+            final int results = resultCount - rowStarts[rowCount];
+            if (results != 0 && results != serviceCount)
+                throw new IllegalStateException(String.format("A row should have results for %d services instead of %d.",
+                                                              serviceCount, results));
+            if (rowCount + 2 > rowStarts.length)
+                rowStarts = Arrays.copyOf(rowStarts, rowStarts.length * 2);
+            rowStarts[++rowCount] = resultCount;
+        }
+        
+        /**
+         * Creates the table with all appended rows
+         * @return The table
+         */
+        public ElementTable build() {
+            resultStarts[resultCount] = elementCount;
+            return new ElementTable(serviceCount, rowCount,
+                                    Arrays.copyOf(rowStarts, rowCount + 1),
+                                    Arrays.copyOf(resultStarts, resultCount + 1),
+                                    Arrays.copyOf(elements, elementCount),
+                                    Arrays.copyOf(pool, poolSize),
+                                    (BitSet)failedResults.clone());
+        }
+    }
+}
@@ -2,6 +2,7 @@ package com.brainymachine.extraction.operations;
 
 import java.io.IOException;
 import java.io.LineNumberReader;
+import java.io.Reader;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -9,24 +10,22 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 
-import org.apache.commons.lang.ArrayUtils;
+import org.apache.log4j.Logger;
 
 import com.brainymachine.extraction.operations.ExtractionChange;
+import com.brainymachine.extraction.util.JsonStreamUtil;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
-import org.json.JSONWriter;
 
+import com.google.refine.expr.EvalError;
 import com.google.refine.history.Change;
 import com.google.refine.model.Cell;
+import com.google.refine.model.Column;
+import com.google.refine.model.ColumnGroup;
 import com.google.refine.model.Project;
 import com.google.refine.model.Row;
-import com.google.refine.model.changes.CellAtRow;
-import com.google.refine.model.changes.ColumnAdditionChange;
-import com.google.refine.model.changes.ColumnRemovalChange;
-import com.google.refine.util.JSONUtilities;
 import com.google.refine.util.Pool;
 
 /**
@@ -34,11 +33,19 @@ import com.google.refine.util.Pool;
  * @author Mateja Verlic
  */
 public class ExtractionChange implements Change {
+    private final static Logger LOGGER = Logger.getLogger(ExtractionChange.class);
+    private final static int FORMAT_VERSION = 3;
+    private final static String[] EMPTY_ELEMENTS = new String[0];
+    private final static int[] NO_ROW_IDS = new int[0];
+    
     private final int columnIndex;
     private final String[] serviceNames;
     private final String[] columnNames;
-    private final String[][][] extractedElements;
-    private final List<Integer> addedRowIds;
+    /** The results, or <tt>null</tt> while they are only kept in the change store */
+    private ExtractionResults extractedElements;
+    private ChangeStore resultsStore;
+    private String resultsKey;
+    private int[] addedRowIds;
     
     /**
      * Creates a new <tt>ExtractionChange</tt>
@@ -47,14 +54,29 @@ public class ExtractionChange implements Change {
      * @param extractedElements The extracted elements per row and service
      */
     public ExtractionChange(final int columnIndex, final String[] serviceNames, final String[] columnNames, final String[][][] extractedElements) {
+        this(columnIndex, serviceNames, columnNames, ElementTable.fromArrays(serviceNames.length, extractedElements));
+    }
+    
+    /**
+     * Creates a new <tt>ExtractionChange</tt>
+     * @param columnIndex The index of the column used for element extraction
+     * @param serviceNames The names of the used services
+     * @param columnNames The names of the created columns
+     * @param extractedElements The extracted elements per row and service,
+     *                          which are read when the change is applied or saved
+     */
+    public ExtractionChange(final int columnIndex, final String[] serviceNames, final String[] columnNames, final ExtractionResults extractedElements) {
         this.columnIndex = columnIndex;
         this.serviceNames = serviceNames;
         this.columnNames = columnNames;
         this.extractedElements = extractedElements;
-        this.addedRowIds = new ArrayList<Integer>();
+        this.addedRowIds = NO_ROW_IDS;
     }
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     * Once the values are in the project's cells, the results are moved to the change store if there is one.
+     */
     @Override
     public void apply(final Project project) {
         synchronized(project) {
@@ -62,6 +84,7 @@ public class ExtractionChange implements Change {
             insertValues(project, cellIndexes);
             project.update();
         }
+        offloadResults();
     }
 
     /** {@inheritDoc} */
@@ -74,52 +97,143 @@ public class ExtractionChange implements Change {
         }
     }
 
-    /** {@inheritDoc} */
+    /**
+     * {@inheritDoc}
+     * Writes the change line by line, with one JSON array of service results per row,
+     * so the change never needs to be held in memory as a single document.
+     * Results of services that failed are written as <tt>null</tt>.
+     */
     @Override
     public void save(final Writer writer, final Properties options) throws IOException {
-        final JSONWriter json = new JSONWriter(writer);
+        writer.write("version="); writer.write(Integer.toString(FORMAT_VERSION)); writer.write('\n');
+        writer.write("column="); writer.write(Integer.toString(columnIndex)); writer.write('\n');
+        writer.write("services="); writeStringArray(writer, serviceNames); writer.write('\n');
+        writer.write("columns="); writeStringArray(writer, columnNames); writer.write('\n');
+        writeResults(writer);
+        /* Added row numbers */
+        writer.write("addedRowCount="); writer.write(Integer.toString(addedRowIds.length)); writer.write('\n');
+        for (final int addedRowId : addedRowIds) {
+            writer.write(Integer.toString(addedRowId));
+            writer.write('\n');
+        }
+        writer.write("/ec/\n");
+    }
+    
+    /**
+     * Writes the rows of the change, copying them from the change store if they are only kept there
+     * @param writer The writer
+     * @throws IOException if writing or reading the change store fails
+     */
+    private synchronized void writeResults(final Writer writer) throws IOException {
+        if (extractedElements != null) {
+            writeRows(writer, extractedElements);
+            return;
+        }
+        final Reader reader = resultsStore.open(resultsKey);
         try {
-            /* Change object */
-            json.object();
-            json.key("column"); json.value(columnIndex);
-            json.key("services"); JSONUtilities.writeStringArray(json, serviceNames);
-            json.key("columns"); JSONUtilities.writeStringArray(json, columnNames);
-            json.key("elements");
-            /* Named entities nested array */
-            {
-                /* Rows array */
-                json.array();
-                for (final String[][] row : extractedElements) {
-                    /* Services array */
-                    json.array();
-                    /* Service results array */
-                    for (final String[] entities : row) {
-                        json.array();
-                        for (final String element : entities) {
-                                json.object();
-                                json.key("extractedText"); 
-                                json.value(element);
-                                json.endObject();
-                        }
-                        json.endArray();
+            final char[] buffer = new char[8192];
+            for (int read = reader.read(buffer); read >= 0; read = reader.read(buffer))
+                writer.write(buffer, 0, read);
+        }
+        finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Writes the rows, with one JSON array of service results per row
+     * @param writer The writer
+     * @param extractedElements The extracted elements per row and service
+     * @throws IOException if writing fails
+     */
+    private static void writeRows(final Writer writer, final ExtractionResults extractedElements) throws IOException {
+        /* Rows with extracted elements per service */
+        final int serviceCount = extractedElements.getServiceCount();
+        final int rowCount = extractedElements.getRowCount();
+        writer.write("rowCount="); writer.write(Integer.toString(rowCount)); writer.write('\n');
+        for (int r = 0; r < rowCount; r++) {
+            writer.write('[');
+            if (extractedElements.hasResults(r)) {
+                for (int c = 0; c < serviceCount; c++) {
+                    if (c > 0)
+                        writer.write(',');
+                    if (extractedElements.isFailed(r, c)) {
+                        writer.write("null");
+                        continue;
+                    }
+                    writer.write('[');
+                    final int elementCount = extractedElements.getElementCount(r, c);
+                    for (int i = 0; i < elementCount; i++) {
+                        if (i > 0)
+                            writer.write(',');
+                        writer.write(JSONObject.quote(extractedElements.getElement(r, c, i)));
                     }
-                    json.endArray();
+                    writer.write(']');
                 }
-                json.endArray();
             }
-            json.key("addedRows");
-            /* Added row numbers array */
-            {
-                json.array();
-                for (Integer addedRowId : addedRowIds)
-                    json.value(addedRowId.intValue());
-                json.endArray();
+            writer.write(']');
+            writer.write('\n');
+        }
+    }
+    
+    /**
+     * Moves the results to the change store if there is one, keeping only their key
+     */
+    protected synchronized void offloadResults() {
+        final ChangeStore store = ChangeStore.getSharedStore();
+        if (extractedElements == null || store == null)
+            return;
+        // Results that were reloaded are still in the store
+        if (resultsKey == null) {
+            try {
+                final ChangeStore.ContentWriter writer = store.create();
+                try {
+                    writeRows(writer, extractedElements);
+                    resultsKey = writer.commit();
+                    resultsStore = store;
+                }
+                finally {
+                    writer.close();
+                }
+            }
+            catch (IOException error) {
+                LOGGER.warn("Could not move the results of the extraction change to the change store; "
+                            + "keeping them in memory.", error);
+                return;
             }
-            json.endObject();
         }
-        catch (JSONException error) {
-            throw new IOException(error);
+        // The spill file is no longer needed
+        if (extractedElements instanceof ResultSpill)
+            ((ResultSpill)extractedElements).discard();
+        extractedElements = null;
+    }
+    
+    /**
+     * Gets the results, reloading them from the change store if they are only kept there
+     * @return The extracted elements per row and service
+     */
+    protected synchronized ExtractionResults getResults() {
+        if (extractedElements == null) {
+            try {
+                final LineNumberReader reader = new LineNumberReader(resultsStore.open(resultsKey));
+                try {
+                    final String line = readLine(reader);
+                    if (!line.startsWith("rowCount="))
+                        throw new IOException("Unexpected first line in change file " + resultsKey + ": " + line);
+                    extractedElements = readRows(reader, serviceNames.length, Integer.parseInt(line.substring(9)));
+                }
+                finally {
+                    reader.close();
+                }
+            }
+            catch (IOException error) {
+                throw new IllegalStateException("Could not reload the results of the extraction change from the change store.", error);
+            }
+            catch (JSONException error) {
+                throw new IllegalStateException("Could not reload the results of the extraction change from the change store.", error);
+            }
         }
+        return extractedElements;
     }
     
     /**
@@ -130,70 +244,492 @@ public class ExtractionChange implements Change {
      * @throws Exception If the configuration is in an unexpected format
      */
     static public Change load(LineNumberReader reader, Pool pool) throws Exception {
-        /* Parse JSON line */
-        final JSONTokener tokener = new JSONTokener(reader.readLine());
-        final JSONObject changeJson = (JSONObject)tokener.nextValue();
+        final String firstLine = reader.readLine();
+        if (firstLine == null)
+            throw new IOException("The extraction change is empty.");
+        /* Changes saved before versioning are a single JSON line */
+        if (firstLine.startsWith("{"))
+            return loadJsonLine(firstLine);
         
-        /* Simple properties */
-        final int columnIndex = changeJson.getInt("column");
-        final String[] serviceNames = JSONUtilities.getStringArray(changeJson, "services");
-        final String[] columnNames = JSONUtilities.getStringArray(changeJson, "columns");
-        
-        /* Named entities nested array */
-        final JSONArray extractedElementsJson = changeJson.getJSONArray("elements");
-        final String[][][] extractedElements = new String[extractedElementsJson.length()][][];
-        /* Rows array */
-        for (int i = 0; i < extractedElements.length; i++) {
-            /* Services array */
-            final JSONArray serviceResultsJson = extractedElementsJson.getJSONArray(i);
-            final String[][] serviceResults = extractedElements[i] = new String[serviceResultsJson.length()][];
-            for (int j = 0; j < serviceResults.length; j++) {
-                /* Service results array */
-                final JSONArray entitiesJson = serviceResultsJson.getJSONArray(j);
-                final String[] entities = serviceResults[j] = new String[serviceResultsJson.length()];
-                for (int k = 0; k < entities.length; k++)
-                    entities[k] = new String(entitiesJson.getJSONObject(k).getString("extractedText"));
+        int columnIndex = -1;
+        String[] serviceNames = null, columnNames = null;
+        ElementTable extractedElements = null;
+        final ChangeStore store = ChangeStore.getSharedStore();
+        String resultsKey = null;
+        int[] addedRowIds = null;
+        for (String line = firstLine; line != null && !"/ec/".equals(line); line = reader.readLine()) {
+            final int equal = line.indexOf('=');
+            if (equal < 0)
+                throw new IOException(String.format("Unexpected line %d in extraction change: %s",
+                                                    reader.getLineNumber(), line));
+            final String key = line.substring(0, equal);
+            final String value = line.substring(equal + 1);
+            if ("version".equals(key)) {
+                if (Integer.parseInt(value) > FORMAT_VERSION)
+                    throw new IOException("Unsupported extraction change version " + value + ".");
+            }
+            else if ("column".equals(key)) {
+                columnIndex = Integer.parseInt(value);
+            }
+            else if ("services".equals(key)) {
+                serviceNames = parseStringArray(new JSONTokener(value));
+            }
+            else if ("columns".equals(key)) {
+                columnNames = parseStringArray(new JSONTokener(value));
+            }
+            else if ("rowCount".equals(key)) {
+                /* One line per row, copied to the change store as is if there is one */
+                if (serviceNames == null)
+                    throw new IOException("The extraction change lists rows before services.");
+                final ChangeStore.ContentWriter writer = createStoreWriter(store);
+                if (writer != null)
+                    resultsKey = copyRows(reader, Integer.parseInt(value), writer);
+                else
+                    extractedElements = readRows(reader, serviceNames.length, Integer.parseInt(value));
+            }
+            else if ("addedRowCount".equals(key)) {
+                /* One line per added row number */
+                addedRowIds = new int[Integer.parseInt(value)];
+                for (int i = 0; i < addedRowIds.length; i++)
+                    addedRowIds[i] = Integer.parseInt(readLine(reader));
             }
         }
+        if (serviceNames == null || columnNames == null || (extractedElements == null && resultsKey == null))
+            throw new IOException("The extraction change is incomplete.");
         
         /* Reconstruct change object */
         final ExtractionChange change = new ExtractionChange(columnIndex, serviceNames, columnNames, extractedElements);
-        for (final int addedRowId : JSONUtilities.getIntArray(changeJson, "addedRows"))
-            change.addedRowIds.add(addedRowId);
+        if (addedRowIds != null)
+            change.addedRowIds = addedRowIds;
+        change.storeResults(store, resultsKey);
         return change;
     }
     
     /**
-     * Create the columns where the named entities will be stored
+     * Create a <tt>ExtractionChange</tt> from a single JSON line,
+     * the format of changes saved before versioning.
+     * The line is parsed without building a JSON object tree, sizing each result by its actual number of elements.
+     * If there is a change store, the rows are written to it as they are parsed instead of being kept in a table,
+     * after a first pass that counts them.
+     * @param line The JSON line
+     * @return A new <tt>ExtractionChange</tt>
+     * @throws Exception If the configuration is in an unexpected format
+     */
+    static protected Change loadJsonLine(final String line) throws Exception {
+        final JSONTokener tokener = new JSONTokener(line);
+        int columnIndex = -1;
+        String[] serviceNames = null, columnNames = null;
+        ElementTable extractedElements = null;
+        final ChangeStore store = ChangeStore.getSharedStore();
+        String resultsKey = null;
+        int[] addedRowIds = NO_ROW_IDS;
+        
+        /* Change object */
+        if (tokener.nextClean() != '{')
+            throw tokener.syntaxError("Expected a change object");
+        char separator;
+        do {
+            final String key = JsonStreamUtil.parseKey(tokener);
+            if ("column".equals(key)) {
+                columnIndex = ((Number)tokener.nextValue()).intValue();
+            }
+            else if ("services".equals(key)) {
+                serviceNames = parseStringArray(tokener);
+            }
+            else if ("columns".equals(key)) {
+                columnNames = parseStringArray(tokener);
+            }
+            else if ("elements".equals(key)) {
+                if (serviceNames == null)
+                    throw tokener.syntaxError("Expected services before elements");
+                final int rowCount = store != null ? countJsonRows(line) : -1;
+                final ChangeStore.ContentWriter writer = createStoreWriter(store);
+                if (writer != null) {
+                    resultsKey = storeJsonElements(tokener, rowCount, writer);
+                }
+                else {
+                    final ElementTable.Builder builder = new ElementTable.Builder(serviceNames.length, 1024);
+                    parseJsonElements(tokener, builder);
+                    extractedElements = builder.build();
+                }
+            }
+            else if ("addedRows".equals(key)) {
+                addedRowIds = parseIntArray(tokener);
+            }
+            else {
+                tokener.nextValue();
+            }
+            separator = tokener.nextClean();
+        } while (separator == ',');
+        if (separator != '}')
+            throw tokener.syntaxError("Expected the end of the change object");
+        if (serviceNames == null || columnNames == null || (extractedElements == null && resultsKey == null))
+            throw new IOException("The extraction change is incomplete.");
+        
+        /* Reconstruct change object */
+        final ExtractionChange change = new ExtractionChange(columnIndex, serviceNames, columnNames, extractedElements);
+        change.addedRowIds = addedRowIds;
+        change.storeResults(store, resultsKey);
+        return change;
+    }
+    
+    /**
+     * Keeps the results of a loaded change in the change store:
+     * only their key if they were written there while loading, or else the results are moved there
+     * @param store The change store, or <tt>null</tt> if there is none
+     * @param key The key of the results in the store, or <tt>null</tt> if they were loaded into memory
+     */
+    private synchronized void storeResults(final ChangeStore store, final String key) {
+        if (key == null) {
+            offloadResults();
+            return;
+        }
+        resultsStore = store;
+        resultsKey = key;
+    }
+    
+    /**
+     * Creates a writer for results in the change store
+     * @param store The change store, or <tt>null</tt> if there is none
+     * @return The writer, or <tt>null</tt> if results are kept in memory
+     */
+    private static ChangeStore.ContentWriter createStoreWriter(final ChangeStore store) {
+        if (store == null)
+            return null;
+        try {
+            return store.create();
+        }
+        catch (IOException error) {
+            LOGGER.warn("Could not write the results of the extraction change to the change store; "
+                        + "keeping them in memory.", error);
+            return null;
+        }
+    }
+    
+    /**
+     * Copies the row lines to the change store without parsing them,
+     * preceded by their count as the change file has them
+     * @param reader The reader, positioned before the first row line
+     * @param rowCount The number of rows
+     * @param writer The writer of the change store, which is closed afterwards
+     * @return The key of the rows in the change store
+     * @throws IOException if a row cannot be read or written
+     */
+    private static String copyRows(final LineNumberReader reader, final int rowCount,
+                                   final ChangeStore.ContentWriter writer) throws IOException {
+        try {
+            writer.write("rowCount="); writer.write(Integer.toString(rowCount)); writer.write('\n');
+            for (int i = 0; i < rowCount; i++) {
+                final String line = readLine(reader);
+                if (!line.startsWith("[") || !line.endsWith("]"))
+                    throw new IOException(String.format("Unexpected row at line %d in extraction change: %s",
+                                                        reader.getLineNumber(), line));
+                writer.write(line);
+                writer.write('\n');
+            }
+            return writer.commit();
+        }
+        finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Writes the named entities nested array of a single-line change to the change store as row lines,
+     * preceded by their count as the change file has them
+     * @param tokener The tokener, positioned before the array
+     * @param rowCount The number of rows in the array
+     * @param writer The writer of the change store, which is closed afterwards
+     * @return The key of the rows in the change store
+     * @throws IOException if the rows cannot be written
+     * @throws JSONException if the array is not in the expected format
+     */
+    private static String storeJsonElements(final JSONTokener tokener, final int rowCount,
+                                            final ChangeStore.ContentWriter writer) throws IOException, JSONException {
+        try {
+            writer.write("rowCount="); writer.write(Integer.toString(rowCount)); writer.write('\n');
+            final RowLineWriter rows = new RowLineWriter(writer);
+            parseJsonElements(tokener, rows);
+            if (rows.getRowCount() != rowCount)
+                throw new IOException("The extraction change has an unexpected number of rows.");
+            return writer.commit();
+        }
+        finally {
+            writer.close();
+        }
+    }
+    
+    /**
+     * Counts the rows of the named entities nested array of a single-line change
+     * @param line The JSON line
+     * @return The number of rows
+     * @throws IOException if the line has no rows
+     * @throws JSONException if the line is not in the expected format
+     */
+    private static int countJsonRows(final String line) throws IOException, JSONException {
+        final JSONTokener tokener = new JSONTokener(line);
+        if (tokener.nextClean() != '{')
+            throw tokener.syntaxError("Expected a change object");
+        char separator;
+        do {
+            final String key = JsonStreamUtil.parseKey(tokener);
+            if ("elements".equals(key)) {
+                final RowLineWriter rows = new RowLineWriter(null);
+                parseJsonElements(tokener, rows);
+                return rows.getRowCount();
+            }
+            tokener.nextValue();
+            separator = tokener.nextClean();
+        } while (separator == ',');
+        throw new IOException("The extraction change is incomplete.");
+    }
+    
+    /**
+     * Parses the named entities nested array of a single-line change:
+     * an array of rows, with an array of results per service,
+     * with an object per element that holds the <tt>extractedText</tt>
+     * @param tokener The tokener, positioned before the array
+     * @param builder The receiver of the rows
+     * @throws IOException if the receiver cannot write a row
+     * @throws JSONException if the array is not in the expected format
+     */
+    private static void parseJsonElements(final JSONTokener tokener, final ElementTable.RowBuilder builder)
+                   throws IOException, JSONException {
+        /* Rows array */
+        if (tokener.nextClean() != '[')
+            throw tokener.syntaxError("Expected a rows array");
+        char rowSeparator = tokener.nextClean();
+        while (rowSeparator != ']') {
+            tokener.back();
+            /* Services array */
+            if (tokener.nextClean() != '[')
+                throw tokener.syntaxError("Expected a services array");
+            char serviceSeparator = tokener.nextClean();
+            while (serviceSeparator != ']') {
+                tokener.back();
+                /* Service results array */
+                if (tokener.nextClean() != '[')
+                    throw tokener.syntaxError("Expected a results array");
+                builder.startResult();
+                char elementSeparator = tokener.nextClean();
+                while (elementSeparator != ']') {
+                    tokener.back();
+                    builder.addElement(parseJsonElement(tokener));
+                    elementSeparator = JsonStreamUtil.nextSeparator(tokener);
+                }
+                serviceSeparator = JsonStreamUtil.nextSeparator(tokener);
+            }
+            builder.endRow();
+            rowSeparator = JsonStreamUtil.nextSeparator(tokener);
+        }
+    }
+    
+    /**
+     * Parses an element object of a single-line change
+     * @param tokener The tokener, positioned before the object
+     * @return The value of the <tt>extractedText</tt> key
+     * @throws JSONException if the object is not in the expected format
+     */
+    private static String parseJsonElement(final JSONTokener tokener) throws JSONException {
+        if (tokener.nextClean() != '{')
+            throw tokener.syntaxError("Expected an element object");
+        String extractedText = null;
+        char separator;
+        do {
+            final String key = JsonStreamUtil.parseKey(tokener);
+            final Object value = tokener.nextValue();
+            if ("extractedText".equals(key))
+                extractedText = value.toString();
+            separator = tokener.nextClean();
+        } while (separator == ',');
+        if (separator != '}' || extractedText == null)
+            throw tokener.syntaxError("Expected an element object with extracted text");
+        return extractedText;
+    }
+    
+    /**
+     * Parses a JSON array of integers
+     * @param tokener The tokener, positioned before the array
+     * @return The integers
+     * @throws JSONException if the array is not in the expected format
+     */
+    private static int[] parseIntArray(final JSONTokener tokener) throws JSONException {
+        if (tokener.nextClean() != '[')
+            throw tokener.syntaxError("Expected an integer array");
+        int[] values = new int[16];
+        int count = 0;
+        char separator = tokener.nextClean();
+        while (separator != ']') {
+            tokener.back();
+            if (count == values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+            values[count++] = ((Number)tokener.nextValue()).intValue();
+            separator = JsonStreamUtil.nextSeparator(tokener);
+        }
+        return Arrays.copyOf(values, count);
+    }
+    
+    /**
+     * Writes the strings as a JSON array
+     * @param writer The writer
+     * @param values The strings
+     * @throws IOException if writing fails
+     */
+    private static void writeStringArray(final Writer writer, final String[] values) throws IOException {
+        writer.write('[');
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0)
+                writer.write(',');
+            writer.write(JSONObject.quote(values[i]));
+        }
+        writer.write(']');
+    }
+    
+    /**
+     * Reads the row lines into a table
+     * @param reader The reader, positioned before the first row line
+     * @param serviceCount The number of services
+     * @param rowCount The number of rows
+     * @return The extracted elements per row and service
+     * @throws IOException if a row cannot be read
+     * @throws JSONException if a row is not in the expected format
+     */
+    private static ElementTable readRows(final LineNumberReader reader, final int serviceCount, final int rowCount)
+                   throws IOException, JSONException {
+        final ElementTable.Builder builder = new ElementTable.Builder(serviceCount, rowCount);
+        for (int i = 0; i < rowCount; i++)
+            parseRow(readLine(reader), builder);
+        return builder.build();
+    }
+    
+    /**
+     * Parses a row line, a JSON array with a JSON array of strings per service
+     * or <tt>null</tt> if the service failed, and appends it to the table builder
+     * @param line The line
+     * @param builder The table builder
+     * @throws JSONException if the line is not in the expected format
+     */
+    private static void parseRow(final String line, final ElementTable.Builder builder) throws JSONException {
+        final JSONTokener tokener = new JSONTokener(line);
+        if (tokener.nextClean() != '[')
+            throw tokener.syntaxError("Expected a row array");
+        char separator = tokener.nextClean();
+        if (separator != ']') {
+            tokener.back();
+            do {
+                builder.startResult();
+                if (tokener.nextClean() == 'n') {
+                    tokener.back();
+                    if (tokener.nextValue() != JSONObject.NULL)
+                        throw tokener.syntaxError("Expected a string array or null");
+                    builder.failResult();
+                }
+                else {
+                    tokener.back();
+                    for (final String value : parseStringArray(tokener))
+                        builder.addElement(value);
+                }
+                separator = tokener.nextClean();
+            } while (separator == ',');
+            if (separator != ']')
+                throw tokener.syntaxError("Expected the end of a row array");
+        }
+        builder.endRow();
+    }
+    
+    /**
+     * Parses a JSON array of strings, without building intermediate JSON objects
+     * @param tokener The tokener, positioned before the array
+     * @return The strings
+     * @throws JSONException if the array is not in the expected format
+     */
+    private static String[] parseStringArray(final JSONTokener tokener) throws JSONException {
+        if (tokener.nextClean() != '[')
+            throw tokener.syntaxError("Expected a string array");
+        char next = tokener.nextClean();
+        if (next == ']')
+            return EMPTY_ELEMENTS;
+        final ArrayList<String> values = new ArrayList<String>();
+        do {
+            if (next != '"')
+                throw tokener.syntaxError("Expected a string");
+            values.add(tokener.nextString('"'));
+            next = tokener.nextClean();
+            if (next == ',')
+                next = tokener.nextClean();
+            else if (next != ']')
+                throw tokener.syntaxError("Expected the end of a string array");
+        } while (next != ']');
+        return values.toArray(new String[values.size()]);
+    }
+    
+    /**
+     * Reads the next line, failing if the reader has no more lines
+     * @param reader The reader
+     * @return The line
+     * @throws IOException if no line can be read
+     */
+    private static String readLine(final LineNumberReader reader) throws IOException {
+        final String line = reader.readLine();
+        if (line == null)
+            throw new IOException("Unexpected end of extraction change.");
+        return line;
+    }
+    
+    /**
+     * Create the columns where the named entities will be stored.
+     * Only the column model is changed; the rows get their cells when the values are inserted.
      * @param project The project
      * @return The cell indexes of the created columns
      */
     protected int[] createColumns(final Project project) {
-        // Create empty cells that will populate each row
-        final int rowCount = project.rows.size();
-        final ArrayList<CellAtRow> emptyCells = new ArrayList<CellAtRow>(rowCount);
-        for (int r = 0; r < rowCount; r++)
-            emptyCells.add(new CellAtRow(r, null));
-        
-        // Create rows
         final int[] cellIndexes = new int[serviceNames.length];
         for (int c = 0; c < serviceNames.length; c++) {
-            final CustomColumnAdditionChange change
-                  = new CustomColumnAdditionChange(columnNames[c], columnIndex + c, emptyCells);
-            change.apply(project);
-            cellIndexes[c] = change.getCellIndex();
+            cellIndexes[c] = project.columnModel.allocateNewCellIndex();
+            project.columnModel.columns.add(columnIndex + c, new Column(cellIndexes[c], columnNames[c]));
         }
-        // Return cell indexes of created rows
+        shiftColumnGroups(project, serviceNames.length);
+        project.columnModel.update();
+        // Return cell indexes of created columns
         return cellIndexes;
     }
     
     /**
-     * Delete the columns where the extracted elements have been stored
+     * Delete the columns where the extracted elements have been stored, with their cells,
+     * and move the column groups back to where they were before the columns were created
      * @param project The project
      */
     protected void deleteColumns(final Project project) {
-        for (int i = 0; i < serviceNames.length; i++)
-            new ColumnRemovalChange(columnIndex).apply(project);
+        final int[] cellIndexes = new int[serviceNames.length];
+        for (int c = 0; c < serviceNames.length; c++)
+            cellIndexes[c] = project.columnModel.columns.remove(columnIndex).getCellIndex();
+        for (final Row row : project.rows)
+            for (final int cellIndex : cellIndexes)
+                if (cellIndex < row.cells.size())
+                    row.cells.set(cellIndex, null);
+        shiftColumnGroups(project, -serviceNames.length);
+        project.columnModel.update();
+    }
+    
+    /**
+     * Shifts the column groups for columns that are inserted at or removed from the column index,
+     * as <tt>ColumnAdditionChange</tt> does for a single column:
+     * groups that span the column index grow or shrink, and groups after it move.
+     * Removing the columns that were inserted restores the groups exactly.
+     * @param project The project
+     * @param columnCount The number of inserted columns, or minus the number of removed columns
+     */
+    private void shiftColumnGroups(final Project project, final int columnCount) {
+        final List<ColumnGroup> columnGroups = project.columnModel.columnGroups;
+        for (int i = 0; i < columnGroups.size(); i++) {
+            final ColumnGroup group = columnGroups.get(i);
+            final int keyColumnIndex = group.keyColumnIndex < columnIndex ? group.keyColumnIndex
+                                                                          : group.keyColumnIndex + columnCount;
+            if (group.startColumnIndex > columnIndex)
+                columnGroups.set(i, new ColumnGroup(group.startColumnIndex + columnCount, group.columnSpan, keyColumnIndex));
+            else if (group.startColumnIndex + group.columnSpan > columnIndex)
+                columnGroups.set(i, new ColumnGroup(group.startColumnIndex, group.columnSpan + columnCount, keyColumnIndex));
+        }
     }
 
     /**
@@ -202,93 +738,189 @@ public class ExtractionChange implements Change {
      * @param cellIndexes The cell indexes of the rows that will contain the extracted elements
      */
     protected void insertValues(final Project project, final int[] cellIndexes) {
+        final ExtractionResults extractedElements = getResults();
         final List<Row> rows = project.rows;
         // Make sure there are rows
         if (rows.isEmpty())
             return;
         
-        // Make sure all rows have enough cells, creating new ones as necessary
-        final int maxCellIndex = Collections.max(Arrays.asList(ArrayUtils.toObject(cellIndexes)));
+        // All rows get cells for the created columns
+        int maxCellIndex = -1;
+        for (final int cellIndex : cellIndexes)
+            maxCellIndex = Math.max(maxCellIndex, cellIndex);
         final int minRowSize = maxCellIndex + 1;
-        for (final Row row : rows)
-            while (row.cells.size() < minRowSize)
-                row.cells.add(null);
         
-        // Add the extracted named entities to all rows, creating new ones as necessary
-        int rowNumber = 0;
-        addedRowIds.clear();
-        for (final String[][] serviceElements : extractedElements) {
+        // Add the extracted named entities to all rows, creating new ones as necessary.
+        // The new row list is built in a single pass and then swapped in,
+        // instead of shifting the project's rows for every inserted row,
+        // and each row's cells are extended once in the same pass.
+        final int rowCount = rows.size();
+        final ArrayList<Row> newRows = new ArrayList<Row>(rowCount);
+        int[] newRowIds = new int[16];
+        int newRowCount = 0;
+        for (int r = 0; r < rowCount; r++) {
+            final Row row = rows.get(r);
+            extendCells(row, minRowSize);
+            newRows.add(row);
             // Determine the maximum number of named entities per service
-            int maxElements = 0;
-            for (final String[] entities : serviceElements)
-                maxElements = Math.max(maxElements, entities.length);
-            // Skip this row if no named entities were found
-            if (maxElements == 0) {
-                rowNumber++;
+            final boolean failed = r < extractedElements.getRowCount() && extractedElements.hasFailures(r);
+            final int maxElements = r < extractedElements.getRowCount() ? extractedElements.getMaxElementCount(r) : 0;
+            // Skip this row if no named entities were found and no service failed
+            if (maxElements == 0 && !failed)
                 continue;
-            }
             // Create new blank rows if named entities don't fit on a single line
+            final int firstRowId = newRows.size() - 1;
             for (int i = 1; i < maxElements; i++) {
                 final Row elementRow = new Row(minRowSize);
-                final int elementRowId = rowNumber + i;
                 for (int j = 0; j < minRowSize; j++)
                     elementRow.cells.add(null);
-                rows.add(elementRowId, elementRow);
-                addedRowIds.add(elementRowId);
+                if (newRowCount == newRowIds.length)
+                    newRowIds = Arrays.copyOf(newRowIds, newRowIds.length * 2);
+                newRowIds[newRowCount++] = newRows.size();
+                newRows.add(elementRow);
             }
-            // Place all named entities
-            for (int c = 0; c < serviceElements.length; c++) {
-                final String[] entities = serviceElements[c];
-                for (int r = 0; r < entities.length; r++)
-                    rows.get(rowNumber + r).cells.set(cellIndexes[c], new Cell(entities[r], null));
+            // Place all named entities, and an error where a service failed,
+            // so failed rows can be selected through an error facet and extracted again
+            for (int c = 0; c < serviceNames.length; c++) {
+                if (failed && extractedElements.isFailed(r, c)) {
+                    newRows.get(firstRowId).cells.set(cellIndexes[c],
+                            new Cell(new EvalError("Extraction by " + serviceNames[c] + " failed"), null));
+                    continue;
+                }
+                final int elementCount = extractedElements.getElementCount(r, c);
+                for (int e = 0; e < elementCount; e++)
+                    newRows.get(firstRowId + e).cells.set(cellIndexes[c], new Cell(extractedElements.getElement(r, c, e), null));
             }
-            // Advance to the next original row
-            rowNumber += maxElements;
+        }
+        addedRowIds = Arrays.copyOf(newRowIds, newRowCount);
+        if (newRowCount > 0) {
+            rows.clear();
+            rows.addAll(newRows);
         }
     }
     
+    /**
+     * Extends the cells of the row to the specified size with empty cells,
+     * growing the cell list at most once
+     * @param row The row
+     * @param size The size
+     */
+    private static void extendCells(final Row row, final int size) {
+        final int missingCells = size - row.cells.size();
+        if (missingCells <= 0)
+            return;
+        if (row.cells instanceof ArrayList)
+            ((ArrayList<Cell>)row.cells).ensureCapacity(size);
+        row.cells.addAll(Collections.<Cell>nCopies(missingCells, null));
+    }
+    
     /**
      * Delete rows that were added to contain extracted elements
      * @param project The project
      */
     protected void deleteRows(final Project project) {
         final List<Row> rows = project.rows;
-        // Traverse rows IDs in reverse, from high to low,
-        // to avoid index shifts as rows get deleted.
-        for (int i = addedRowIds.size() - 1; i >= 0; i--) {
-            final int addedRowId = addedRowIds.get(i);
-            if (addedRowId >= rows.size())
-                throw new IndexOutOfBoundsException(String.format("Needed to remove row %d, "
-                                + "but only %d rows were available.", addedRowId, rows.size()));
-            rows.remove(addedRowId);
-        }
-        addedRowIds.clear();
+        if (addedRowIds.length == 0)
+            return;
+        final int lastRowId = addedRowIds[addedRowIds.length - 1];
+        if (lastRowId >= rows.size())
+            throw new IndexOutOfBoundsException(String.format("Needed to remove row %d, "
+                            + "but only %d rows were available.", lastRowId, rows.size()));
+        
+        // Keep all rows except the added ones, whose IDs are in ascending order,
+        // in a single pass instead of removing them one by one
+        final int rowCount = rows.size();
+        final ArrayList<Row> keptRows = new ArrayList<Row>(rowCount - addedRowIds.length);
+        int next = 0;
+        for (int r = 0; r < rowCount; r++) {
+            if (next < addedRowIds.length && addedRowIds[next] == r)
+                next++;
+            else
+                keptRows.add(rows.get(r));
+        }
+        rows.clear();
+        rows.addAll(keptRows);
+        addedRowIds = NO_ROW_IDS;
     }
     
     /**
-     * Subclass of <tt>ColumnAdditionChange</tt>
-     * that provides access to the cell index of the created column
+     * Writer of rows as the lines of a change file:
+     * a JSON array per row with a JSON array of strings per service, or <tt>null</tt> if the service failed
      */
-    protected static class CustomColumnAdditionChange extends ColumnAdditionChange {
+    private static class RowLineWriter implements ElementTable.RowBuilder {
+        private final Writer writer;
+        private int rowCount;
+        private int resultCount;
+        private int elementCount;
+        private boolean failed;
+        
+        /**
+         * Creates a new <tt>RowLineWriter</tt>
+         * @param writer The writer, or <tt>null</tt> to only count the rows
+         */
+        public RowLineWriter(final Writer writer) {
+            this.writer = writer;
+        }
+
+        /**
+         * Gets the number of rows that were written
+         * @return The number of rows
+         */
+        public int getRowCount() {
+            return rowCount;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void startResult() throws IOException {
+            endResult();
+            write(resultCount++ == 0 ? "[" : ",");
+            elementCount = 0;
+            failed = false;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void failResult() {
+            if (elementCount > 0)
+                throw new IllegalStateException("A failed result cannot have elements.");
+            failed = true;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void addElement(final String value) throws IOException {
+            write(elementCount++ == 0 ? "[" : ",");
+            write(JSONObject.quote(value));
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void endRow() throws IOException {
+            endResult();
+            write(resultCount == 0 ? "[]\n" : "]\n");
+            resultCount = 0;
+            rowCount++;
+        }
+        
         /**
-         * Create a new <tt>CustomColumnAdditionChange</tt>
-         * @param columnName The column name
-         * @param columnIndex The column index
-         * @param newCells The new cells
+         * Ends the current service result, if there is one
+         * @throws IOException if writing fails
          */
-        public CustomColumnAdditionChange(final String columnName, final int columnIndex,
-                                          final List<CellAtRow> newCells) {
-            super(columnName, columnIndex, newCells);
+        private void endResult() throws IOException {
+            if (resultCount == 0)
+                return;
+            write(failed ? "null" : elementCount == 0 ? "[]" : "]");
         }
         
         /**
-         * Gets the cell index of the created column
-         * @return The cell index
+         * Writes the text unless the rows are only counted
+         * @param text The text
+         * @throws IOException if writing fails
          */
-        public int getCellIndex() {
-            if (_newCellIndex < 0)
-                throw new IllegalStateException("The cell index has not yet been set.");
-            return _newCellIndex;
+        private void write(final String text) throws IOException {
+            if (writer != null)
+                writer.write(text);
         }
     }
 }
@@ -0,0 +1,274 @@
+package com.brainymachine.extraction.operations;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import com.brainymachine.extraction.util.HashUtil;
+import com.brainymachine.extraction.util.LongHashIndex;
+
+/**
+ * Append-only file with the results of completed texts of an extraction run,
+ * so an interrupted run can be resumed without extracting those texts again.
+ * Loading only indexes the records by the 64-bit hash of their text;
+ * the results of a text are read from the file when they are resumed, after confirming the text.
+ */
+public class ExtractionCheckpoint {
+    private final static Logger LOGGER = Logger.getLogger(ExtractionCheckpoint.class);
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static long NOT_FOUND = -1;
+    
+    private final File file;
+    private final int serviceCount;
+    private final LongHashIndex index = new LongHashIndex(1024);
+    private RandomAccessFile input;
+    private DataOutputStream output;
+    private int pendingRecords;
+    
+    /**
+     * Creates a new <tt>ExtractionCheckpoint</tt>
+     * @param file The checkpoint file (might not exist yet)
+     * @param serviceCount The number of services of the extraction run
+     */
+    public ExtractionCheckpoint(final File file, final int serviceCount) {
+        this.file = file;
+        this.serviceCount = serviceCount;
+    }
+    
+    /**
+     * Gets the checkpoint file
+     * @return The file
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    /**
+     * Indexes all completely written records, discarding an incompletely written last record
+     * @return The number of indexed texts
+     * @throws IOException if the checkpoint cannot be read
+     */
+    public int load() throws IOException {
+        index.clear();
+        if (!file.exists())
+            return 0;
+        final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        final DataInputStream input = new DataInputStream(counter);
+        long validLength = 0;
+        try {
+            while (true) {
+                final byte[] text = readBytes(input);
+                readElements(input);
+                index.put(HashUtil.hash64(text), validLength);
+                validLength = counter.count;
+            }
+        }
+        catch (EOFException e) { }
+        finally {
+            input.close();
+        }
+        truncate(validLength);
+        return index.size();
+    }
+    
+    /**
+     * Reads the results of a text from its record, if the checkpoint has one
+     * @param text The text
+     * @return The extracted elements per service, or <tt>null</tt> if the text has no record
+     * @throws IOException if the record cannot be read
+     */
+    public synchronized String[][] getResults(final String text) throws IOException {
+        final byte[] bytes = text.getBytes(UTF8);
+        final long offset = index.get(HashUtil.hash64(bytes), NOT_FOUND);
+        if (offset == NOT_FOUND)
+            return null;
+        if (input == null)
+            input = new RandomAccessFile(file, "r");
+        final DataInputStream record = new DataInputStream(new BufferedInputStream(
+                                       Channels.newInputStream(input.getChannel().position(offset)), 4096));
+        // Another text with the same hash has no results here
+        if (!Arrays.equals(bytes, readBytes(record)))
+            return null;
+        return readElements(record);
+    }
+    
+    /**
+     * Reads the extracted elements of a record
+     * @param input The stream, positioned after the text of the record
+     * @return The extracted elements per service
+     * @throws IOException if the elements cannot be read or have another number of services
+     */
+    private String[][] readElements(final DataInputStream input) throws IOException {
+        final int services = input.readInt();
+        if (services != serviceCount)
+            throw new IOException(String.format("The checkpoint %s has %d services instead of %d.",
+                                                file, services, serviceCount));
+        final String[][] elements = new String[services][];
+        for (int i = 0; i < services; i++) {
+            elements[i] = new String[input.readInt()];
+            for (int j = 0; j < elements[i].length; j++)
+                elements[i][j] = readString(input);
+        }
+        return elements;
+    }
+    
+    /**
+     * Appends the results of a completed text; they are only durable after {@link #flush()}
+     * @param text The text
+     * @param elements The extracted elements per service
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void append(final String text, final String[][] elements) throws IOException {
+        if (output == null)
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 65536));
+        writeString(output, text);
+        output.writeInt(elements.length);
+        for (final String[] values : elements) {
+            output.writeInt(values.length);
+            for (final String value : values)
+                writeString(output, value);
+        }
+        pendingRecords++;
+    }
+    
+    /**
+     * Gets the number of records appended since the last flush
+     * @return The number of records
+     */
+    public int getPendingRecords() {
+        return pendingRecords;
+    }
+    
+    /**
+     * Writes all appended records to disk
+     * @throws IOException if the checkpoint cannot be written
+     */
+    public void flush() throws IOException {
+        if (output != null)
+            output.flush();
+        pendingRecords = 0;
+    }
+    
+    /**
+     * Flushes and closes the checkpoint file
+     */
+    public synchronized void close() {
+        if (output != null) {
+            try {
+                output.close();
+            }
+            catch (IOException error) {
+                LOGGER.warn("Could not close checkpoint " + file, error);
+            }
+            output = null;
+        }
+        if (input != null) {
+            try {
+                input.close();
+            }
+            catch (IOException error) {
+                LOGGER.warn("Could not close checkpoint " + file, error);
+            }
+            input = null;
+        }
+    }
+    
+    /**
+     * Closes and deletes the checkpoint file, after the extraction run has completed
+     */
+    public void delete() {
+        close();
+        if (file.exists() && !file.delete())
+            LOGGER.warn("Could not delete checkpoint " + file);
+    }
+    
+    /**
+     * Truncates the checkpoint file to its valid length, so new records can be appended
+     * @param length The valid length
+     * @throws IOException if the file cannot be truncated
+     */
+    private void truncate(final long length) throws IOException {
+        if (file.length() == length)
+            return;
+        LOGGER.warn(String.format("Discarding incomplete record at %d in checkpoint %s.", length, file));
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        }
+        finally {
+            raf.close();
+        }
+    }
+    
+    private static String readString(final DataInputStream input) throws IOException {
+        final byte[] bytes = readBytes(input);
+        return bytes.length == 0 ? "" : new String(bytes, UTF8);
+    }
+    
+    private static byte[] readBytes(final DataInputStream input) throws IOException {
+        final byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return bytes;
+    }
+    
+    private static void writeString(final DataOutputStream output, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(UTF8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+    
+    /**
+     * Stream that counts the bytes read from it
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+        
+        /**
+         * Creates a new <tt>CountingInputStream</tt>
+         * @param input The underlying stream
+         */
+        public CountingInputStream(final InputStream input) {
+            super(input);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0)
+                count++;
+            return b;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int read = super.read(buffer, offset, length);
+            if (read > 0)
+                count += read;
+            return read;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public long skip(final long n) throws IOException {
+            final long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.brainymachine.extraction.operations;
 
+import java.io.File;
 import java.util.Properties;
 import java.util.SortedMap;
 
@@ -25,18 +26,21 @@ import com.google.refine.util.JSONUtilities;
 public class ExtractionOperation extends EngineDependentOperation {
     private final Column column;
     private final SortedMap<String, ExtractionService> services;
+    private final File checkpointDirectory;
     
     /**
      * Creates a new <tt>ExtractionOperation</tt>
      * @param column The column on which element extraction is performed
      * @param services The services that will be used for element extraction
      * @param engineConfig The faceted browsing engine configuration
+     * @param checkpointDirectory The directory for checkpoints of partial results (can be null to disable checkpoints)
      */
     public ExtractionOperation(final Column column, final SortedMap<String, ExtractionService> services, 
-                    final JSONObject engineConfig) {
+                    final JSONObject engineConfig, final File checkpointDirectory) {
         super(engineConfig);
         this.column = column;
         this.services = services;
+        this.checkpointDirectory = checkpointDirectory;
     }
 
     /** {@inheritDoc} */
@@ -61,6 +65,7 @@ public class ExtractionOperation extends EngineDependentOperation {
     /** {@inheritDoc} */
     @Override
     public Process createProcess(final Project project, final Properties options) throws Exception {
-        return new ExtractionProcess(project, column, services, this, getBriefDescription(project), getEngineConfig());
+        return new ExtractionProcess(project, column, services, this, getBriefDescription(project), getEngineConfig(),
+                                     checkpointDirectory);
     }
 }
@@ -1,15 +1,27 @@
 package com.brainymachine.extraction.operations;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 import com.brainymachine.extraction.operations.ExtractionChange;
 import com.brainymachine.extraction.operations.ExtractionProcess;
+import com.brainymachine.extraction.services.CircuitBreaker;
+import com.brainymachine.extraction.services.CircuitOpenException;
 import com.brainymachine.extraction.services.ExtractionService;
+import com.brainymachine.extraction.services.LocalExtract;
+import com.brainymachine.extraction.services.ResultCache;
+import com.brainymachine.extraction.services.XPathEngine;
+import com.brainymachine.extraction.util.HashUtil;
+import com.brainymachine.extraction.util.SettingsUtil;
 
 import org.json.JSONObject;
 
@@ -31,13 +43,21 @@ import com.google.refine.process.LongRunningProcess;
 public class ExtractionProcess extends LongRunningProcess implements Runnable {
     private final static Logger LOGGER = Logger.getLogger(ExtractionProcess.class);
     private final static String[][] EMPTY_RESULT_SET = new String[0][];
+    /** The longest time in milliseconds a worker waits before checking an unavailable service again */
+    private final static long SERVICE_POLL_INTERVAL = 1000;
+    private final static String CHECKPOINT_SUFFIX = ".checkpoint";
     
     private final Project project;
     private final Column column;
     private final Map<String, ExtractionService> services;
     private final AbstractOperation parentOperation;
     private final JSONObject engineConfig;
+    private final File checkpointDirectory;
     private final long historyEntryId;
+    private ExtractionCheckpoint checkpoint;
+    private int callsSaved;
+    private final AtomicInteger pausedWorkers = new AtomicInteger();
+    private volatile int tasksEstimate = 1;
 
     /**
      * Creates a new <tt>ExtractionProcess</tt>
@@ -47,139 +67,301 @@ public class ExtractionProcess extends LongRunningProcess implements Runnable {
      * @param parentOperation The operation that creates this process
      * @param description The description of this operation
      * @param engineConfig The faceted browsing engine configuration
+     * @param checkpointDirectory The directory for checkpoints of partial results (can be null to disable checkpoints)
      */
     protected ExtractionProcess(final Project project, final Column column, final Map<String, ExtractionService> services,
                          final AbstractOperation parentOperation, final String description,
-                         final JSONObject engineConfig) {
+                         final JSONObject engineConfig, final File checkpointDirectory) {
         super(description);
         this.project = project;
         this.column = column;
         this.services = services;
         this.parentOperation = parentOperation;
         this.engineConfig = engineConfig;
+        this.checkpointDirectory = checkpointDirectory;
         historyEntryId = HistoryEntry.allocateID();
     }
 
     /** {@inheritDoc} */
     @Override
     public void run() {
-        final int columnIndex = project.columnModel.getColumnIndexByName(column.getName()) + 1;
-        final String[] serviceNames = services.keySet().toArray(new String[services.size()]);
-        final String[] columnNames = new String[services.size()];
-        final String[][][] namedEntities = performExtraction();
-        
-        int col_index = 0;
-        String col_name = "";
-        for (Map.Entry<String, ExtractionService> service : services.entrySet())
-        {
-            col_name =  service.getValue().getProperty("column");
-            col_name = col_name.equals("") ? service.getKey() : col_name;
-            columnNames[col_index++] = col_name;
-        }   
-        
-        
-        if (!_canceled) {
+        try {
+            final int columnIndex = project.columnModel.getColumnIndexByName(column.getName()) + 1;
+            final String[] serviceNames = services.keySet().toArray(new String[services.size()]);
+            final String[] columnNames = new String[services.size()];
+            final ExtractionResults namedEntities = performExtraction();
+        
+            int col_index = 0;
+            String col_name = "";
+            for (Map.Entry<String, ExtractionService> service : services.entrySet())
+            {
+                col_name =  service.getValue().getProperty("column");
+                col_name = col_name.equals("") ? service.getKey() : col_name;
+                columnNames[col_index++] = col_name;
+            }
+        
+        
+            if (_canceled)
+                return;
+            if (namedEntities == null) {
+                LOGGER.error(String.format("The extraction in column %s failed, so no columns were added.", column.getName()));
+                return;
+            }
             project.history.addEntry(new HistoryEntry(historyEntryId, project, _description, parentOperation,
                                                       new ExtractionChange(columnIndex, serviceNames, columnNames, namedEntities)));
+            // The results are safe in the history, so the checkpoint is no longer needed
+            if (checkpoint != null)
+                checkpoint.delete();
+        }
+        catch (RuntimeException error) {
+            LOGGER.error("The extraction in column " + column.getName() + " failed", error);
+        }
+        finally {
+            // Leave the process manager also when the extraction failed, so the next process can start
             project.processManager.onDoneProcess(this);
         }
     }
 
+    /**
+     * Gets the number of service calls the last extraction saved
+     * by extracting rows with identical text only once
+     * @return The number of saved calls
+     */
+    public int getCallsSaved() {
+        return callsSaved;
+    }
+    
+    /**
+     * Indicates whether the extraction is paused because a service is unavailable
+     * @return <tt>true</tt> if workers are waiting for a service
+     */
+    public boolean isPaused() {
+        return pausedWorkers.get() > 0;
+    }
+    
+    /**
+     * Waits until the service behind the open circuit breaker may be probed again,
+     * keeping the progress of the extraction
+     * @param circuitBreaker The open circuit breaker
+     * @return <tt>false</tt> if the process was cancelled while waiting
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    protected boolean awaitService(final CircuitBreaker circuitBreaker) throws InterruptedException {
+        if (pausedWorkers.getAndIncrement() == 0)
+            LOGGER.warn(String.format("Pausing extraction in column %s at %d%% until service %s is available.",
+                                      column.getName(), _progress, circuitBreaker.getName()));
+        try {
+            // Wait at least briefly, since another worker may be probing the service
+            do {
+                Thread.sleep(Math.max(SERVICE_POLL_INTERVAL / 10, Math.min(circuitBreaker.getRetryDelay(), SERVICE_POLL_INTERVAL)));
+            } while (!_canceled && circuitBreaker.getRetryDelay() > 0);
+        }
+        finally {
+            if (pausedWorkers.decrementAndGet() == 0 && !_canceled)
+                LOGGER.info(String.format("Resuming extraction in column %s.", column.getName()));
+        }
+        return !_canceled;
+    }
+    
     /**
      * Performs element extraction on all rows
-     * @return The extracted elements per row and service
-     */
-    protected String[][][] performExtraction() {
-        // Count all rows
-        final int rowsTotal = project.rows.size();
-        // Get the cell index of the column in which to perform extraction
-        final int cellIndex = column.getCellIndex();
-        // Get the filtered rows
-        final Set<Integer> filteredRowIndices = getFilteredRowIndices();
-        final int rowsFiltered = filteredRowIndices.size();
-        
-        // Go through each row and extract entities if the row is part of the filter
-        final String[][][] extractedElements = new String[rowsTotal][][];
-        int rowsProcessed = 0;
-        for (int rowIndex = 0; rowIndex < rowsTotal; rowIndex++) {
-            // Initialize to the empty result set, in case no entities are extracted
-            extractedElements[rowIndex] = EMPTY_RESULT_SET;
-            // If the row is part of the filter, extract entities
-            if (filteredRowIndices.contains(rowIndex)) {
-                final Row row = project.rows.get(rowIndex);
-                // Determine the text value of the cell
-                final Cell cell = row.getCell(cellIndex);
-                final Serializable cellValue = cell == null ? null : cell.value;
-                final String text = cellValue == null ? "" : cellValue.toString().trim();
-                // Perform extraction if the text is not empty
-                if (text.length() > 0) {
-                    LOGGER.info(String.format("Extracting elements in column %s on row %d of %d.",
-                                              column.getName(), rowsProcessed + 1, rowsFiltered));
-                    extractedElements[rowIndex] = performExtraction(text);
-                }
-                _progress = 100 * ++rowsProcessed / rowsFiltered;
-            }
+     * @return The extracted elements per row and service,
+     *         or <tt>null</tt> if the extraction was cancelled or failed, which is logged
+     */
+    protected ExtractionResults performExtraction() {
+        final ExtractionService[] serviceArray = services.values().toArray(new ExtractionService[services.size()]);
+        final AtomicInteger tasksDone = new AtomicInteger();
+        final AtomicInteger tasksFailed = new AtomicInteger();
+        
+        // Resume from the checkpoint of an earlier, interrupted run on the same column and services
+        checkpoint = openCheckpoint(serviceArray.length);
+        final ExtractionCheckpoint resumedCheckpoint = loadCheckpoint(checkpoint);
+        final CheckpointWriter checkpointWriter = checkpoint == null ? null
+                                                : new CheckpointWriter(checkpoint, SettingsUtil.getInt("checkpointInterval", 1000));
+        if (checkpointWriter != null)
+            checkpointWriter.start();
+        
+        // Dispatch extraction tasks for each row of the filter while the engine visits the rows,
+        // so extraction starts with the first row; the worker pool holds back the visitor
+        // while its maximum number of tasks is in flight.
+        // Each task stores the results of completed texts in their records, which the rows refer to,
+        // so rows keep their order, and hands completed texts to the checkpoint writer.
+        // Rows that are not part of the filter or have no text have no record.
+        final ResultAccumulator results = ResultAccumulator.fromSettings(serviceArray.length, project.rows.size());
+        ExtractionResults extractedElements = null;
+        callsSaved = 0;
+        tasksEstimate = 1;
+        final ExtractionWorkerPool workers = ExtractionWorkerPool.fromSettings();
+        final RowDispatcher dispatcher = new RowDispatcher(serviceArray, results, resumedCheckpoint, workers,
+                                                           tasksDone, tasksFailed, checkpointWriter);
+        try {
+            visitFilteredRows(dispatcher);
+            if (dispatcher.interruption != null)
+                throw dispatcher.interruption;
             // Exit directly if the process has been cancelled
             if (_canceled)
                 return null;
+            // Dispatch the incomplete batches and wait for the remaining tasks
+            dispatcher.finish();
+            workers.awaitCompletion();
+            extractedElements = results.finish();
+        }
+        catch (InterruptedException error) {
+            LOGGER.warn("The extraction was interrupted", error);
+            return null;
+        }
+        catch (IOException error) {
+            LOGGER.error("Could not store the results of the extraction in column " + column.getName(), error);
+            return null;
+        }
+        finally {
+            workers.shutdown();
+            dispatcher.distinctTexts.discard();
+            // Store the results that were completed, also when the run is cancelled
+            if (checkpointWriter != null) {
+                checkpointWriter.finish();
+                checkpoint.close();
+            }
+            if (extractedElements == null)
+                results.discard();
+        }
+        _progress = 100;
+        LOGGER.info(String.format("Extracted %d distinct values in column %s, saving %d service calls on duplicates "
+                                  + "and resuming %d rows from a checkpoint.",
+                                  dispatcher.distinctTexts.size(), column.getName(), callsSaved, dispatcher.rowsResumed));
+        // The XPath engine is shared by all services and concurrent runs, so its numbers are not those of this run
+        if (usesLocalServices(serviceArray))
+            LOGGER.info(String.format("Local XPath extraction totals of all runs since startup: %s.",
+                                      XPathEngine.getSharedEngine().getStatistics()));
+        if (tasksFailed.get() > 0)
+            LOGGER.warn(String.format("%d extractions in column %s failed; their cells contain an error, "
+                                      + "so they can be selected with a facet and extracted again.",
+                                      tasksFailed.get(), column.getName()));
+        if (_canceled) {
+            results.discard();
+            return null;
         }
         return extractedElements;
     }
-
     
     /**
-     * Performs extraction on the specified text
-     * @param text The text
-     * @return The extracted values per service
+     * Indicates whether any of the services extracts with the shared XPath engine
+     * @param serviceArray The services
+     * @return <tt>true</tt> if a service is a local extraction service
+     */
+    private static boolean usesLocalServices(final ExtractionService[] serviceArray) {
+        for (final ExtractionService service : serviceArray)
+            if (service instanceof LocalExtract)
+                return true;
+        return false;
+    }
+    
+    /**
+     * Updates the progress of the extraction from the number of finished tasks
+     * and the estimated number of tasks
+     * @param tasksDone The number of finished tasks
      */
-    protected String[][] performExtraction(final String text) {
-        // The execution of the services happens in parallel.
-        // Create the extractors and corresponding threads
-        final Extractor[] extractors = new Extractor[services.size()];
-        int i = 0;
-        for (final ExtractionService service : services.values()) {
-            final Extractor extractor = extractors[i++] = new Extractor(text, service);
-            extractor.start();
+    protected void updateProgress(final int tasksDone) {
+        // Only the end of the extraction is complete
+        _progress = (int)Math.min(99, 100L * tasksDone / Math.max(1, tasksEstimate));
+    }
+    
+    /**
+     * Opens the checkpoint of this project, column and service configuration
+     * @param serviceCount The number of services
+     * @return The checkpoint, or <tt>null</tt> if checkpoints are disabled
+     */
+    protected ExtractionCheckpoint openCheckpoint(final int serviceCount) {
+        if (checkpointDirectory == null)
+            return null;
+        if (!checkpointDirectory.isDirectory() && !checkpointDirectory.mkdirs()) {
+            LOGGER.warn("Could not create checkpoint directory " + checkpointDirectory);
+            return null;
         }
-        
-        // Wait for all threads to finish and collect their results
-        final String[][] extractions = new String[extractors.length][];
-        for (i = 0; i < extractors.length; i++) {
+        deleteStaleCheckpoints(SettingsUtil.getLong("checkpoint.maxAge",
+                                                    SettingsUtil.getLong("cache.ttl", ResultCache.DEFAULT_TTL)));
+        // Identify the checkpoint by column and services, including their settings
+        final StringBuilder configuration = new StringBuilder(column.getName());
+        for (final Map.Entry<String, ExtractionService> service : services.entrySet()) {
+            configuration.append('\n').append(service.getKey()).append('\n').append(service.getValue().getClass().getName());
+            for (final String propertyName : service.getValue().getPropertyNames())
+                configuration.append('\n').append(propertyName).append('=').append(service.getValue().getProperty(propertyName));
+        }
+        final String fileName = String.format("%d-%s%s", project.id, HashUtil.sha1(configuration.toString()),
+                                              CHECKPOINT_SUFFIX);
+        return new ExtractionCheckpoint(new File(checkpointDirectory, fileName), serviceCount);
+    }
+    
+    /**
+     * Deletes the checkpoints of all projects that have not been written to for longer than the maximum age,
+     * since their results may be outdated and their runs are unlikely to be resumed
+     * @param maxAge The maximum age in milliseconds
+     */
+    protected void deleteStaleCheckpoints(final long maxAge) {
+        final long now = System.currentTimeMillis();
+        final File[] files = checkpointDirectory.listFiles();
+        for (final File file : files == null ? new File[0] : files) {
+            if (!file.getName().endsWith(CHECKPOINT_SUFFIX) || now - file.lastModified() <= maxAge)
+                continue;
+            if (file.delete())
+                LOGGER.info(String.format("Deleted checkpoint %s, which is older than %d ms.", file, maxAge));
+            else
+                LOGGER.warn("Could not delete stale checkpoint " + file);
+        }
+    }
+    
+    /**
+     * Loads the index of the results in the checkpoint
+     * @param checkpoint The checkpoint (can be null)
+     * @return The checkpoint, or <tt>null</tt> if it has no results to resume
+     */
+    protected static ExtractionCheckpoint loadCheckpoint(final ExtractionCheckpoint checkpoint) {
+        if (checkpoint != null) {
             try {
-                extractors[i].join();
+                final int resumedTexts = checkpoint.load();
+                if (resumedTexts > 0) {
+                    LOGGER.info(String.format("Resuming %d extracted values from checkpoint %s.",
+                                              resumedTexts, checkpoint.getFile()));
+                    return checkpoint;
+                }
             }
-            catch (InterruptedException error) {
-                LOGGER.error("The extractor was interrupted", error);
+            catch (IOException error) {
+                LOGGER.warn("Could not read checkpoint " + checkpoint.getFile() + "; starting over.", error);
+                checkpoint.delete();
             }
-            extractions[i] = extractors[i].getExtractedElements();
         }
-        return extractions;
+        return null;
+    }
+
+    /**
+     * Groups services whose extractions can be combined in a single request,
+     * keeping the order of the first service of each group
+     * @param serviceArray The services
+     * @return The service groups
+     */
+    protected static ServiceGroup[] groupServices(final ExtractionService[] serviceArray) {
+        final LinkedHashMap<Object, ServiceGroup> groups = new LinkedHashMap<Object, ServiceGroup>();
+        for (int i = 0; i < serviceArray.length; i++) {
+            final String combinationKey = serviceArray[i].getCombinationKey();
+            final Object groupKey = combinationKey != null ? combinationKey : Integer.valueOf(i);
+            ServiceGroup group = groups.get(groupKey);
+            if (group == null)
+                groups.put(groupKey, group = new ServiceGroup());
+            group.add(serviceArray[i], i);
+        }
+        return groups.values().toArray(new ServiceGroup[groups.size()]);
     }
     
     /**
-     * Gets the indices of all rows that are part of the active selection filter
-     * @return The filtered rows
+     * Visits all rows that are part of the active selection filter, in ascending order
+     * @param visitor The visitor of the rows
      */
-    protected Set<Integer> getFilteredRowIndices() {
+    protected void visitFilteredRows(final RowVisitor visitor) {
         // Load the faceted browsing engine and configuration (including row filters)
         final Engine engine = new Engine(project);
         try { engine.initializeFromJSON(engineConfig); }
         catch (Exception e) {}
-        
-        // Collect indices of rows that belong to the filter
-        final HashSet<Integer> filteredRowIndices = new HashSet<Integer>(project.rows.size());
-        engine.getAllFilteredRows().accept(project, new RowVisitor() {
-            @Override
-            public boolean visit(final Project project, final int rowIndex, final Row row) {
-                filteredRowIndices.add(rowIndex);
-                return false;
-            }
-            @Override
-            public void start(Project project) {}
-            @Override
-            public void end(Project project) {}
-        });
-        return filteredRowIndices;
+        engine.getAllFilteredRows().accept(project, visitor);
     }
 
     /** {@inheritDoc} */
@@ -189,42 +371,466 @@ public class ExtractionProcess extends LongRunningProcess implements Runnable {
     }
     
     /**
-     * Thread that executes extraction service
+     * Visitor of the filtered rows that dispatches extraction tasks as the rows are visited
      */
-    protected static class Extractor extends Thread {
-        private final static String[] EMPTY_ELEMENTS_SET = new String[0];
+    protected class RowDispatcher implements RowVisitor {
+        private final ExtractionService[] serviceArray;
+        private final ServiceGroup[] groups;
+        private final ResultAccumulator results;
+        private ExtractionCheckpoint resumedCheckpoint;
+        private final ExtractionWorkerPool workers;
+        private final AtomicInteger tasksDone;
+        private final AtomicInteger tasksFailed;
+        private final CheckpointWriter checkpointWriter;
+        private final int cellIndex;
+        private final Extractor[] batches;
+        private final TextIndex distinctTexts;
+        private int rowsVisited;
+        private int rowsResumed;
+        private InterruptedException interruption;
+        
+        /**
+         * Creates a new <tt>RowDispatcher</tt>
+         * @param serviceArray The services
+         * @param results The accumulator of the results of the rows
+         * @param resumedCheckpoint The checkpoint with the results of texts to resume (can be null)
+         * @param workers The pool that executes the extraction tasks
+         * @param tasksDone The counter of finished extractions
+         * @param tasksFailed The counter of failed extractions
+         * @param checkpointWriter The writer of completed texts (can be null)
+         */
+        public RowDispatcher(final ExtractionService[] serviceArray, final ResultAccumulator results,
+                             final ExtractionCheckpoint resumedCheckpoint, final ExtractionWorkerPool workers,
+                             final AtomicInteger tasksDone, final AtomicInteger tasksFailed,
+                             final CheckpointWriter checkpointWriter) {
+            this.serviceArray = serviceArray;
+            this.groups = groupServices(serviceArray);
+            this.results = results;
+            this.resumedCheckpoint = resumedCheckpoint;
+            this.distinctTexts = TextIndex.forResults(results);
+            this.workers = workers;
+            this.tasksDone = tasksDone;
+            this.tasksFailed = tasksFailed;
+            this.checkpointWriter = checkpointWriter;
+            this.cellIndex = column.getCellIndex();
+            this.batches = new Extractor[groups.length];
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void start(final Project project) { }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void end(final Project project) { }
+        
+        /**
+         * {@inheritDoc}
+         * Stops the visit if the process is cancelled or interrupted.
+         */
+        @Override
+        public boolean visit(final Project project, final int rowIndex, final Row row) {
+            try {
+                dispatch(rowIndex, row);
+            }
+            catch (InterruptedException error) {
+                interruption = error;
+                return true;
+            }
+            return _canceled;
+        }
+        
+        /**
+         * Dispatches the extraction of the row's text, unless it has results already
+         * @param rowIndex The index of the row
+         * @param row The row
+         * @throws InterruptedException if the thread is interrupted while the worker pool is full
+         */
+        private void dispatch(final int rowIndex, final Row row) throws InterruptedException {
+            // Determine the text value of the cell
+            final Cell cell = row.getCell(cellIndex);
+            final Serializable cellValue = cell == null ? null : cell.value;
+            final String text = cellValue == null ? "" : cellValue.toString().trim();
+            // Share the results of rows with the same text, which are only extracted once
+            final int sharedRecord = text.length() > 0 ? distinctTexts.get(text) : -1;
+            final String[][] resumedElements = sharedRecord < 0 && text.length() > 0 ? resume(text) : null;
+            // Estimate the number of filtered rows from the part of the project visited so far
+            rowsVisited++;
+            tasksEstimate = Math.max(rowsVisited, (int)((long)rowsVisited * project.rows.size() / (rowIndex + 1)))
+                          * serviceArray.length;
+            if (sharedRecord >= 0) {
+                results.setRow(rowIndex, sharedRecord);
+                callsSaved += serviceArray.length;
+                tasksDone.addAndGet(serviceArray.length);
+            }
+            // Reuse results from the checkpoint
+            else if (resumedElements != null) {
+                final int record = results.newRecord();
+                results.complete(record, resumedElements);
+                results.setRow(rowIndex, record);
+                distinctTexts.put(text, record);
+                rowsResumed++;
+                tasksDone.addAndGet(serviceArray.length);
+            }
+            // Perform extraction if the text is not empty
+            else if (text.length() > 0) {
+                LOGGER.debug(String.format("Extracting elements in column %s on row %d.", column.getName(), rowIndex + 1));
+                final int record = results.newRecord();
+                results.setRow(rowIndex, record);
+                distinctTexts.put(text, record);
+                final PendingText pendingText = new PendingText(text, new String[serviceArray.length][], record, groups.length);
+                // Add the text to the pending batch of each service group, dispatching full batches
+                for (int i = 0; i < groups.length; i++) {
+                    if (batches[i] == null)
+                        batches[i] = new Extractor(ExtractionProcess.this, groups[i], results, tasksDone, tasksFailed,
+                                                   checkpointWriter);
+                    batches[i].add(pendingText);
+                    if (batches[i].size() >= groups[i].getBatchSize()) {
+                        workers.submit(batches[i]);
+                        batches[i] = null;
+                    }
+                }
+            }
+            else {
+                tasksDone.addAndGet(serviceArray.length);
+            }
+            updateProgress(tasksDone.get());
+        }
         
+        /**
+         * Reads the results of the text from the checkpoint
+         * @param text The text
+         * @return The extracted elements per service, or <tt>null</tt> if the text is not in the checkpoint
+         */
+        private String[][] resume(final String text) {
+            if (resumedCheckpoint == null)
+                return null;
+            try {
+                return resumedCheckpoint.getResults(text);
+            }
+            catch (IOException error) {
+                LOGGER.warn("Could not read checkpoint " + resumedCheckpoint.getFile()
+                            + "; extracting the remaining rows again.", error);
+                resumedCheckpoint = null;
+                return null;
+            }
+        }
+        
+        /**
+         * Dispatches the incomplete batches once all rows have been visited
+         * @throws InterruptedException if the thread is interrupted while the worker pool is full
+         */
+        public void finish() throws InterruptedException {
+            // All filtered rows are known now
+            tasksEstimate = Math.max(1, rowsVisited * serviceArray.length);
+            for (int i = 0; i < batches.length; i++) {
+                if (batches[i] != null) {
+                    workers.submit(batches[i]);
+                    batches[i] = null;
+                }
+            }
+            updateProgress(tasksDone.get());
+        }
+    }
+    
+    /**
+     * Services that are executed together, with the indexes of their results within a row's results
+     */
+    protected static class ServiceGroup {
+        private final ArrayList<ExtractionService> services = new ArrayList<ExtractionService>();
+        private final ArrayList<Integer> resultIndexes = new ArrayList<Integer>();
+        
+        /**
+         * Adds a service to the group
+         * @param service The service
+         * @param resultIndex The index of the service's result within a row's results
+         */
+        public void add(final ExtractionService service, final int resultIndex) {
+            services.add(service);
+            resultIndexes.add(resultIndex);
+        }
+        
+        /**
+         * Gets the number of services in the group
+         * @return The number of services
+         */
+        public int size() {
+            return services.size();
+        }
+        
+        /**
+         * Gets the number of texts the group handles in a single request
+         * @return The smallest batch size of the services
+         */
+        public int getBatchSize() {
+            int batchSize = Integer.MAX_VALUE;
+            for (final ExtractionService service : services)
+                batchSize = Math.min(batchSize, service.getBatchSize());
+            return Math.max(1, batchSize);
+        }
+    }
+    
+    /**
+     * Text that is being extracted by one or more service groups
+     */
+    protected static class PendingText {
         private final String text;
-        private final ExtractionService service;
-        private String[] extractedElements;
+        private final String[][] elements;
+        private final int record;
+        private final AtomicInteger remainingGroups;
+        private volatile boolean failed;
         
         /**
-         * Creates a new <tt>Extractor</tt>
+         * Creates a new <tt>PendingText</tt>
          * @param text The text to analyze
-         * @param service The service that will analyze the text
+         * @param elements The results of the text, per service
+         * @param record The index of the text's record
+         * @param groupCount The number of service groups that will analyze the text
          */
-        public Extractor(final String text, final ExtractionService service) {
+        public PendingText(final String text, final String[][] elements, final int record, final int groupCount) {
             this.text = text;
-            this.service = service;
-            this.extractedElements = EMPTY_ELEMENTS_SET;
+            this.elements = elements;
+            this.record = record;
+            this.remainingGroups = new AtomicInteger(groupCount);
+        }
+        
+        /**
+         * Marks the text as done by a service group
+         * @param success Whether the service group succeeded
+         * @return <tt>true</tt> if all service groups are done
+         */
+        public boolean done(final boolean success) {
+            if (!success)
+                failed = true;
+            return remainingGroups.decrementAndGet() == 0;
+        }
+        
+        /**
+         * Indicates whether a service group failed on the text
+         * @return <tt>true</tt> if the text has failed results
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+    }
+    
+    /**
+     * Thread that appends completed texts to the checkpoint,
+     * flushing after every specified number of texts
+     */
+    protected static class CheckpointWriter extends Thread {
+        private final static PendingText END = new PendingText("", EMPTY_RESULT_SET, -1, 0);
+        
+        private final ExtractionCheckpoint checkpoint;
+        private final int interval;
+        private final LinkedBlockingQueue<PendingText> completedTexts;
+        private volatile boolean stopped;
+        
+        /**
+         * Creates a new <tt>CheckpointWriter</tt>
+         * @param checkpoint The checkpoint
+         * @param interval The number of texts after which the checkpoint is flushed
+         */
+        public CheckpointWriter(final ExtractionCheckpoint checkpoint, final int interval) {
+            super("extraction-checkpoint-writer");
+            setDaemon(true);
+            this.checkpoint = checkpoint;
+            this.interval = Math.max(1, interval);
+            this.completedTexts = new LinkedBlockingQueue<PendingText>();
+        }
+        
+        /**
+         * Queues a completed text for the checkpoint, unless the writer stopped after an error
+         * @param completedText The completed text
+         */
+        public void completed(final PendingText completedText) {
+            // Do not keep texts that are no longer written
+            if (!stopped)
+                completedTexts.offer(completedText);
         }
         
         /**
-         * Gets the named entities the service extracted from the text
-         * @return The extracted named entities
+         * Writes the remaining queued texts and closes the checkpoint
          */
-        public String[] getExtractedElements() {
-            return extractedElements;
+        public void finish() {
+            completedTexts.offer(END);
+            try {
+                join();
+            }
+            catch (InterruptedException error) {
+                LOGGER.warn("Interrupted while finishing checkpoint " + checkpoint.getFile(), error);
+            }
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    // Flush while waiting, so idle periods do not leave results unwritten
+                    PendingText completedText = completedTexts.poll();
+                    if (completedText == null) {
+                        checkpoint.flush();
+                        completedText = completedTexts.take();
+                    }
+                    if (completedText == END)
+                        break;
+                    checkpoint.append(completedText.text, completedText.elements);
+                    if (checkpoint.getPendingRecords() >= interval)
+                        checkpoint.flush();
+                }
+                checkpoint.flush();
+            }
+            catch (IOException error) {
+                LOGGER.error("Could not write checkpoint " + checkpoint.getFile(), error);
+            }
+            catch (InterruptedException error) {
+                LOGGER.warn("The checkpoint writer was interrupted", error);
+            }
+            catch (RuntimeException error) {
+                LOGGER.error("Could not write checkpoint " + checkpoint.getFile(), error);
+            }
+            finally {
+                stopped = true;
+                completedTexts.clear();
+                checkpoint.close();
+            }
+        }
+    }
+    
+    /**
+     * Task that executes a group of extraction services on a batch of texts
+     */
+    protected static class Extractor implements Runnable {
+        private final static String[] EMPTY_ELEMENTS_SET = new String[0];
+        
+        private final ExtractionProcess process;
+        private final ServiceGroup group;
+        private final ResultAccumulator results;
+        private final AtomicInteger tasksDone;
+        private final AtomicInteger tasksFailed;
+        private final CheckpointWriter checkpointWriter;
+        private final ArrayList<String> texts;
+        private final ArrayList<PendingText> pendingTexts;
+        private final HashSet<PendingText> failedTexts;
+        
+        /**
+         * Creates a new <tt>Extractor</tt>
+         * @param process The process, which pauses while a service is unavailable
+         * @param group The services that will analyze the texts
+         * @param results The accumulator of the results of completed texts
+         * @param tasksDone The counter of finished extractions
+         * @param tasksFailed The counter of failed extractions
+         * @param checkpointWriter The writer of completed texts (can be null)
+         */
+        public Extractor(final ExtractionProcess process, final ServiceGroup group, final ResultAccumulator results,
+                         final AtomicInteger tasksDone, final AtomicInteger tasksFailed,
+                         final CheckpointWriter checkpointWriter) {
+            this.process = process;
+            this.group = group;
+            this.results = results;
+            this.tasksDone = tasksDone;
+            this.tasksFailed = tasksFailed;
+            this.checkpointWriter = checkpointWriter;
+            this.texts = new ArrayList<String>();
+            this.pendingTexts = new ArrayList<PendingText>();
+            this.failedTexts = new HashSet<PendingText>();
+        }
+        
+        /**
+         * Adds a text to the batch
+         * @param pendingText The text to analyze
+         */
+        public void add(final PendingText pendingText) {
+            for (final int resultIndex : group.resultIndexes)
+                pendingText.elements[resultIndex] = EMPTY_ELEMENTS_SET;
+            texts.add(pendingText.text);
+            pendingTexts.add(pendingText);
+        }
+        
+        /**
+         * Gets the number of texts in the batch
+         * @return The number of texts
+         */
+        public int size() {
+            return texts.size();
         }
         
         /** {@inheritDoc} */
         @Override
         public void run() {
+            boolean success = false;
             try {
-                extractedElements = service.extractElementValues(text);
+                // Extract again when the service is available, instead of failing while its circuit is open
+                while (!success) {
+                    try {
+                        extract();
+                        success = true;
+                    }
+                    catch (CircuitOpenException error) {
+                        if (!process.awaitService(error.getCircuitBreaker()))
+                            break;
+                    }
+                }
             }
             catch (Exception error) {
+                // Mark the results as failed instead of empty, so they can be told apart from texts without elements
                 LOGGER.error("The extractor failed", error);
+                for (final PendingText pendingText : pendingTexts)
+                    for (final int resultIndex : group.resultIndexes)
+                        pendingText.elements[resultIndex] = null;
+                tasksFailed.addAndGet(texts.size() * group.size());
+            }
+            finally {
+                process.updateProgress(tasksDone.addAndGet(texts.size() * group.size()));
+                if (success)
+                    tasksFailed.addAndGet(failedTexts.size() * group.size());
+                // Store texts that all service groups are done with,
+                // and hand those they all completed to the checkpoint
+                for (final PendingText pendingText : pendingTexts) {
+                    if (pendingText.done(success && !failedTexts.contains(pendingText))) {
+                        results.complete(pendingText.record, pendingText.elements);
+                        if (!pendingText.isFailed() && checkpointWriter != null)
+                            checkpointWriter.completed(pendingText);
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Extracts the elements of all texts in the batch
+         * @throws Exception if the extraction fails
+         */
+        private void extract() throws Exception {
+            failedTexts.clear();
+            if (group.size() == 1) {
+                final ExtractionService service = group.services.get(0);
+                final int resultIndex = group.resultIndexes.get(0);
+                if (texts.size() == 1) {
+                    final String[] extractedElements = service.extractElementValues(texts.get(0));
+                    pendingTexts.get(0).elements[resultIndex] = extractedElements;
+                    if (extractedElements == null)
+                        failedTexts.add(pendingTexts.get(0));
+                }
+                else {
+                    final String[][] extractedElements = service.extractElementValues(texts);
+                    for (int i = 0; i < extractedElements.length; i++) {
+                        pendingTexts.get(i).elements[resultIndex] = extractedElements[i];
+                        if (extractedElements[i] == null)
+                            failedTexts.add(pendingTexts.get(i));
+                    }
+                }
+            }
+            else {
+                final String[][][] extractedElements = group.services.get(0).extractElementValues(texts, group.services);
+                for (int i = 0; i < extractedElements.length; i++) {
+                    // A text can fail on its own, such as a page that cannot be fetched
+                    if (extractedElements[i] == null)
+                        failedTexts.add(pendingTexts.get(i));
+                    for (int j = 0; j < group.size(); j++)
+                        pendingTexts.get(i).elements[group.resultIndexes.get(j)]
+                            = extractedElements[i] == null ? null : extractedElements[i][j];
+                }
             }
         }
     }
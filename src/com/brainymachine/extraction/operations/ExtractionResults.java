@@ -0,0 +1,65 @@
+package com.brainymachine.extraction.operations;
+
+/**
+ * Read access to the elements extracted per row and service,
+ * regardless of whether they are kept on the heap or in a file
+ */
+public interface ExtractionResults {
+    /**
+     * Gets the number of services
+     * @return The number of services
+     */
+    public int getServiceCount();
+    
+    /**
+     * Gets the number of rows
+     * @return The number of rows
+     */
+    public int getRowCount();
+    
+    /**
+     * Indicates whether the row has results, which is not the case for rows that were not extracted
+     * @param row The row number
+     * @return <tt>true</tt> if the row has a result for every service
+     */
+    public boolean hasResults(int row);
+    
+    /**
+     * Indicates whether the service failed on the row
+     * @param row The row number
+     * @param service The service number
+     * @return <tt>true</tt> if the extraction failed
+     */
+    public boolean isFailed(int row, int service);
+    
+    /**
+     * Indicates whether any service failed on the row
+     * @param row The row number
+     * @return <tt>true</tt> if an extraction failed
+     */
+    public boolean hasFailures(int row);
+    
+    /**
+     * Gets the number of elements the service extracted on the row
+     * @param row The row number
+     * @param service The service number
+     * @return The number of elements
+     */
+    public int getElementCount(int row, int service);
+    
+    /**
+     * Gets the largest number of elements any service extracted on the row
+     * @param row The row number
+     * @return The number of elements
+     */
+    public int getMaxElementCount(int row);
+    
+    /**
+     * Gets an element the service extracted on the row
+     * @param row The row number
+     * @param service The service number
+     * @param index The element number
+     * @return The element
+     */
+    public String getElement(int row, int service, int index);
+}
@@ -0,0 +1,139 @@
+package com.brainymachine.extraction.operations;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Bounded pool of workers that execute extraction tasks,
+ * limiting the number of tasks that are queued or running at the same time
+ */
+public class ExtractionWorkerPool {
+    private final static Logger LOGGER = Logger.getLogger(ExtractionWorkerPool.class);
+    private final static AtomicInteger POOL_NUMBER = new AtomicInteger();
+    
+    /** The default number of worker threads */
+    public final static int DEFAULT_WORKERS = 8;
+    /** The default maximum number of queued or running tasks */
+    public final static int DEFAULT_MAX_IN_FLIGHT = 64;
+    
+    private final ExecutorService executor;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    
+    /**
+     * Creates a new <tt>ExtractionWorkerPool</tt>
+     * @param workers The number of worker threads (ignored for virtual threads)
+     * @param maxInFlight The maximum number of queued or running tasks
+     * @param virtualThreads Whether to use virtual threads if the JVM supports them
+     */
+    public ExtractionWorkerPool(final int workers, final int maxInFlight, final boolean virtualThreads) {
+        final ExecutorService virtualExecutor = virtualThreads ? createVirtualThreadExecutor() : null;
+        this.executor = virtualExecutor != null ? virtualExecutor
+                      : Executors.newFixedThreadPool(Math.max(1, workers), new WorkerThreadFactory());
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.inFlight = new Semaphore(this.maxInFlight);
+    }
+    
+    /**
+     * Creates a new <tt>ExtractionWorkerPool</tt> configured through the
+     * <tt>extraction.workers</tt>, <tt>extraction.maxInFlight</tt>
+     * and <tt>extraction.executor</tt> (<tt>fixed</tt> or <tt>virtual</tt>) settings
+     * @return The worker pool
+     */
+    public static ExtractionWorkerPool fromSettings() {
+        return new ExtractionWorkerPool(SettingsUtil.getInt("workers", DEFAULT_WORKERS),
+                                        SettingsUtil.getInt("maxInFlight", DEFAULT_MAX_IN_FLIGHT),
+                                        "virtual".equals(SettingsUtil.getString("executor", "fixed")));
+    }
+    
+    /**
+     * Gets the maximum number of queued or running tasks
+     * @return The maximum number of tasks
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+    
+    /**
+     * Submits the task for execution, blocking while the maximum number of tasks is in flight
+     * @param task The task
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void submit(final Runnable task) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    }
+                    finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException error) {
+            inFlight.release();
+            throw error;
+        }
+    }
+    
+    /**
+     * Waits until all submitted tasks have finished
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void awaitCompletion() throws InterruptedException {
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+    }
+    
+    /**
+     * Stops the workers, interrupting running tasks
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Creates an executor that starts a virtual thread per task
+     * @return The executor, or <tt>null</tt> if the JVM does not support virtual threads
+     */
+    protected static ExecutorService createVirtualThreadExecutor() {
+        try {
+            final Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        }
+        catch (Exception error) {
+            LOGGER.info("Virtual threads are not supported by this JVM; using a fixed thread pool.");
+            return null;
+        }
+    }
+    
+    /**
+     * Factory of named daemon worker threads
+     */
+    protected static class WorkerThreadFactory implements ThreadFactory {
+        private final int poolNumber = POOL_NUMBER.incrementAndGet();
+        private final AtomicInteger threadNumber = new AtomicInteger();
+        
+        /** {@inheritDoc} */
+        @Override
+        public Thread newThread(final Runnable task) {
+            final Thread thread = new Thread(task, String.format("extraction-%d-worker-%d",
+                                                                 poolNumber, threadNumber.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.brainymachine.extraction.operations;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Collects the results of an extraction run as its texts complete, in any order.
+ * Each extracted text has a record with its results, which rows with the same text share.
+ */
+public abstract class ResultAccumulator {
+    private final static Logger LOGGER = Logger.getLogger(ResultAccumulator.class);
+    private final static String[][] EMPTY_RESULT_SET = new String[0][];
+    
+    /** The default number of project rows from which results are spilled to a file */
+    public final static int DEFAULT_SPILL_MIN_ROWS = 100000;
+    protected final static String SPILL_SUFFIX = ".spill";
+    private static File spillDirectory;
+    
+    protected final int serviceCount;
+    protected final int rowCount;
+    /** Per row, the index of its record, or -1 if the row is not extracted */
+    protected final int[] rowRecords;
+    
+    /**
+     * Creates a new <tt>ResultAccumulator</tt> without results
+     * @param serviceCount The number of services
+     * @param rowCount The number of rows
+     */
+    protected ResultAccumulator(final int serviceCount, final int rowCount) {
+        this.serviceCount = serviceCount;
+        this.rowCount = rowCount;
+        this.rowRecords = new int[rowCount];
+        Arrays.fill(rowRecords, -1);
+    }
+    
+    /**
+     * Creates a new <tt>ResultAccumulator</tt> that keeps the results of projects
+     * with at least <tt>extraction.spill.minRows</tt> rows in a file in the spill directory,
+     * and the results of smaller projects, or of all projects if there is no spill directory, on the heap
+     * @param serviceCount The number of services
+     * @param rowCount The number of rows
+     * @return The accumulator
+     */
+    public static ResultAccumulator fromSettings(final int serviceCount, final int rowCount) {
+        final File directory = getSpillDirectory();
+        if (directory != null && rowCount >= SettingsUtil.getInt("spill.minRows", DEFAULT_SPILL_MIN_ROWS)) {
+            try {
+                return new ResultSpill(File.createTempFile("extraction-", SPILL_SUFFIX, directory), serviceCount, rowCount);
+            }
+            catch (IOException error) {
+                LOGGER.warn("Could not create a spill file; keeping the results on the heap.", error);
+            }
+        }
+        return new HeapResults(serviceCount, rowCount);
+    }
+    
+    /**
+     * Gets the directory of spill files
+     * @return The directory, or <tt>null</tt> if results are kept on the heap
+     */
+    public static synchronized File getSpillDirectory() {
+        return spillDirectory;
+    }
+    
+    /**
+     * Sets the directory of spill files, deleting the spill files of earlier sessions,
+     * which only the changes of those sessions referred to
+     * @param directory The directory (created if it does not exist), or <tt>null</tt> to keep results on the heap
+     */
+    public static synchronized void setSpillDirectory(final File directory) {
+        spillDirectory = null;
+        if (directory == null)
+            return;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            LOGGER.error("Could not create spill directory " + directory + "; keeping results on the heap.");
+            return;
+        }
+        final File[] files = directory.listFiles();
+        for (final File file : files == null ? new File[0] : files)
+            if (file.getName().endsWith(SPILL_SUFFIX) && !file.delete())
+                LOGGER.warn("Could not delete spill file " + file);
+        spillDirectory = directory;
+    }
+    
+    /**
+     * Gets the number of services
+     * @return The number of services
+     */
+    public int getServiceCount() {
+        return serviceCount;
+    }
+    
+    /**
+     * Gets the number of rows
+     * @return The number of rows
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+    
+    /**
+     * Creates a record for the results of a text
+     * @return The index of the record
+     */
+    public abstract int newRecord();
+    
+    /**
+     * Sets the record that holds the results of the row
+     * @param row The row number
+     * @param recordIndex The index of the record
+     */
+    public void setRow(final int row, final int recordIndex) {
+        rowRecords[row] = recordIndex;
+    }
+    
+    /**
+     * Stores the results of a text once all services are done with it
+     * @param recordIndex The index of the text's record
+     * @param elements The extracted elements per service, <tt>null</tt> where a service failed
+     */
+    public abstract void complete(int recordIndex, String[][] elements);
+    
+    /**
+     * Ends the run once all records are complete
+     * @return The results of all rows
+     * @throws IOException if the results could not be stored
+     */
+    public abstract ExtractionResults finish() throws IOException;
+    
+    /**
+     * Releases the results of a run that is cancelled or failed, or of a change that keeps them elsewhere
+     */
+    public abstract void discard();
+    
+    /**
+     * Accumulator that keeps the records on the heap, and ends as an <tt>ElementTable</tt>
+     */
+    protected static class HeapResults extends ResultAccumulator {
+        private final ArrayList<String[][]> records = new ArrayList<String[][]>();
+        
+        /**
+         * Creates a new <tt>HeapResults</tt>
+         * @param serviceCount The number of services
+         * @param rowCount The number of rows
+         */
+        public HeapResults(final int serviceCount, final int rowCount) {
+            super(serviceCount, rowCount);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public synchronized int newRecord() {
+            records.add(null);
+            return records.size() - 1;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public synchronized void complete(final int recordIndex, final String[][] elements) {
+            records.set(recordIndex, elements);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public synchronized ExtractionResults finish() {
+            final ElementTable.Builder builder = new ElementTable.Builder(serviceCount, rowCount);
+            for (int r = 0; r < rowCount; r++) {
+                final String[][] elements = rowRecords[r] < 0 ? EMPTY_RESULT_SET : records.get(rowRecords[r]);
+                if (elements == null)
+                    throw new IllegalStateException(String.format("The results of row %d were not completed.", r));
+                builder.addRow(elements);
+            }
+            records.clear();
+            return builder.build();
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public synchronized void discard() {
+            records.clear();
+        }
+    }
+}
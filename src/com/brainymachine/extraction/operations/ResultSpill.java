@@ -0,0 +1,269 @@
+package com.brainymachine.extraction.operations;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Results of an extraction run that are kept in a spill file instead of on the heap.
+ * Completed texts are appended to the file as records, while the heap only holds
+ * the record of each row and the offset of each record; rows with the same text share a record.
+ * Once the run is finished, the file is memory-mapped and rows are read from it on demand.
+ */
+public class ResultSpill extends ResultAccumulator implements ExtractionResults {
+    private final static Logger LOGGER = Logger.getLogger(ResultSpill.class);
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    /** The largest part of the file that is mapped at once */
+    private final static int SEGMENT_SIZE = 1 << 30;
+    
+    private final File file;
+    private final int segmentSize;
+    private final DataOutputStream output;
+    private final ByteArrayOutput record = new ByteArrayOutput();
+    private long[] recordOffsets = new long[1024];
+    private int recordCount;
+    private long size;
+    private IOException writeError;
+    private MappedByteBuffer[] segments;
+    private int decodedRecord = -1;
+    private String[][] decodedElements;
+    
+    /**
+     * Creates a new <tt>ResultSpill</tt>
+     * @param file The spill file, which is overwritten
+     * @param serviceCount The number of services
+     * @param rowCount The number of rows
+     * @throws IOException if the spill file cannot be created
+     */
+    public ResultSpill(final File file, final int serviceCount, final int rowCount) throws IOException {
+        this(file, serviceCount, rowCount, SEGMENT_SIZE);
+    }
+    
+    /**
+     * Creates a new <tt>ResultSpill</tt>
+     * @param file The spill file, which is overwritten
+     * @param serviceCount The number of services
+     * @param rowCount The number of rows
+     * @param segmentSize The largest part of the file that is mapped at once
+     * @throws IOException if the spill file cannot be created
+     */
+    protected ResultSpill(final File file, final int serviceCount, final int rowCount, final int segmentSize)
+              throws IOException {
+        super(serviceCount, rowCount);
+        this.file = file;
+        this.segmentSize = segmentSize;
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        Arrays.fill(recordOffsets, -1);
+    }
+    
+    /**
+     * Gets the spill file
+     * @return The file
+     */
+    public File getFile() {
+        return file;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public synchronized int newRecord() {
+        if (recordCount == recordOffsets.length) {
+            recordOffsets = Arrays.copyOf(recordOffsets, recordOffsets.length * 2);
+            Arrays.fill(recordOffsets, recordCount, recordOffsets.length, -1);
+        }
+        return recordCount++;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The record is appended to the spill file; a record never spans two mapped segments.
+     */
+    @Override
+    public synchronized void complete(final int recordIndex, final String[][] elements) {
+        if (writeError != null)
+            return;
+        try {
+            record.reset();
+            for (final String[] values : elements) {
+                if (values == null) {
+                    record.writeInt(-1);
+                    continue;
+                }
+                record.writeInt(values.length);
+                for (final String value : values) {
+                    final byte[] bytes = value.getBytes(UTF8);
+                    record.writeInt(bytes.length);
+                    record.write(bytes, 0, bytes.length);
+                }
+            }
+            final int length = record.size();
+            if (length > segmentSize)
+                throw new IOException(String.format("The results of a text take %d bytes, more than the %d bytes of a spill segment.",
+                                                    length, segmentSize));
+            // Start the record in the next segment if it does not fit in the current one
+            final long segmentEnd = (size / segmentSize + 1) * segmentSize;
+            if (size + length > segmentEnd) {
+                while (size < segmentEnd) {
+                    output.write(0);
+                    size++;
+                }
+            }
+            recordOffsets[recordIndex] = size;
+            record.writeTo(output);
+            size += length;
+        }
+        catch (IOException error) {
+            writeError = error;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Maps the spill file, which is read from then on.
+     */
+    @Override
+    public synchronized ExtractionResults finish() throws IOException {
+        output.close();
+        if (writeError != null)
+            throw writeError;
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            segments = new MappedByteBuffer[(int)((size + segmentSize - 1) / segmentSize)];
+            for (int i = 0; i < segments.length; i++) {
+                final long start = (long)i * segmentSize;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segmentSize, size - start));
+            }
+        }
+        finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+        LOGGER.info(String.format("Spilled the results of %d texts in %d bytes to %s.", recordCount, size, file));
+        return this;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void discard() {
+        try {
+            output.close();
+        }
+        catch (IOException error) {
+            LOGGER.warn("Could not close spill file " + file, error);
+        }
+        segments = null;
+        // Mapped files cannot be deleted on all platforms, so those are deleted with the spill directory at startup
+        if (file.exists() && !file.delete())
+            LOGGER.info("Could not delete spill file " + file + " yet; it is deleted at the next startup.");
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasResults(final int row) {
+        return rowRecords[row] >= 0;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public boolean isFailed(final int row, final int service) {
+        return hasResults(row) && decode(row)[service] == null;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasFailures(final int row) {
+        if (hasResults(row))
+            for (final String[] values : decode(row))
+                if (values == null)
+                    return true;
+        return false;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public int getElementCount(final int row, final int service) {
+        if (!hasResults(row))
+            return 0;
+        final String[] values = decode(row)[service];
+        return values == null ? 0 : values.length;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public int getMaxElementCount(final int row) {
+        int maxElements = 0;
+        if (hasResults(row))
+            for (final String[] values : decode(row))
+                if (values != null)
+                    maxElements = Math.max(maxElements, values.length);
+        return maxElements;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public String getElement(final int row, final int service, final int index) {
+        return decode(row)[service][index];
+    }
+    
+    /**
+     * Reads the record of the row from the mapped file,
+     * keeping the last record, since rows are mostly read one after the other
+     * @param row The row number
+     * @return The extracted elements per service, <tt>null</tt> where a service failed
+     */
+    private synchronized String[][] decode(final int row) {
+        final int recordIndex = rowRecords[row];
+        if (recordIndex == decodedRecord)
+            return decodedElements;
+        if (segments == null)
+            throw new IllegalStateException("The spill file " + file + " is not mapped.");
+        final long offset = recordOffsets[recordIndex];
+        if (offset < 0)
+            throw new IllegalStateException(String.format("The results of row %d were not completed.", row));
+        final ByteBuffer buffer = segments[(int)(offset / segmentSize)].duplicate();
+        buffer.position((int)(offset % segmentSize));
+        final String[][] elements = new String[serviceCount][];
+        for (int i = 0; i < serviceCount; i++) {
+            final int valueCount = buffer.getInt();
+            if (valueCount < 0)
+                continue;
+            elements[i] = new String[valueCount];
+            for (int j = 0; j < valueCount; j++) {
+                final byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                elements[i][j] = new String(bytes, UTF8);
+            }
+        }
+        decodedRecord = recordIndex;
+        decodedElements = elements;
+        return elements;
+    }
+    
+    /**
+     * Byte array stream with integer writes, for encoding a record before it is appended
+     */
+    private static class ByteArrayOutput extends ByteArrayOutputStream {
+        /**
+         * Writes an integer in big-endian order, as read by a <tt>ByteBuffer</tt>
+         * @param value The integer
+         */
+        public void writeInt(final int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.brainymachine.extraction.operations;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.apache.log4j.Logger;
+
+import com.brainymachine.extraction.util.HashUtil;
+import com.brainymachine.extraction.util.LongHashIndex;
+
+/**
+ * Index of the distinct texts of an extraction run with the records of their results,
+ * so rows with the same text share a record.
+ * Texts are found by their 64-bit hash, and a match is confirmed against the text itself,
+ * which runs that spill their results keep in a file next to the results instead of on the heap.
+ * A text whose hash collides with another text is not indexed, so its rows are extracted on their own.
+ * Not thread-safe.
+ */
+public class TextIndex {
+    private final static Logger LOGGER = Logger.getLogger(TextIndex.class);
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static long NOT_FOUND = -1;
+    
+    private final LongHashIndex index = new LongHashIndex(1024);
+    /** Per entry, the index of its record */
+    private int[] records = new int[1024];
+    private int size;
+    /** The texts of the entries if they are kept on the heap, or <tt>null</tt> if they are in the file */
+    private final ArrayList<String> texts;
+    private final File file;
+    private final OutputStream output;
+    private RandomAccessFile input;
+    /** Per entry, the offset of its text in the file, followed by the end of the file */
+    private long[] offsets;
+    private long flushedSize;
+    private boolean failed;
+    
+    /**
+     * Creates a new <tt>TextIndex</tt> that keeps the texts on the heap
+     */
+    public TextIndex() {
+        this.texts = new ArrayList<String>();
+        this.file = null;
+        this.output = null;
+    }
+    
+    /**
+     * Creates a new <tt>TextIndex</tt> that keeps the texts in a file
+     * @param file The file of the texts, which is overwritten
+     * @throws IOException if the file cannot be created
+     */
+    public TextIndex(final File file) throws IOException {
+        this.texts = null;
+        this.file = file;
+        this.output = new BufferedOutputStream(new FileOutputStream(file), 65536);
+        this.offsets = new long[1025];
+    }
+    
+    /**
+     * Creates a new <tt>TextIndex</tt> that keeps the texts in a file next to the results if those are spilled,
+     * or on the heap otherwise
+     * @param results The accumulator of the results of the run
+     * @return The index
+     */
+    public static TextIndex forResults(final ResultAccumulator results) {
+        if (results instanceof ResultSpill) {
+            try {
+                return new TextIndex(File.createTempFile("extraction-texts-", ResultAccumulator.SPILL_SUFFIX,
+                                                         ((ResultSpill)results).getFile().getParentFile()));
+            }
+            catch (IOException error) {
+                LOGGER.warn("Could not create a spill file for texts; keeping them on the heap.", error);
+            }
+        }
+        return new TextIndex();
+    }
+    
+    /**
+     * Gets the number of indexed texts
+     * @return The number of texts
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Gets the record of the text
+     * @param text The text
+     * @return The index of the record, or -1 if the text is not indexed
+     */
+    public int get(final String text) {
+        final byte[] bytes = text.getBytes(UTF8);
+        final long entry = index.get(HashUtil.hash64(bytes), NOT_FOUND);
+        if (entry == NOT_FOUND || failed)
+            return -1;
+        try {
+            return matches((int)entry, text, bytes) ? records[(int)entry] : -1;
+        }
+        catch (IOException error) {
+            fail(error);
+            return -1;
+        }
+    }
+    
+    /**
+     * Indexes the record of a text that is not indexed yet
+     * @param text The text
+     * @param record The index of the text's record
+     */
+    public void put(final String text, final int record) {
+        final byte[] bytes = text.getBytes(UTF8);
+        final long hash = HashUtil.hash64(bytes);
+        if (failed || index.get(hash, NOT_FOUND) != NOT_FOUND)
+            return;
+        try {
+            if (texts != null) {
+                texts.add(text);
+            }
+            else {
+                output.write(bytes);
+                if (size + 2 > offsets.length)
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                offsets[size + 1] = offsets[size] + bytes.length;
+            }
+        }
+        catch (IOException error) {
+            fail(error);
+            return;
+        }
+        if (size == records.length)
+            records = Arrays.copyOf(records, records.length * 2);
+        records[size] = record;
+        index.put(hash, size++);
+    }
+    
+    /**
+     * Indicates whether the entry holds the text
+     * @param entry The entry
+     * @param text The text
+     * @param bytes The text in UTF-8
+     * @return <tt>true</tt> if the texts are equal
+     * @throws IOException if the text of the entry cannot be read
+     */
+    private boolean matches(final int entry, final String text, final byte[] bytes) throws IOException {
+        if (texts != null)
+            return texts.get(entry).equals(text);
+        if (offsets[entry + 1] - offsets[entry] != bytes.length)
+            return false;
+        // Texts are read from the file once they are written to it
+        if (offsets[entry + 1] > flushedSize) {
+            output.flush();
+            flushedSize = offsets[size];
+        }
+        if (input == null)
+            input = new RandomAccessFile(file, "r");
+        final byte[] entryBytes = new byte[bytes.length];
+        input.seek(offsets[entry]);
+        input.readFully(entryBytes);
+        return Arrays.equals(bytes, entryBytes);
+    }
+    
+    /**
+     * Stops using the index after the file of the texts failed, so rows with the same text are extracted again
+     * @param error The error
+     */
+    private void fail(final IOException error) {
+        LOGGER.warn("Could not use the spill file of texts " + file + "; rows with known texts are extracted again.", error);
+        discard();
+    }
+    
+    /**
+     * Closes and deletes the file of the texts once all rows have been dispatched, after which no texts are found
+     */
+    public void discard() {
+        failed = true;
+        if (file == null)
+            return;
+        try {
+            output.close();
+            if (input != null)
+                input.close();
+        }
+        catch (IOException error) {
+            LOGGER.warn("Could not close the spill file of texts " + file, error);
+        }
+        if (file.exists() && !file.delete())
+            LOGGER.warn("Could not delete the spill file of texts " + file);
+    }
+}
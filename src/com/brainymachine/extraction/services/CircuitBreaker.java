@@ -0,0 +1,125 @@
+package com.brainymachine.extraction.services;
+
+import org.apache.log4j.Logger;
+
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Circuit breaker that stops requests to a service after consecutive failures.
+ * While <tt>OPEN</tt>, requests fail immediately; after the open duration,
+ * a single probe request is let through in the <tt>HALF_OPEN</tt> state,
+ * which closes the circuit if it succeeds and opens it again otherwise.
+ */
+public class CircuitBreaker {
+    private final static Logger LOGGER = Logger.getLogger(CircuitBreaker.class);
+    
+    /** The states of a circuit breaker */
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+    
+    private final String name;
+    private final int failureThreshold;
+    private final long openDuration;
+    
+    private State state = State.CLOSED;
+    private int failures;
+    private long openedAt;
+    private boolean probing;
+    
+    /**
+     * Creates a new <tt>CircuitBreaker</tt>
+     * @param name The name of the service, for logging
+     * @param failureThreshold The number of consecutive failures that opens the circuit
+     * @param openDuration The time in milliseconds before a probe request is let through
+     */
+    public CircuitBreaker(final String name, final int failureThreshold, final long openDuration) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openDuration = Math.max(0, openDuration);
+    }
+    
+    /**
+     * Creates a new <tt>CircuitBreaker</tt> configured through the
+     * <tt>extraction.circuit.failureThreshold</tt> and <tt>extraction.circuit.openDuration</tt> settings
+     * @param name The name of the service, for logging
+     * @return The circuit breaker
+     */
+    public static CircuitBreaker fromSettings(final String name) {
+        return new CircuitBreaker(name, SettingsUtil.getInt("circuit.failureThreshold", 5),
+                                  SettingsUtil.getLong("circuit.openDuration", 10000));
+    }
+    
+    /**
+     * Checks whether a request may be sent, letting a single probe through once the open duration has passed
+     * @throws CircuitOpenException if the circuit is open
+     */
+    public synchronized void beforeRequest() throws CircuitOpenException {
+        if (state == State.OPEN && System.currentTimeMillis() >= openedAt + openDuration) {
+            state = State.HALF_OPEN;
+            probing = false;
+        }
+        if (state == State.OPEN || (state == State.HALF_OPEN && probing))
+            throw new CircuitOpenException(this);
+        if (state == State.HALF_OPEN)
+            probing = true;
+    }
+    
+    /**
+     * Records a successful request, closing the circuit
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED)
+            LOGGER.info(String.format("Service %s is available again.", name));
+        state = State.CLOSED;
+        failures = 0;
+        probing = false;
+    }
+    
+    /**
+     * Records a failed request, opening the circuit after too many consecutive failures or a failed probe
+     */
+    public synchronized void onFailure() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            if (state == State.CLOSED)
+                LOGGER.warn(String.format("Service %s failed %d times in a row; pausing requests for %d ms.",
+                                          name, failures, openDuration));
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            probing = false;
+        }
+    }
+    
+    /**
+     * Records a request that neither proved nor disproved the availability of the service,
+     * letting another probe through if it was a probe
+     */
+    public synchronized void onIgnored() {
+        probing = false;
+    }
+    
+    /**
+     * Gets the current state
+     * @return The state
+     */
+    public synchronized State getState() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openedAt + openDuration)
+            return State.HALF_OPEN;
+        return state;
+    }
+    
+    /**
+     * Gets the time until a probe request is let through
+     * @return The time in milliseconds, or 0 if requests can be sent
+     */
+    public synchronized long getRetryDelay() {
+        return state == State.OPEN ? Math.max(0, openedAt + openDuration - System.currentTimeMillis()) : 0;
+    }
+    
+    /**
+     * Gets the name of the service
+     * @return The name
+     */
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,29 @@
+package com.brainymachine.extraction.services;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when a request is not sent because the circuit breaker of the service is open
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 2846102936521417453L;
+    
+    private final transient CircuitBreaker circuitBreaker;
+    
+    /**
+     * Creates a new <tt>CircuitOpenException</tt>
+     * @param circuitBreaker The open circuit breaker
+     */
+    public CircuitOpenException(final CircuitBreaker circuitBreaker) {
+        super(String.format("Service %s is unavailable.", circuitBreaker.getName()));
+        this.circuitBreaker = circuitBreaker;
+    }
+    
+    /**
+     * Gets the open circuit breaker
+     * @return The circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+}
@@ -0,0 +1,201 @@
+package com.brainymachine.extraction.services;
+
+import java.net.URI;
+import java.util.HashMap;
+
+import org.apache.log4j.Logger;
+
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Adaptive limit on the number of concurrent requests to a service URL.
+ * The limit grows additively while the recent latency stays close to the long-term latency,
+ * and shrinks multiplicatively when the latency rises or the service reports overload,
+ * at most once per round of requests.
+ */
+public class ConcurrencyLimiter {
+    private final static Logger LOGGER = Logger.getLogger(ConcurrencyLimiter.class);
+    private final static HashMap<String, ConcurrencyLimiter> LIMITERS = new HashMap<String, ConcurrencyLimiter>();
+    
+    /** Factor by which the limit shrinks when the service is overloaded */
+    private final static double OVERLOAD_BACKOFF = 0.5;
+    /** Factor by which the limit shrinks when the latency rises */
+    private final static double LATENCY_BACKOFF = 0.9;
+    /** Weight of a sample in the short-term latency */
+    private final static double SHORT_WEIGHT = 0.1;
+    /** Weight of a sample in the long-term latency, which follows lasting changes */
+    private final static double LONG_WEIGHT = 0.01;
+    
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    
+    private double limit;
+    private int inFlight;
+    private long issued;
+    private long lastBackoff;
+    private double shortLatency;
+    private double longLatency;
+    
+    /**
+     * Creates a new <tt>ConcurrencyLimiter</tt>
+     * @param name The name of the limited service URL
+     * @param initialLimit The initial number of concurrent requests
+     * @param minLimit The minimum number of concurrent requests
+     * @param maxLimit The maximum number of concurrent requests
+     * @param latencyTolerance The ratio of short-term to long-term latency above which the limit shrinks
+     */
+    public ConcurrencyLimiter(final String name, final int initialLimit, final int minLimit, final int maxLimit,
+                              final double latencyTolerance) {
+        this.name = name;
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+        this.latencyTolerance = Math.max(1, latencyTolerance);
+    }
+    
+    /**
+     * Gets the shared limiter of the specified service URL, configured through the
+     * <tt>extraction.concurrency.initial</tt>, <tt>extraction.concurrency.min</tt>,
+     * <tt>extraction.concurrency.max</tt> and <tt>extraction.concurrency.latencyTolerance</tt> settings
+     * @param serviceUrl The service URL (the query is ignored)
+     * @return The limiter
+     */
+    public static synchronized ConcurrencyLimiter getLimiter(final URI serviceUrl) {
+        final String key = String.format("%s://%s%s", serviceUrl.getScheme(), serviceUrl.getRawAuthority(),
+                                         serviceUrl.getRawPath() == null ? "" : serviceUrl.getRawPath());
+        ConcurrencyLimiter limiter = LIMITERS.get(key);
+        if (limiter == null) {
+            final double tolerance = Double.parseDouble(SettingsUtil.getString("concurrency.latencyTolerance", "2.0"));
+            LIMITERS.put(key, limiter = new ConcurrencyLimiter(key, SettingsUtil.getInt("concurrency.initial", 8),
+                                                               SettingsUtil.getInt("concurrency.min", 1),
+                                                               SettingsUtil.getInt("concurrency.max", 64),
+                                                               tolerance));
+        }
+        return limiter;
+    }
+    
+    /**
+     * Waits until a request may be sent
+     * @param size The number of texts in the request, by which its latency is divided
+     * @return The permit, which must be released when the request finishes
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized Permit acquire(final int size) throws InterruptedException {
+        while (inFlight >= (int)limit)
+            wait();
+        inFlight++;
+        return new Permit(++issued, Math.max(1, size));
+    }
+    
+    /**
+     * Gets the current number of allowed concurrent requests
+     * @return The limit
+     */
+    public synchronized int getLimit() {
+        return (int)limit;
+    }
+    
+    /**
+     * Gets the number of requests that are currently sent
+     * @return The number of requests
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+    
+    /**
+     * Gets the smoothed latency of successful requests per text
+     * @return The latency in milliseconds
+     */
+    public synchronized long getLatency() {
+        return (long)(shortLatency / 1000000);
+    }
+    
+    /**
+     * Records the outcome of a request and wakes up waiting requests
+     * @param permit The permit of the request
+     * @param latency The latency of the request per text in nanoseconds
+     * @param overloaded Whether the service reported overload or failed to respond
+     */
+    protected synchronized void release(final Permit permit, final long latency, final boolean overloaded) {
+        inFlight--;
+        if (overloaded) {
+            backOff(permit, OVERLOAD_BACKOFF);
+        }
+        else if (latency >= 0) {
+            // Compare the recent latency to the long-term latency, so single slow requests are tolerated
+            shortLatency = shortLatency == 0 ? latency : (1 - SHORT_WEIGHT) * shortLatency + SHORT_WEIGHT * latency;
+            longLatency = longLatency == 0 ? latency : (1 - LONG_WEIGHT) * longLatency + LONG_WEIGHT * latency;
+            if (shortLatency > latencyTolerance * longLatency)
+                backOff(permit, LATENCY_BACKOFF);
+            // Only grow when the limit is actually used
+            else if (inFlight + 1 >= (int)limit)
+                limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+    
+    /**
+     * Shrinks the limit, unless it already shrank after the request was sent
+     * @param permit The permit of the request
+     * @param factor The factor by which to shrink
+     */
+    private void backOff(final Permit permit, final double factor) {
+        if (permit.sequence > lastBackoff) {
+            lastBackoff = issued;
+            limit = Math.max(minLimit, limit * factor);
+            LOGGER.debug(String.format("Concurrency limit of %s lowered to %d.", name, (int)limit));
+        }
+    }
+    
+    /**
+     * Permission to send a single request
+     */
+    public class Permit {
+        private final long sequence;
+        private final int size;
+        private final long started;
+        private boolean released;
+        
+        /**
+         * Creates a new <tt>Permit</tt>
+         * @param sequence The sequence number of the request
+         * @param size The number of texts in the request
+         */
+        protected Permit(final long sequence, final int size) {
+            this.sequence = sequence;
+            this.size = size;
+            this.started = System.nanoTime();
+        }
+        
+        /**
+         * Releases the permit after the service handled the request
+         */
+        public void release() {
+            release(false, true);
+        }
+        
+        /**
+         * Releases the permit after the service reported overload or failed to respond
+         */
+        public void releaseOverloaded() {
+            release(true, false);
+        }
+        
+        /**
+         * Releases the permit without measuring, for instance after a request error
+         */
+        public void releaseIgnored() {
+            release(false, false);
+        }
+        
+        private synchronized void release(final boolean overloaded, final boolean measured) {
+            if (!released) {
+                released = true;
+                ConcurrencyLimiter.this.release(this, measured ? (System.nanoTime() - started) / size : -1, overloaded);
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.brainymachine.extraction.services;
 
+import java.util.List;
+
 /**
  * Interface for extraction services
  * @author Mateja Verlic
@@ -13,6 +15,38 @@ public interface ExtractionService {
      */
     public String[] extractElementValues(String text) throws Exception;
     
+    /**
+     * Extracts specified elements from each of the specified texts
+     * @param texts The texts
+     * @return The extracted elements per text, in the order of the texts,
+     *         and <tt>null</tt> for a text whose extraction failed on its own
+     * @throws Exception if the extraction fails
+     */
+    public String[][] extractElementValues(List<String> texts) throws Exception;
+    
+    /**
+     * Gets the maximum number of texts the service handles in a single request
+     * @return The batch size, or 1 if the service does not support batches
+     */
+    public int getBatchSize();
+    
+    /**
+     * Extracts elements from each of the specified texts for several services in a single request
+     * @param texts The texts
+     * @param services The services, including this one, that share this service's combination key
+     * @return The extracted elements per text and service, in the order of the texts and services,
+     *         and <tt>null</tt> for a text whose extraction failed on its own
+     * @throws Exception if the extraction fails
+     */
+    public String[][][] extractElementValues(List<String> texts, List<ExtractionService> services) throws Exception;
+    
+    /**
+     * Gets the key that identifies services whose extractions can be combined in a single request,
+     * such as services of the same class that share an endpoint
+     * @return The combination key, or <tt>null</tt> if extractions cannot be combined
+     */
+    public String getCombinationKey();
+    
     /**
      * Gets the names of supported properties of the service
      * @return The property names
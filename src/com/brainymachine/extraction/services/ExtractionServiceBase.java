@@ -1,25 +1,33 @@
 package com.brainymachine.extraction.services;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
 
 import com.brainymachine.extraction.services.ExtractionService;
+import com.brainymachine.extraction.util.CompressionUtil;
+import com.brainymachine.extraction.util.JsonStreamUtil;
+import com.brainymachine.extraction.util.SettingsUtil;
 
 import org.json.JSONException;
 import org.json.JSONTokener;
@@ -35,11 +43,20 @@ public abstract class ExtractionServiceBase implements ExtractionService {
     protected final static String[] EMPTY_EXTRACTION_RESULT = new String[0];
     
     private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static Logger LOGGER = Logger.getLogger(ExtractionServiceBase.class);
     
     
     private URI serviceUrl;
     private final String[] propertyNames;
     private final HashMap<String, String> properties;
+    private ResultCache resultCache;
+    private RetryPolicy retryPolicy = RetryPolicy.fromSettings();
+    private CircuitBreaker circuitBreaker = CircuitBreaker.fromSettings(getClass().getSimpleName());
+    private final int maxElements = SettingsUtil.getInt("response.maxElements", 0);
+    private final int compressionMinSize = SettingsUtil.getInt("compression.minSize", 1024);
+    private final TransferStatistics transferStatistics = new TransferStatistics();
+    private volatile boolean requestCompressionAccepted;
+    private volatile boolean requestCompressionRejected;
     
     /**
      * Creates a new element extraction service base class
@@ -68,6 +85,46 @@ public abstract class ExtractionServiceBase implements ExtractionService {
             this.serviceUrl= this.serviceUrl.resolve(serviceUrl);
     }
     
+    /**
+     * Sets the cache that is consulted before sending requests
+     * @param resultCache The cache (can be null to disable caching)
+     */
+    public void setResultCache(final ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+    
+    /**
+     * Sets the policy for retrying failed requests
+     * @param retryPolicy The retry policy
+     */
+    public void setRetryPolicy(final RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+    
+    /**
+     * Sets the circuit breaker that stops requests while the service is unavailable
+     * @param circuitBreaker The circuit breaker
+     */
+    public void setCircuitBreaker(final CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+    
+    /**
+     * Gets the circuit breaker that stops requests while the service is unavailable
+     * @return The circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+    
+    /**
+     * Gets the counters of the bytes sent to and received from the service
+     * @return The transfer statistics
+     */
+    public TransferStatistics getTransferStatistics() {
+        return transferStatistics;
+    }
+    
     /** {@inheritDoc} */
     @Override
     public String[] getPropertyNames() {
@@ -87,13 +144,108 @@ public abstract class ExtractionServiceBase implements ExtractionService {
             throw new IllegalArgumentException("The property " + name
                                                + " is invalid for " + getClass().getName() + ".");
         properties.put(name, value == null ? "" : value);
+        // Try compressed request bodies again, since the service may have changed
+        requestCompressionRejected = false;
     }
     
     /** {@inheritDoc} */
     @Override
     public String[] extractElementValues(final String url) throws Exception {
+        final String[] cachedResult = getCachedResult(url);
+        if (cachedResult != null)
+            return cachedResult;
         final HttpUriRequest request = createExtractionRequest(url);
-        return performExtractionRequest(request);
+        final String[] result = performExtractionRequest(request);
+        putCachedResult(url, result);
+        return result;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Sends the texts in a single request if the service supports batches,
+     * and extracts them one by one otherwise.
+     */
+    @Override
+    public String[][] extractElementValues(final List<String> texts) throws Exception {
+        final String[][] results = new String[texts.size()][];
+        if (getBatchSize() > 1 && texts.size() > 1) {
+            // Only request the texts without cached results
+            final ArrayList<String> uncachedTexts = new ArrayList<String>();
+            final ArrayList<Integer> uncachedIndexes = new ArrayList<Integer>();
+            for (int i = 0; i < results.length; i++) {
+                if ((results[i] = getCachedResult(texts.get(i))) == null) {
+                    uncachedTexts.add(texts.get(i));
+                    uncachedIndexes.add(i);
+                }
+            }
+            if (!uncachedTexts.isEmpty()) {
+                final HttpUriRequest request = createBatchExtractionRequest(uncachedTexts);
+                final String[][] batchResults = performBatchExtractionRequest(request, uncachedTexts.size());
+                for (int i = 0; i < batchResults.length; i++) {
+                    results[uncachedIndexes.get(i)] = batchResults[i];
+                    putCachedResult(uncachedTexts.get(i), batchResults[i]);
+                }
+            }
+        }
+        else {
+            for (int i = 0; i < results.length; i++)
+                results[i] = extractElementValues(texts.get(i));
+        }
+        return results;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Sends a single combined request per batch of texts if there are several services,
+     * which must share this service's combination key.
+     */
+    @Override
+    public String[][][] extractElementValues(final List<String> texts, final List<ExtractionService> services) throws Exception {
+        final String[][][] results = new String[texts.size()][services.size()][];
+        if (services.size() == 1) {
+            final String[][] serviceResults = services.get(0).extractElementValues(texts);
+            for (int i = 0; i < results.length; i++)
+                results[i][0] = serviceResults[i];
+        }
+        else {
+            for (final ExtractionService service : services)
+                if (getCombinationKey() == null || !getCombinationKey().equals(service.getCombinationKey()))
+                    throw new IllegalArgumentException("The services cannot be combined in a single request.");
+            // Only request the texts without cached results for all services
+            final ArrayList<String> uncachedTexts = new ArrayList<String>();
+            final ArrayList<Integer> uncachedIndexes = new ArrayList<Integer>();
+            for (int i = 0; i < results.length; i++) {
+                boolean cached = true;
+                for (int j = 0; j < services.size(); j++)
+                    cached &= (results[i][j] = ((ExtractionServiceBase)services.get(j)).getCachedResult(texts.get(i))) != null;
+                if (!cached) {
+                    uncachedTexts.add(texts.get(i));
+                    uncachedIndexes.add(i);
+                }
+            }
+            if (!uncachedTexts.isEmpty()) {
+                final HttpUriRequest request = createCombinedExtractionRequest(uncachedTexts, services);
+                final String[][][] combinedResults = performCombinedExtractionRequest(request, uncachedTexts.size(), services);
+                for (int i = 0; i < combinedResults.length; i++) {
+                    results[uncachedIndexes.get(i)] = combinedResults[i];
+                    for (int j = 0; j < services.size(); j++)
+                        ((ExtractionServiceBase)services.get(j)).putCachedResult(uncachedTexts.get(i), combinedResults[i][j]);
+                }
+            }
+        }
+        return results;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public int getBatchSize() {
+        return 1;
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    public String getCombinationKey() {
+        return null;
     }
     
     /** {@inheritDoc} */
@@ -101,6 +253,70 @@ public abstract class ExtractionServiceBase implements ExtractionService {
         return true;
     }
     
+    /**
+     * Gets the compression mode of batch and combined request bodies:
+     * <tt>true</tt> to always compress them, <tt>auto</tt> to compress them once the service
+     * has announced it accepts <tt>gzip</tt> through an <tt>Accept-Encoding</tt> response header,
+     * and <tt>false</tt> to never compress them
+     * @return The compression mode
+     */
+    protected String getRequestCompression() {
+        return "false";
+    }
+    
+    /**
+     * Indicates whether batch and combined request bodies are compressed,
+     * according to the compression mode and what has been negotiated with the service
+     * @return <tt>true</tt> if request bodies are compressed
+     */
+    protected boolean isRequestCompressionEnabled() {
+        if (requestCompressionRejected)
+            return false;
+        final String mode = getRequestCompression().trim();
+        return Boolean.parseBoolean(mode) || (mode.equalsIgnoreCase("auto") && requestCompressionAccepted);
+    }
+    
+    /**
+     * Gets the cached result of the extraction on the specified text
+     * @param text The text
+     * @return The cached result, or <tt>null</tt> if there is none
+     */
+    protected String[] getCachedResult(final String text) {
+        return resultCache == null ? null : resultCache.get(getCacheKey(text));
+    }
+    
+    /**
+     * Stores the result of the extraction on the specified text in the cache
+     * @param text The text
+     * @param result The result
+     */
+    protected void putCachedResult(final String text, final String[] result) {
+        if (resultCache != null)
+            resultCache.put(getCacheKey(text), result);
+    }
+    
+    /**
+     * Creates the cache key of the extraction on the specified text,
+     * consisting of the service class and URL, the result properties and the text
+     * @param text The text
+     * @return The cache key
+     */
+    protected String getCacheKey(final String text) {
+        final StringBuilder key = new StringBuilder(getClass().getName());
+        key.append('\n').append(serviceUrl);
+        for (final String propertyName : getResultPropertyNames())
+            key.append('\n').append(propertyName).append('=').append(getProperty(propertyName));
+        return key.append('\n').append(text).toString();
+    }
+    
+    /**
+     * Gets the names of the properties that influence the extraction result
+     * @return The property names
+     */
+    protected String[] getResultPropertyNames() {
+        return propertyNames;
+    }
+    
     /**
      * Performs the element extraction request
      * @param request The request
@@ -108,14 +324,145 @@ public abstract class ExtractionServiceBase implements ExtractionService {
      * @throws Exception if the request fails
      */
     protected String[] performExtractionRequest(final HttpUriRequest request) throws Exception {
-        final DefaultHttpClient httpClient = new DefaultHttpClient();
-        final HttpResponse response = httpClient.execute(request);
-        if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK)
-            throw new IllegalStateException(
-                    String.format("The extraction request returned status code %d instead of %s.",
-                                  response.getStatusLine().getStatusCode(), HttpStatus.SC_OK));
-        final HttpEntity responseElement = response.getEntity();
-        return parseExtractionResponseElement(responseElement);
+        final ServiceResponse response = executeRequest(request, 1);
+        try {
+            return parseExtractionResponseElement(response.getEntity());
+        }
+        finally {
+            response.release();
+        }
+    }
+
+    /**
+     * Performs the batch element extraction request
+     * @param request The request
+     * @param count The number of texts in the request
+     * @return The extracted elements per text
+     * @throws Exception if the request fails
+     */
+    protected String[][] performBatchExtractionRequest(final HttpUriRequest request, final int count) throws Exception {
+        final ServiceResponse response = executeRequest(request, count);
+        try {
+            final Reader responseReader = JsonStreamUtil.createReader(response.getEntity().getContent(), UTF8);
+            return parseBatchExtractionResponse(new JSONTokener(responseReader), count);
+        }
+        finally {
+            response.release();
+        }
+    }
+    
+    /**
+     * Performs the combined element extraction request
+     * @param request The request
+     * @param count The number of texts in the request
+     * @param services The services whose queries the request contains
+     * @return The extracted elements per text and service
+     * @throws Exception if the request fails
+     */
+    protected String[][][] performCombinedExtractionRequest(final HttpUriRequest request, final int count,
+                                                            final List<ExtractionService> services) throws Exception {
+        final ServiceResponse response = executeRequest(request, count);
+        try {
+            final Reader responseReader = JsonStreamUtil.createReader(response.getEntity().getContent(), UTF8);
+            return parseCombinedExtractionResponse(new JSONTokener(responseReader), count, services);
+        }
+        finally {
+            response.release();
+        }
+    }
+    
+    /**
+     * Executes the request on the shared client of the service endpoint within its concurrency limit,
+     * retrying connection errors and temporary unavailability according to the retry policy
+     * and failing immediately while the circuit breaker of the service is open
+     * @param request The request, which must have a repeatable body
+     * @param size The number of texts in the request
+     * @return The successful response, which the caller must release
+     * @throws CircuitOpenException if the service is considered unavailable
+     * @throws Exception if the request fails or does not succeed after all attempts
+     */
+    protected ServiceResponse executeRequest(final HttpUriRequest request, final int size) throws Exception {
+        final HttpClient httpClient = HttpClientManager.getClient(request.getURI());
+        final ConcurrencyLimiter limiter = ConcurrencyLimiter.getLimiter(request.getURI());
+        for (int attempt = 1; ; attempt++) {
+            final ConcurrencyLimiter.Permit permit = limiter.acquire(size);
+            Exception failure;
+            boolean retriable = true;
+            long retryAfter = -1;
+            try {
+                circuitBreaker.beforeRequest();
+            }
+            catch (CircuitOpenException error) {
+                permit.releaseIgnored();
+                throw error;
+            }
+            try {
+                final HttpEntity body = request instanceof HttpEntityEnclosingRequest
+                                        ? ((HttpEntityEnclosingRequest)request).getEntity() : null;
+                if (body != null)
+                    transferStatistics.recordRequest(body instanceof CompressedBody ? ((CompressedBody)body).getUncompressedLength()
+                                                                                    : body.getContentLength(),
+                                                     body.getContentLength());
+                final HttpResponse response = httpClient.execute(request);
+                final HttpEntity responseElement = response.getEntity();
+                final int statusCode = response.getStatusLine().getStatusCode();
+                final Header acceptEncoding = response.getFirstHeader("Accept-Encoding");
+                if (acceptEncoding != null && acceptEncoding.getValue() != null
+                    && acceptEncoding.getValue().toLowerCase().contains("gzip"))
+                    requestCompressionAccepted = true;
+                // Any response except a server error shows the service is available
+                if (statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR)
+                    circuitBreaker.onFailure();
+                else
+                    circuitBreaker.onSuccess();
+                if (statusCode == HttpStatus.SC_OK)
+                    return new ServiceResponse(transferStatistics.decode(responseElement), permit);
+                
+                EntityUtils.consume(responseElement);
+                // Resend the body uncompressed if the service does not accept compressed bodies
+                if (statusCode == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE && body instanceof CompressedBody) {
+                    LOGGER.info(String.format("Service %s does not accept compressed requests; sending them uncompressed.",
+                                              circuitBreaker.getName()));
+                    requestCompressionRejected = true;
+                    requestCompressionAccepted = false;
+                    permit.releaseIgnored();
+                    ((HttpEntityEnclosingRequest)request).setEntity(((CompressedBody)body).toUncompressed());
+                    attempt--;
+                    continue;
+                }
+                failure = new IllegalStateException(
+                        String.format("The extraction request returned status code %d instead of %s.",
+                                      statusCode, HttpStatus.SC_OK));
+                if (statusCode == RetryPolicy.SC_TOO_MANY_REQUESTS || statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR)
+                    permit.releaseOverloaded();
+                else
+                    permit.releaseIgnored();
+                retriable = retryPolicy.isRetriable(statusCode);
+                retryAfter = RetryPolicy.getRetryAfter(response);
+            }
+            catch (IOException error) {
+                // Timeouts and refused connections signal an overloaded or unavailable service
+                permit.releaseOverloaded();
+                circuitBreaker.onFailure();
+                failure = error;
+            }
+            // Only unexpected errors, since responses have released their permit and updated the circuit breaker
+            catch (RuntimeException error) {
+                permit.releaseIgnored();
+                circuitBreaker.onIgnored();
+                throw error;
+            }
+            if (!retriable)
+                throw failure;
+            
+            // Wait outside of the concurrency limit before the next attempt
+            final long delay = retryPolicy.getDelay(attempt, retryAfter);
+            if (delay < 0)
+                throw failure;
+            LOGGER.debug(String.format("Retrying extraction request to %s in %d ms after attempt %d failed: %s",
+                                       request.getURI(), delay, attempt, failure.getMessage()));
+            Thread.sleep(delay);
+        }
     }
 
     /**
@@ -129,6 +476,7 @@ public abstract class ExtractionServiceBase implements ExtractionService {
         final HttpEntity body = createExtractionRequestBody(text);
         final HttpPost request = new HttpPost(requestUrl);
         request.setHeader("Accept", "application/json");
+        request.setHeader("Accept-Encoding", CompressionUtil.ACCEPTED_ENCODINGS);
         request.setEntity(body);
         return request;
     }
@@ -163,10 +511,126 @@ public abstract class ExtractionServiceBase implements ExtractionService {
             bodyOutput.close();
         }
         catch (IOException e) { }
-        final byte[] bodyBytes = bodyOutput.toByteArray();
-        final ByteArrayInputStream bodyInput = new ByteArrayInputStream(bodyBytes);
-        final HttpEntity body = new InputStreamEntity(bodyInput, bodyBytes.length);
-        return body;
+        // Keep the body repeatable, so the request can be retried
+        return new ByteArrayEntity(bodyOutput.toByteArray());
+    }
+    
+    /**
+     * Creates a batch element extraction request on the specified texts
+     * @param texts The texts to analyze
+     * @return The created request
+     * @throws Exception if the request cannot be created
+     */
+    protected HttpUriRequest createBatchExtractionRequest(final List<String> texts) throws Exception {
+        final ByteArrayOutputStream bodyOutput = new ByteArrayOutputStream();
+        final OutputStreamWriter bodyWriter = new OutputStreamWriter(bodyOutput, UTF8);
+        writeBatchExtractionRequestBody(texts, new JSONWriter(bodyWriter));
+        bodyWriter.close();
+        return createJsonExtractionRequest(bodyOutput.toByteArray());
+    }
+    
+    /**
+     * Creates a combined element extraction request on the specified texts
+     * for the queries of the specified services
+     * @param texts The texts to analyze
+     * @param services The services whose queries to perform
+     * @return The created request
+     * @throws Exception if the request cannot be created
+     */
+    protected HttpUriRequest createCombinedExtractionRequest(final List<String> texts,
+                                                             final List<ExtractionService> services) throws Exception {
+        final ByteArrayOutputStream bodyOutput = new ByteArrayOutputStream();
+        final OutputStreamWriter bodyWriter = new OutputStreamWriter(bodyOutput, UTF8);
+        writeCombinedExtractionRequestBody(texts, services, new JSONWriter(bodyWriter));
+        bodyWriter.close();
+        return createJsonExtractionRequest(bodyOutput.toByteArray());
+    }
+    
+    /**
+     * Creates a request that posts the specified JSON body to the service,
+     * compressing the body if it is large enough and the service accepts compressed bodies
+     * @param body The UTF-8 encoded JSON body
+     * @return The created request
+     */
+    protected HttpUriRequest createJsonExtractionRequest(final byte[] body) {
+        final ByteArrayEntity bodyEntity = isRequestCompressionEnabled() && body.length >= compressionMinSize
+                                           ? new CompressedBody(body) : new ByteArrayEntity(body);
+        bodyEntity.setContentType("application/json; charset=UTF-8");
+        final HttpPost request = new HttpPost(createExtractionRequestUrl(null));
+        request.setHeader("Accept", "application/json");
+        request.setHeader("Accept-Encoding", CompressionUtil.ACCEPTED_ENCODINGS);
+        request.setEntity(bodyEntity);
+        return request;
+    }
+    
+    /**
+     * Writes the body JSON for a batch element extraction request on the specified texts,
+     * an object with the request properties and an <tt>items</tt> array with one object per text
+     * @param texts The texts to analyze
+     * @param body The body writer
+     * @throws JSONException if writing the body goes wrong
+     */
+    protected void writeBatchExtractionRequestBody(final List<String> texts, final JSONWriter body) throws JSONException {
+        body.object();
+        writeBatchExtractionRequestProperties(body);
+        body.key("items");
+        body.array();
+        for (final String text : texts) {
+            body.object();
+            writeBatchExtractionRequestItem(text, body);
+            body.endObject();
+        }
+        body.endArray();
+        body.endObject();
+    }
+    
+    /**
+     * Writes the body JSON for a combined element extraction request on the specified texts,
+     * an object with a <tt>queries</tt> array with the request properties of each service
+     * and an <tt>items</tt> array with one object per text
+     * @param texts The texts to analyze
+     * @param services The services whose queries to perform
+     * @param body The body writer
+     * @throws JSONException if writing the body goes wrong
+     */
+    protected void writeCombinedExtractionRequestBody(final List<String> texts, final List<ExtractionService> services,
+                                                      final JSONWriter body) throws JSONException {
+        body.object();
+        body.key("queries");
+        body.array();
+        for (final ExtractionService service : services) {
+            body.object();
+            ((ExtractionServiceBase)service).writeBatchExtractionRequestProperties(body);
+            body.endObject();
+        }
+        body.endArray();
+        body.key("items");
+        body.array();
+        for (final String text : texts) {
+            body.object();
+            writeBatchExtractionRequestItem(text, body);
+            body.endObject();
+        }
+        body.endArray();
+        body.endObject();
+    }
+    
+    /**
+     * Writes the properties shared by all items of a batch element extraction request
+     * @param body The body writer, positioned inside the request object
+     * @throws JSONException if writing the body goes wrong
+     */
+    protected void writeBatchExtractionRequestProperties(final JSONWriter body) throws JSONException { }
+    
+    /**
+     * Writes a single item of a batch element extraction request
+     * @param text The text to analyze
+     * @param body The body writer, positioned inside the item object
+     * @throws JSONException if writing the body goes wrong
+     */
+    protected void writeBatchExtractionRequestItem(final String text, final JSONWriter body) throws JSONException {
+        body.key("text");
+        body.value(text);
     }
     
     /**
@@ -184,8 +648,7 @@ public abstract class ExtractionServiceBase implements ExtractionService {
      * @throws Exception if the response cannot be parsed
      */
     protected String[] parseExtractionResponseElement(HttpEntity response) throws Exception {
-        final InputStreamReader responseReader = new InputStreamReader(response.getContent());
-        return parseExtractionResponseElement(new JSONTokener(responseReader));
+        return parseExtractionResponseElement(new JSONTokener(JsonStreamUtil.createReader(response.getContent(), UTF8)));
     }
     
     /**
@@ -198,6 +661,242 @@ public abstract class ExtractionServiceBase implements ExtractionService {
         return EMPTY_EXTRACTION_RESULT;
     }
     
+    /**
+     * Parses the JSON entity of the batch element extraction response,
+     * an object with an <tt>items</tt> array that holds one result object per requested text
+     * @param tokener The tokener containing the response
+     * @param count The number of texts in the request
+     * @return The extracted elements per text
+     * @throws JSONException if the response cannot be parsed
+     */
+    protected String[][] parseBatchExtractionResponse(final JSONTokener tokener, final int count) throws JSONException {
+        final String[][] results = new String[count][];
+        int itemCount = -1;
+        /* Response object */
+        if (tokener.nextClean() != '{')
+            throw new JSONException("The batch extraction response should be a JSON object.");
+        char separator = tokener.nextClean();
+        if (separator != '}') {
+            tokener.back();
+            do {
+                if ("items".equals(JsonStreamUtil.parseKey(tokener))) {
+                    /* Items array */
+                    if (tokener.nextClean() != '[')
+                        throw tokener.syntaxError("Expected an items array");
+                    itemCount = 0;
+                    for (char next = tokener.nextClean(); next != ']'; next = JsonStreamUtil.nextSeparator(tokener)) {
+                        tokener.back();
+                        if (itemCount == count)
+                            throw new IllegalStateException(String.format("The batch extraction response contains "
+                                                                          + "more than %d items.", count));
+                        results[itemCount++] = parseExtractionResponseItem(tokener);
+                    }
+                }
+                else {
+                    JsonStreamUtil.skipValue(tokener);
+                }
+                separator = tokener.nextClean();
+            } while (separator == ',');
+        }
+        if (itemCount != count)
+            throw new IllegalStateException(String.format("The batch extraction response contains %d items "
+                                                          + "instead of %d.", Math.max(0, itemCount), count));
+        return results;
+    }
+    
+    /**
+     * Parses the JSON entity of the combined element extraction response,
+     * an object with an <tt>items</tt> array that holds one object per requested text,
+     * each with a <tt>queries</tt> array that holds one result object per service
+     * @param tokener The tokener containing the response
+     * @param count The number of texts in the request
+     * @param services The services whose queries the request contains
+     * @return The extracted elements per text and service
+     * @throws JSONException if the response cannot be parsed
+     */
+    protected String[][][] parseCombinedExtractionResponse(final JSONTokener tokener, final int count,
+                                                           final List<ExtractionService> services) throws JSONException {
+        final String[][][] results = new String[count][][];
+        int itemCount = -1;
+        /* Response object */
+        if (tokener.nextClean() != '{')
+            throw new JSONException("The combined extraction response should be a JSON object.");
+        char separator = tokener.nextClean();
+        if (separator != '}') {
+            tokener.back();
+            do {
+                if ("items".equals(JsonStreamUtil.parseKey(tokener))) {
+                    /* Items array */
+                    if (tokener.nextClean() != '[')
+                        throw tokener.syntaxError("Expected an items array");
+                    itemCount = 0;
+                    for (char next = tokener.nextClean(); next != ']'; next = JsonStreamUtil.nextSeparator(tokener)) {
+                        tokener.back();
+                        if (itemCount == count)
+                            throw new IllegalStateException(String.format("The combined extraction response contains "
+                                                                          + "more than %d items.", count));
+                        results[itemCount++] = parseCombinedExtractionResponseItem(tokener, services);
+                    }
+                }
+                else {
+                    JsonStreamUtil.skipValue(tokener);
+                }
+                separator = tokener.nextClean();
+            } while (separator == ',');
+        }
+        if (itemCount != count)
+            throw new IllegalStateException(String.format("The combined extraction response contains %d items "
+                                                          + "instead of %d.", Math.max(0, itemCount), count));
+        return results;
+    }
+    
+    /**
+     * Parses a single item object of a combined response with a <tt>queries</tt> array
+     * that holds one result object per service
+     * @param tokener The tokener, positioned before the item object
+     * @param services The services whose queries the request contains
+     * @return The extracted elements per service
+     * @throws JSONException if the item cannot be parsed
+     */
+    protected String[][] parseCombinedExtractionResponseItem(final JSONTokener tokener,
+                                                             final List<ExtractionService> services) throws JSONException {
+        final String[][] results = new String[services.size()][];
+        int queryCount = -1;
+        /* Item object */
+        if (tokener.nextClean() != '{')
+            throw tokener.syntaxError("Expected an item object");
+        char separator = tokener.nextClean();
+        if (separator != '}') {
+            tokener.back();
+            do {
+                if ("queries".equals(JsonStreamUtil.parseKey(tokener))) {
+                    /* Queries array, with a result per service */
+                    if (tokener.nextClean() != '[')
+                        throw tokener.syntaxError("Expected a queries array");
+                    queryCount = 0;
+                    for (char next = tokener.nextClean(); next != ']'; next = JsonStreamUtil.nextSeparator(tokener)) {
+                        tokener.back();
+                        if (queryCount == results.length)
+                            throw new IllegalStateException(String.format("The combined extraction response contains "
+                                                                          + "more than %d queries.", results.length));
+                        results[queryCount] = ((ExtractionServiceBase)services.get(queryCount)).parseExtractionResponseItem(tokener);
+                        queryCount++;
+                    }
+                }
+                else {
+                    JsonStreamUtil.skipValue(tokener);
+                }
+                separator = tokener.nextClean();
+            } while (separator == ',');
+        }
+        if (queryCount != results.length)
+            throw new IllegalStateException(String.format("The combined extraction response contains %d queries "
+                                                          + "instead of %d.", Math.max(0, queryCount), results.length));
+        return results;
+    }
+    
+    /**
+     * Parses a single result object with an <tt>elements</tt> array
+     * of element objects with a <tt>value</tt>, or of plain values,
+     * keeping at most the maximum number of elements
+     * @param tokener The tokener, positioned before the result object
+     * @return The extracted elements
+     * @throws JSONException if the result cannot be parsed
+     */
+    protected String[] parseExtractionResponseItem(final JSONTokener tokener) throws JSONException {
+        // Empty result if no elements were found
+        String[] results = EMPTY_EXTRACTION_RESULT;
+        /* Result object */
+        if (tokener.nextClean() != '{')
+            throw tokener.syntaxError("Expected a result object");
+        char separator = tokener.nextClean();
+        if (separator != '}') {
+            tokener.back();
+            do {
+                final String key = JsonStreamUtil.parseKey(tokener);
+                final char first = tokener.nextClean();
+                tokener.back();
+                if ("elements".equals(key) && first == '[')
+                    results = parseExtractionResponseElements(tokener);
+                else
+                    JsonStreamUtil.skipValue(tokener);
+                separator = tokener.nextClean();
+            } while (separator == ',');
+            if (separator != '}')
+                throw tokener.syntaxError("Expected the end of a result object");
+        }
+        return results;
+    }
+    
+    /**
+     * Parses an <tt>elements</tt> array, skipping the elements beyond the maximum number
+     * @param tokener The tokener, positioned before the array
+     * @return The extracted elements
+     * @throws JSONException if the array cannot be parsed
+     */
+    private String[] parseExtractionResponseElements(final JSONTokener tokener) throws JSONException {
+        final int maxElements = getMaxElements();
+        final ArrayList<String> results = new ArrayList<String>();
+        tokener.nextClean();
+        for (char next = tokener.nextClean(); next != ']'; next = JsonStreamUtil.nextSeparator(tokener)) {
+            tokener.back();
+            if (maxElements > 0 && results.size() >= maxElements)
+                JsonStreamUtil.skipValue(tokener);
+            else if (next == '{')
+                results.add(parseExtractionResponseElementObject(tokener));
+            else if (next == '"' || next == '\'')
+                results.add(tokener.nextString(tokener.nextClean()));
+            else
+                results.add(tokener.nextValue().toString());
+        }
+        return results.isEmpty() ? EMPTY_EXTRACTION_RESULT : results.toArray(new String[results.size()]);
+    }
+    
+    /**
+     * Parses an element object, returning its <tt>value</tt>
+     * @param tokener The tokener, positioned before the object
+     * @return The value of the element
+     * @throws JSONException if the object has no value
+     */
+    private String parseExtractionResponseElementObject(final JSONTokener tokener) throws JSONException {
+        String value = null;
+        tokener.nextClean();
+        char separator;
+        do {
+            if ("value".equals(JsonStreamUtil.parseKey(tokener))) {
+                final char first = tokener.nextClean();
+                value = first == '"' || first == '\'' ? tokener.nextString(first) : backAndNextValue(tokener);
+            }
+            else {
+                JsonStreamUtil.skipValue(tokener);
+            }
+            separator = tokener.nextClean();
+        } while (separator == ',');
+        if (separator != '}' || value == null)
+            throw tokener.syntaxError("Expected an element object with a value");
+        return value;
+    }
+    
+    /**
+     * Reads a number or boolean value after its first character has been read
+     * @param tokener The tokener
+     * @return The value as a string
+     * @throws JSONException if the value cannot be read
+     */
+    private static String backAndNextValue(final JSONTokener tokener) throws JSONException {
+        tokener.back();
+        return tokener.nextValue().toString();
+    }
+    
+    /**
+     * Gets the maximum number of elements kept per text and service,
+     * configured through the <tt>extraction.response.maxElements</tt> setting
+     * @return The maximum number of elements, or 0 if there is no maximum
+     */
+    protected int getMaxElements() {
+        return maxElements;
+    }
+    
     /**
      * Encodes the specified text for use in an URL.
      * @param text The text to encode
@@ -211,4 +910,79 @@ public abstract class ExtractionServiceBase implements ExtractionService {
             throw new RuntimeException(error);
         }
     }
+    
+    /**
+     * Request body that is compressed with the <tt>gzip</tt> encoding
+     */
+    protected static class CompressedBody extends ByteArrayEntity {
+        private final byte[] uncompressed;
+        
+        /**
+         * Creates a new <tt>CompressedBody</tt>
+         * @param uncompressed The uncompressed body
+         */
+        public CompressedBody(final byte[] uncompressed) {
+            super(CompressionUtil.gzip(uncompressed));
+            this.uncompressed = uncompressed;
+            setContentEncoding("gzip");
+        }
+        
+        /**
+         * Gets the length of the uncompressed body
+         * @return The length in bytes
+         */
+        public long getUncompressedLength() {
+            return uncompressed.length;
+        }
+        
+        /**
+         * Creates an uncompressed body with the same content
+         * @return The uncompressed body
+         */
+        public ByteArrayEntity toUncompressed() {
+            final ByteArrayEntity entity = new ByteArrayEntity(uncompressed);
+            entity.setContentType(getContentType());
+            return entity;
+        }
+    }
+    
+    /**
+     * Successful response of an extraction request,
+     * which holds a connection and a concurrency permit until it is released
+     */
+    protected static class ServiceResponse {
+        private final HttpEntity entity;
+        private final ConcurrencyLimiter.Permit permit;
+        
+        /**
+         * Creates a new <tt>ServiceResponse</tt>
+         * @param entity The response entity
+         * @param permit The concurrency permit of the request
+         */
+        public ServiceResponse(final HttpEntity entity, final ConcurrencyLimiter.Permit permit) {
+            this.entity = entity;
+            this.permit = permit;
+        }
+        
+        /**
+         * Gets the response entity
+         * @return The entity
+         */
+        public HttpEntity getEntity() {
+            return entity;
+        }
+        
+        /**
+         * Releases the connection back to the pool and the permit to the concurrency limiter
+         * @throws IOException if the rest of the response cannot be read
+         */
+        public void release() throws IOException {
+            try {
+                EntityUtils.consume(entity);
+            }
+            finally {
+                permit.release();
+            }
+        }
+    }
 }
@@ -6,6 +6,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.net.URI;
 import java.util.Iterator;
 import java.util.TreeMap;
 
@@ -31,6 +32,7 @@ public class ExtractionServiceManager {
     
     private final TreeMap<String, ExtractionService> services;
     private final File settingsFile;
+    private final ResultCache resultCache;
     
     /**
      * Creates a new <tt>ExtractionServiceManager</tt>
@@ -42,6 +44,8 @@ public class ExtractionServiceManager {
     public ExtractionServiceManager(final File settingsFile) throws IOException, JSONException, ClassNotFoundException {
         this.settingsFile = settingsFile;
         services = new TreeMap<String, ExtractionService>();
+        // Keep cached results next to the settings file
+        resultCache = ResultCache.fromSettings(new File(settingsFile.getAbsoluteFile().getParentFile(), "results"));
         
         // First load the default settings,
         // so new services are automatically instantiated
@@ -104,12 +108,51 @@ public class ExtractionServiceManager {
             catch (InstantiationException error) { throw new RuntimeException(error); }
             catch (IllegalAccessException error) { throw new RuntimeException(error); }
             
+            // Let the service consult the shared result cache,
+            // and name its circuit breaker after the service
+            if (service instanceof ExtractionServiceBase) {
+                ((ExtractionServiceBase)service).setResultCache(resultCache);
+                ((ExtractionServiceBase)service).setCircuitBreaker(CircuitBreaker.fromSettings(serviceName));
+            }
+            
             // Add the newly created service
             addService(serviceName, service);
         }
         return service;
     }
     
+    /**
+     * Gets the directory where extraction runs keep checkpoints of their partial results
+     * @return The directory, next to the settings file
+     */
+    public File getCheckpointDirectory() {
+        return new File(settingsFile.getAbsoluteFile().getParentFile(), "checkpoints");
+    }
+    
+    /**
+     * Gets the directory where extraction changes keep their results once they are applied
+     * @return The directory, next to the settings file
+     */
+    public File getChangeDirectory() {
+        return new File(settingsFile.getAbsoluteFile().getParentFile(), "changes");
+    }
+    
+    /**
+     * Gets the directory where extraction runs spill the results of large projects
+     * @return The directory, next to the settings file
+     */
+    public File getSpillDirectory() {
+        return new File(settingsFile.getAbsoluteFile().getParentFile(), "spill");
+    }
+    
+    /**
+     * Gets the cache of extraction results
+     * @return The cache, or <tt>null</tt> if caching is disabled
+     */
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+    
     /**
      * Gets the names of all services in the manager
      * @return The services names
@@ -133,6 +176,15 @@ public class ExtractionServiceManager {
      * @param output The writer
      */
     public void writeTo(final JSONWriter output) {
+        writeTo(output, false);
+    }
+    
+    /**
+     * Writes the configuration to the specified writer
+     * @param output The writer
+     * @param includeStatus Whether to include the current concurrency, availability and transferred bytes of each service
+     */
+    public void writeTo(final JSONWriter output, final boolean includeStatus) {
         try {
             /* Array of services */
             output.array();
@@ -156,6 +208,39 @@ public class ExtractionServiceManager {
                         output.value(service.getProperty(propertyName));
                     }
                     output.endObject();
+                    
+                    if (includeStatus && service instanceof ExtractionServiceBase) {
+                        /* Service concurrency object, for services with a fixed URL */
+                        final URI serviceUrl = ((ExtractionServiceBase)service).createExtractionRequestUrl(null);
+                        if (serviceUrl != null) {
+                            final ConcurrencyLimiter limiter = ConcurrencyLimiter.getLimiter(serviceUrl);
+                            output.key("concurrency");
+                            output.object();
+                            output.key("limit");
+                            output.value(limiter.getLimit());
+                            output.key("inFlight");
+                            output.value(limiter.getInFlight());
+                            output.key("latency");
+                            output.value(limiter.getLatency());
+                            output.key("circuit");
+                            output.value(((ExtractionServiceBase)service).getCircuitBreaker().getState().name());
+                            output.endObject();
+                        }
+                        
+                        /* Service transfer object */
+                        final TransferStatistics transfer = ((ExtractionServiceBase)service).getTransferStatistics();
+                        output.key("transfer");
+                        output.object();
+                        output.key("requestBytes");
+                        output.value(transfer.getRequestBytes());
+                        output.key("requestBytesSent");
+                        output.value(transfer.getRequestBytesSent());
+                        output.key("responseBytes");
+                        output.value(transfer.getResponseBytes());
+                        output.key("responseBytesReceived");
+                        output.value(transfer.getResponseBytesReceived());
+                        output.endObject();
+                    }
                 }
                 output.endObject();
             }
@@ -0,0 +1,205 @@
+package com.brainymachine.extraction.services;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.http.protocol.HttpContext;
+import org.apache.log4j.Logger;
+
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Manager of shared, thread-safe HTTP clients with pooled connections,
+ * one per service endpoint (scheme, host and port).
+ * Endpoints that have not been used for the idle timeout and hold no connections are shut down and removed.
+ */
+@SuppressWarnings("deprecation")
+public final class HttpClientManager {
+    private final static Logger LOGGER = Logger.getLogger(HttpClientManager.class);
+    private final static HashMap<String, Endpoint> ENDPOINTS = new HashMap<String, Endpoint>();
+    private static IdleConnectionEvictor evictor;
+    
+    /**
+     * Private constructor to avoid instance creation.
+     */
+    private HttpClientManager() { }
+    
+    /**
+     * Gets the shared client for the endpoint of the specified service URL
+     * @param serviceUrl The service URL
+     * @return The client
+     */
+    public static HttpClient getClient(final URI serviceUrl) {
+        return getEndpoint(serviceUrl).client;
+    }
+    
+    /**
+     * Gets the number of connections currently held by the pool of the specified service URL
+     * @param serviceUrl The service URL
+     * @return The number of connections
+     */
+    public static int getConnectionsInPool(final URI serviceUrl) {
+        return getEndpoint(serviceUrl).connectionManager.getConnectionsInPool();
+    }
+    
+    /**
+     * Closes all pooled connections and forgets the shared clients
+     */
+    public static synchronized void shutdown() {
+        for (final Endpoint endpoint : ENDPOINTS.values())
+            endpoint.connectionManager.shutdown();
+        ENDPOINTS.clear();
+        if (evictor != null) {
+            evictor.interrupt();
+            evictor = null;
+        }
+    }
+    
+    /**
+     * Gets or creates the endpoint of the specified service URL
+     * @param serviceUrl The service URL
+     * @return The endpoint
+     */
+    protected static synchronized Endpoint getEndpoint(final URI serviceUrl) {
+        final String key = String.format("%s://%s", serviceUrl.getScheme(), serviceUrl.getRawAuthority());
+        Endpoint endpoint = ENDPOINTS.get(key);
+        if (endpoint == null) {
+            LOGGER.info("Creating connection pool for " + key);
+            ENDPOINTS.put(key, endpoint = new Endpoint());
+        }
+        endpoint.lastUsed = System.currentTimeMillis();
+        if (evictor == null) {
+            evictor = new IdleConnectionEvictor();
+            evictor.start();
+        }
+        return endpoint;
+    }
+    
+    /**
+     * Gets the number of endpoints with a shared client
+     * @return The number of endpoints
+     */
+    public static synchronized int getEndpointCount() {
+        return ENDPOINTS.size();
+    }
+    
+    /**
+     * Closes the expired and idle connections of all endpoints,
+     * and shuts down and removes the endpoints that were idle and hold no connections anymore
+     * @param idleTimeout The time in milliseconds after which a connection or endpoint is idle
+     */
+    protected static synchronized void evictIdle(final long idleTimeout) {
+        final long now = System.currentTimeMillis();
+        final Iterator<Map.Entry<String, Endpoint>> iterator = ENDPOINTS.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, Endpoint> entry = iterator.next();
+            final Endpoint endpoint = entry.getValue();
+            endpoint.connectionManager.closeExpiredConnections();
+            endpoint.connectionManager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+            if (now - endpoint.lastUsed >= idleTimeout && endpoint.connectionManager.getConnectionsInPool() == 0) {
+                LOGGER.debug("Removing idle connection pool for " + entry.getKey());
+                endpoint.connectionManager.shutdown();
+                iterator.remove();
+            }
+        }
+    }
+    
+    /**
+     * Pooled connection manager and client of a single endpoint
+     */
+    protected static class Endpoint {
+        private final ThreadSafeClientConnManager connectionManager;
+        private final DefaultHttpClient client;
+        private volatile long lastUsed;
+        
+        /**
+         * Creates a new <tt>Endpoint</tt>, configured through the <tt>extraction.http.*</tt> settings
+         */
+        public Endpoint() {
+            connectionManager = new ThreadSafeClientConnManager(SchemeRegistryFactory.createDefault());
+            connectionManager.setMaxTotal(SettingsUtil.getInt("http.maxConnections", 64));
+            connectionManager.setDefaultMaxPerRoute(SettingsUtil.getInt("http.maxConnectionsPerRoute", 32));
+            
+            client = new DefaultHttpClient(connectionManager);
+            final HttpParams params = client.getParams();
+            HttpConnectionParams.setConnectionTimeout(params, SettingsUtil.getInt("http.connectTimeout", 10000));
+            HttpConnectionParams.setSoTimeout(params, SettingsUtil.getInt("http.readTimeout", 60000));
+            HttpConnectionParams.setStaleCheckingEnabled(params, true);
+            client.setKeepAliveStrategy(new KeepAliveStrategy(SettingsUtil.getLong("http.keepAlive", 30000)));
+        }
+    }
+    
+    /**
+     * Keep-alive strategy that honours the server's <tt>Keep-Alive</tt> timeout
+     * and uses a default duration otherwise
+     */
+    protected static class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+        private final long defaultDuration;
+        
+        /**
+         * Creates a new <tt>KeepAliveStrategy</tt>
+         * @param defaultDuration The keep-alive duration in milliseconds if the server specifies none
+         */
+        public KeepAliveStrategy(final long defaultDuration) {
+            this.defaultDuration = defaultDuration;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public long getKeepAliveDuration(final HttpResponse response, final HttpContext context) {
+            final HeaderElementIterator elements = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (elements.hasNext()) {
+                final HeaderElement element = elements.nextElement();
+                if ("timeout".equalsIgnoreCase(element.getName()) && element.getValue() != null) {
+                    try {
+                        return Long.parseLong(element.getValue()) * 1000;
+                    }
+                    catch (NumberFormatException e) { }
+                }
+            }
+            return defaultDuration;
+        }
+    }
+    
+    /**
+     * Daemon thread that periodically closes expired and idle pooled connections and removes idle endpoints
+     */
+    protected static class IdleConnectionEvictor extends Thread {
+        private final long idleTimeout = SettingsUtil.getLong("http.idleTimeout", 30000);
+        
+        /**
+         * Creates a new <tt>IdleConnectionEvictor</tt>
+         */
+        public IdleConnectionEvictor() {
+            super("extraction-idle-connection-evictor");
+            setDaemon(true);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void run() {
+            try {
+                while (!isInterrupted()) {
+                    Thread.sleep(Math.max(1000, idleTimeout / 2));
+                    evictIdle(idleTimeout);
+                }
+            }
+            catch (InterruptedException e) { }
+        }
+    }
+}
@@ -0,0 +1,509 @@
+package com.brainymachine.extraction.services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpressionException;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.brainymachine.extraction.services.ExtractionService;
+import com.brainymachine.extraction.services.ExtractionServiceBase;
+import com.brainymachine.extraction.util.HashUtil;
+import com.brainymachine.extraction.util.HtmlUtil;
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Extraction service that evaluates the XPath in-process,
+ * on HTML in the cell, in a local file or at a URL.
+ * XPaths in the streaming subset are matched while the HTML is read;
+ * other XPaths are evaluated on the parsed document.
+ * Pages are fetched by the shared {@link PageFetcher}, which is polite to their hosts.
+ */
+public class LocalExtract extends ExtractionServiceBase implements ExtractionService {
+    private final static Logger LOGGER = Logger.getLogger(LocalExtract.class);
+    private final static String[] PROPERTYNAMES = { "xpath","attribute","column" };
+    private final static String[] RESULTPROPERTYNAMES = { "xpath","attribute" };
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    
+    private final XPathEngine engine = XPathEngine.getSharedEngine();
+    private final PageFetcher fetcher = PageFetcher.getSharedFetcher();
+    private final int batchSize = Math.max(1, SettingsUtil.getInt("local.batchSize", 16));
+    
+    /**
+     * Creates a new local extraction service
+     */
+    public LocalExtract() {
+        super(PROPERTYNAMES);
+        setProperty("xpath", "//title"); //default
+        setProperty("attribute", ""); //default
+        setProperty("column", ""); //default
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Results are not cached, since evaluating the XPath locally is cheaper than looking them up.
+     * The result of a page that cannot be fetched is <tt>null</tt>, as in batches.
+     */
+    @Override
+    public String[] extractElementValues(final String text) throws Exception {
+        final List<ExtractionService> services = Collections.<ExtractionService>singletonList(this);
+        final StreamingXPath[] streamingXPaths = getStreamingXPaths(services);
+        final URI url = getPageUrl(text.trim());
+        if (url == null)
+            return extractTextValues(text, services, streamingXPaths)[0];
+        final String[][] results = getPageValues(fetchPage(url, services, streamingXPaths), text.trim());
+        return results == null ? null : results[0];
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Pages of the texts are fetched concurrently, as their hosts allow.
+     */
+    @Override
+    public String[][] extractElementValues(final List<String> texts) throws Exception {
+        final String[][][] results = extractElementValues(texts, Collections.<ExtractionService>singletonList(this));
+        final String[][] serviceResults = new String[results.length][];
+        for (int i = 0; i < results.length; i++)
+            serviceResults[i] = results[i] == null ? null : results[i][0];
+        return serviceResults;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Reads each text only once and matches the XPath of every service on it,
+     * as a stream if all XPaths belong to the streaming subset.
+     * Pages are fetched and extracted by the shared page fetcher, while HTML and files are extracted meanwhile;
+     * the results of a page that cannot be fetched are <tt>null</tt>.
+     */
+    @Override
+    public String[][][] extractElementValues(final List<String> texts, final List<ExtractionService> services) throws Exception {
+        final StreamingXPath[] streamingXPaths = getStreamingXPaths(services);
+        final String[][][] results = new String[texts.size()][][];
+        final ArrayList<Future<String[][]>> pages = new ArrayList<Future<String[][]>>(texts.size());
+        for (final String text : texts) {
+            final URI url = getPageUrl(text.trim());
+            pages.add(url == null ? null : fetchPage(url, services, streamingXPaths));
+        }
+        boolean completed = false;
+        try {
+            for (int i = 0; i < results.length; i++)
+                if (pages.get(i) == null)
+                    results[i] = extractTextValues(texts.get(i), services, streamingXPaths);
+            for (int i = 0; i < results.length; i++)
+                if (pages.get(i) != null)
+                    results[i] = getPageValues(pages.get(i), texts.get(i).trim());
+            completed = true;
+        }
+        finally {
+            // Stop fetching the pages of a failed batch
+            if (!completed)
+                for (final Future<String[][]> page : pages)
+                    if (page != null)
+                        page.cancel(true);
+        }
+        return results;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Pages are fetched concurrently, so a batch occupies a single worker while its pages are read,
+     * configured through the <tt>extraction.local.batchSize</tt> setting.
+     */
+    @Override
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    /**
+     * {@inheritDoc}
+     * All local services can be combined, since they share the parsed documents.
+     */
+    @Override
+    public String getCombinationKey() {
+        return LocalExtract.class.getName();
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected String[] getResultPropertyNames() {
+        return RESULTPROPERTYNAMES;
+    }
+    
+    /**
+     * Gets the streaming form of the XPath of every service
+     * @param services The local extraction services
+     * @return The compiled XPaths, or <tt>null</tt> if any XPath is not in the streaming subset
+     */
+    private StreamingXPath[] getStreamingXPaths(final List<ExtractionService> services) {
+        final StreamingXPath[] streamingXPaths = new StreamingXPath[services.size()];
+        for (int j = 0; j < streamingXPaths.length; j++) {
+            streamingXPaths[j] = engine.getStreamingXPath(services.get(j).getProperty("xpath").trim());
+            if (streamingXPaths[j] == null)
+                return null;
+        }
+        return streamingXPaths;
+    }
+    
+    /**
+     * Starts extracting the elements of every service from the page at the URL.
+     * A page whose parsed document is still in the cache is extracted from it, without being fetched again.
+     * @param url The URL of the page
+     * @param services The local extraction services
+     * @param streamingXPaths The streaming form of the XPath of each service, or <tt>null</tt> to parse the page
+     * @return The future extracted elements of each service
+     */
+    private Future<String[][]> fetchPage(final URI url, final List<ExtractionService> services,
+                                         final StreamingXPath[] streamingXPaths) {
+        final Document document = streamingXPaths == null ? engine.getCachedDocument(url.toString()) : null;
+        if (document == null)
+            return fetcher.fetch(url, getTransferStatistics(), new PageExtractor(services, streamingXPaths));
+        final FutureTask<String[][]> page = new FutureTask<String[][]>(new Callable<String[][]>() {
+            public String[][] call() throws XPathExpressionException {
+                return extractDocumentValues(document, services);
+            }
+        });
+        page.run();
+        return page;
+    }
+    
+    /**
+     * Gets the extracted elements of a fetched page
+     * @param page The future extracted elements of the page
+     * @param url The URL of the page
+     * @return The extracted elements of each service, or <tt>null</tt> if the page could not be fetched
+     * @throws InterruptedException if the thread is interrupted while waiting for the page
+     */
+    private static String[][] getPageValues(final Future<String[][]> page, final String url) throws InterruptedException {
+        try {
+            return await(page);
+        }
+        catch (InterruptedException error) {
+            throw error;
+        }
+        catch (Exception error) {
+            LOGGER.warn(String.format("Extracting from %s failed: %s", url, error));
+            return null;
+        }
+    }
+    
+    /**
+     * Waits for the result of the future
+     * @param <T> The type of the result
+     * @param future The future
+     * @return The result
+     * @throws Exception the exception of the task, or <tt>InterruptedException</tt> if the thread is interrupted
+     */
+    private static <T> T await(final Future<T> future) throws Exception {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException error) {
+            if (error.getCause() instanceof Exception)
+                throw (Exception)error.getCause();
+            throw error;
+        }
+    }
+    
+    /**
+     * Extracts the elements of every service from the HTML or file of the text
+     * @param text The text
+     * @param services The local extraction services
+     * @param streamingXPaths The streaming form of the XPath of each service, or <tt>null</tt> to parse the document
+     * @return The extracted elements of each service
+     * @throws Exception if the text cannot be read or an XPath cannot be evaluated
+     */
+    protected String[][] extractTextValues(final String text, final List<ExtractionService> services,
+                                           final StreamingXPath[] streamingXPaths) throws Exception {
+        if (streamingXPaths != null) {
+            final Reader reader = openDocument(text);
+            try {
+                return streamElementValues(reader, services, streamingXPaths);
+            }
+            finally {
+                reader.close();
+            }
+        }
+        final Document document = engine.getDocument(getDocumentKey(text), new Callable<Document>() {
+            public Document call() throws IOException {
+                final Reader reader = openDocument(text);
+                try {
+                    return HtmlUtil.parse(reader);
+                }
+                finally {
+                    reader.close();
+                }
+            }
+        });
+        return extractDocumentValues(document, services);
+    }
+    
+    /**
+     * Matches the XPaths of the services while reading the document,
+     * and stops reading once every service has all of its values
+     * @param reader The reader of the document
+     * @param services The local extraction services
+     * @param streamingXPaths The streaming form of the XPath of each service
+     * @return The extracted elements of each service
+     * @throws IOException if the document cannot be read
+     */
+    protected String[][] streamElementValues(final Reader reader, final List<ExtractionService> services,
+                                             final StreamingXPath[] streamingXPaths) throws IOException {
+        final StreamingXPath.Matcher[] matchers = new StreamingXPath.Matcher[streamingXPaths.length];
+        for (int j = 0; j < matchers.length; j++)
+            matchers[j] = streamingXPaths[j].createMatcher(services.get(j).getProperty("attribute").trim(), getMaxElements());
+        engine.recordStream(HtmlUtil.parse(reader, new MatcherGroup(matchers)));
+        
+        final String[][] results = new String[matchers.length][];
+        for (int j = 0; j < matchers.length; j++) {
+            final String[] values = matchers[j].getResults();
+            results[j] = values.length == 0 ? EMPTY_EXTRACTION_RESULT : values;
+        }
+        return results;
+    }
+    
+    /**
+     * Evaluates the XPath of every service on the document
+     * @param document The document
+     * @param services The local extraction services
+     * @return The extracted elements of each service
+     * @throws XPathExpressionException if an XPath cannot be evaluated
+     */
+    private static String[][] extractDocumentValues(final Document document, final List<ExtractionService> services)
+            throws XPathExpressionException {
+        final String[][] results = new String[services.size()][];
+        for (int j = 0; j < results.length; j++)
+            results[j] = ((LocalExtract)services.get(j)).extractElementValues(document);
+        return results;
+    }
+    
+    /**
+     * Gets the document cache key of the HTML or file of the text:
+     * the URI and modification time of a file, or the hash of HTML
+     * @param text The text
+     * @return The key
+     */
+    private static String getDocumentKey(final String text) {
+        final File file = getFile(text.trim());
+        if (file != null)
+            return file.toURI() + "#" + file.lastModified();
+        return getContentHash(text);
+    }
+    
+    /**
+     * Opens the document of the text, which is either HTML,
+     * or the <tt>file:</tt> URI or absolute path of a local file if files are allowed
+     * @param text The text
+     * @return The reader of the document
+     * @throws IOException if the file cannot be opened
+     */
+    protected static Reader openDocument(final String text) throws IOException {
+        final File file = getFile(text.trim());
+        if (file != null)
+            return new InputStreamReader(new FileInputStream(file), UTF8);
+        return new StringReader(text);
+    }
+    
+    /**
+     * Gets the URL of the page the text refers to
+     * @param trimmedText The trimmed text
+     * @return The HTTP or HTTPS URL, or <tt>null</tt> if the text is not such a URL
+     */
+    private static URI getPageUrl(final String trimmedText) {
+        if (trimmedText.startsWith("<"))
+            return null;
+        final URI uri = createUri(trimmedText);
+        if (uri != null && ("http".equalsIgnoreCase(uri.getScheme()) || "https".equalsIgnoreCase(uri.getScheme())))
+            return uri;
+        return null;
+    }
+    
+    /**
+     * Gets the local file the text refers to, if the <tt>extraction.local.files</tt> setting allows reading files.
+     * Relative paths are never resolved, so values such as <tt>data</tt> are not read from the working directory.
+     * @param trimmedText The trimmed text
+     * @return The file, or <tt>null</tt> if files are not allowed
+     *         or the text is not the <tt>file:</tt> URI or absolute path of an existing file
+     */
+    private static File getFile(final String trimmedText) {
+        if (trimmedText.startsWith("<") || !SettingsUtil.getBoolean("local.files", false))
+            return null;
+        final URI uri = createUri(trimmedText);
+        final File file;
+        try {
+            file = uri != null && "file".equalsIgnoreCase(uri.getScheme()) ? new File(uri) : new File(trimmedText);
+        }
+        // File URIs that are relative or have an authority or query do not denote local files
+        catch (IllegalArgumentException e) {
+            return null;
+        }
+        return file.isAbsolute() && file.isFile() ? file : null;
+    }
+    
+    /**
+     * Gets the hash of the content as a document cache key
+     * @param text The content
+     * @return The hash
+     */
+    private static String getContentHash(final String text) {
+        return "sha1:" + HashUtil.sha1(text);
+    }
+    
+    /**
+     * Extracts the values of the nodes that match the XPath from the document:
+     * the specified attribute of matching elements, or their HTML if no attribute is specified,
+     * and the value of other matching nodes
+     * @param document The document
+     * @return The extracted elements
+     * @throws XPathExpressionException if the XPath cannot be evaluated
+     */
+    protected String[] extractElementValues(final Document document) throws XPathExpressionException {
+        // Cached documents can be shared by several threads
+        synchronized (document) {
+            return extractNodeValues(document);
+        }
+    }
+    
+    /**
+     * Extracts the values of the nodes that match the XPath from the document
+     * @param document The document, which the caller has locked
+     * @return The extracted elements
+     * @throws XPathExpressionException if the XPath cannot be evaluated
+     */
+    private String[] extractNodeValues(final Document document) throws XPathExpressionException {
+        final String xpath = getProperty("xpath");
+        final NodeList nodes;
+        try {
+            nodes = (NodeList)engine.evaluate(xpath, document, XPathConstants.NODESET);
+        }
+        // Expressions such as count() or string() do not select nodes
+        catch (XPathExpressionException error) {
+            return new String[] { (String)engine.evaluate(xpath, document, XPathConstants.STRING) };
+        }
+        
+        final String attribute = getProperty("attribute").trim();
+        final int maxElements = getMaxElements();
+        final ArrayList<String> values = new ArrayList<String>(nodes.getLength());
+        for (int i = 0; i < nodes.getLength() && (maxElements <= 0 || values.size() < maxElements); i++) {
+            final Node node = nodes.item(i);
+            if (node.getNodeType() != Node.ELEMENT_NODE)
+                values.add(node.getTextContent());
+            else if (attribute.length() == 0)
+                values.add(HtmlUtil.toHtml(node));
+            else if (((Element)node).hasAttribute(attribute.toLowerCase()))
+                values.add(((Element)node).getAttribute(attribute.toLowerCase()));
+        }
+        return values.isEmpty() ? EMPTY_EXTRACTION_RESULT : values.toArray(new String[values.size()]);
+    }
+    
+    /**
+     * Creates a URI from the text if it is a valid absolute URI
+     * @param text The text
+     * @return The URI, or <tt>null</tt> if the text is not an absolute URI
+     */
+    private static URI createUri(final String text) {
+        try {
+            final URI uri = new URI(text);
+            return uri.isAbsolute() ? uri : null;
+        }
+        catch (Exception e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Reader that extracts the elements of every service from a fetched page
+     */
+    protected class PageExtractor implements PageFetcher.PageReader<String[][]> {
+        private final List<ExtractionService> services;
+        private final StreamingXPath[] streamingXPaths;
+        
+        /**
+         * Creates a new <tt>PageExtractor</tt>
+         * @param services The local extraction services
+         * @param streamingXPaths The streaming form of the XPath of each service, or <tt>null</tt> to parse the page
+         */
+        public PageExtractor(final List<ExtractionService> services, final StreamingXPath[] streamingXPaths) {
+            this.services = services;
+            this.streamingXPaths = streamingXPaths;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public String[][] read(final URI url, final Reader body) throws Exception {
+            if (streamingXPaths != null)
+                return streamElementValues(body, services, streamingXPaths);
+            final Document document = engine.getDocument(url.toString(), new Callable<Document>() {
+                public Document call() throws IOException {
+                    return HtmlUtil.parse(body);
+                }
+            });
+            return extractDocumentValues(document, services);
+        }
+    }
+    
+    /**
+     * Handler that passes the elements and text of a document to several matchers,
+     * until every matcher is done
+     */
+    protected static class MatcherGroup implements HtmlUtil.Handler {
+        private final StreamingXPath.Matcher[] matchers;
+        
+        /**
+         * Creates a new <tt>MatcherGroup</tt>
+         * @param matchers The matchers
+         */
+        public MatcherGroup(final StreamingXPath.Matcher[] matchers) {
+            this.matchers = matchers;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void startElement(final String name, final Map<String, String> attributes) {
+            for (final StreamingXPath.Matcher matcher : matchers)
+                matcher.startElement(name, attributes);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void endElement(final String name) {
+            for (final StreamingXPath.Matcher matcher : matchers)
+                matcher.endElement(name);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void text(final String text) {
+            for (final StreamingXPath.Matcher matcher : matchers)
+                matcher.text(text);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public boolean isDone() {
+            for (final StreamingXPath.Matcher matcher : matchers)
+                if (!matcher.isDone())
+                    return false;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,496 @@
+package com.brainymachine.extraction.services;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import com.brainymachine.extraction.util.CompressionUtil;
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Fetcher of web pages for local extraction that is polite to each host:
+ * per host, it limits the number of concurrent fetches, keeps a minimum delay between them
+ * and follows the host's <tt>robots.txt</tt>.
+ * Fetches that wait for their host are queued without holding a thread;
+ * pages are read on a shared pool of fetch threads over the pooled keep-alive connections of the host.
+ */
+@SuppressWarnings("deprecation")
+public class PageFetcher {
+    private final static Logger LOGGER = Logger.getLogger(PageFetcher.class);
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    /** The longest crawl delay of a <tt>robots.txt</tt> that is honoured, in milliseconds */
+    private final static long MAX_CRAWL_DELAY = 30000;
+    /** The time in milliseconds after which an unavailable <tt>robots.txt</tt> is requested again */
+    private final static long ROBOTS_RETRY_DELAY = 60000;
+    /** The time in milliseconds between removals of idle hosts */
+    private final static long HOST_PRUNE_INTERVAL = 60000;
+    private static PageFetcher sharedFetcher;
+    
+    private final int hostConcurrency;
+    private final long hostDelay;
+    private final boolean followRobots;
+    private final long robotsTtl;
+    private final String userAgent;
+    private final ThreadPoolExecutor fetchThreads;
+    private final ScheduledExecutorService timer;
+    private final HashMap<String, Host> hosts = new HashMap<String, Host>();
+    private long nextPrune;
+    private final AtomicLong pagesFetched = new AtomicLong();
+    private final AtomicLong pagesDisallowed = new AtomicLong();
+    
+    /**
+     * Creates a new <tt>PageFetcher</tt>
+     * @param threads The number of threads that read pages
+     * @param hostConcurrency The maximum number of concurrent fetches per host
+     * @param hostDelay The minimum delay in milliseconds between the starts of fetches from a host
+     * @param followRobots Whether to follow the <tt>robots.txt</tt> of each host
+     * @param robotsTtl The time in milliseconds after which a host's <tt>robots.txt</tt> is requested again
+     * @param userAgent The user agent that identifies the fetcher to hosts and their <tt>robots.txt</tt>
+     */
+    public PageFetcher(final int threads, final int hostConcurrency, final long hostDelay,
+                       final boolean followRobots, final long robotsTtl, final String userAgent) {
+        this.hostConcurrency = Math.max(1, hostConcurrency);
+        this.hostDelay = Math.max(0, hostDelay);
+        this.followRobots = followRobots;
+        this.robotsTtl = robotsTtl;
+        this.userAgent = userAgent;
+        fetchThreads = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 60, TimeUnit.SECONDS,
+                                              new LinkedBlockingQueue<Runnable>(), new FetchThreadFactory("fetcher"));
+        fetchThreads.allowCoreThreadTimeOut(true);
+        timer = new ScheduledThreadPoolExecutor(1, new FetchThreadFactory("fetch-timer"));
+    }
+    
+    /**
+     * Gets the fetcher that is shared by all local services, configured through the
+     * <tt>extraction.fetch.*</tt> settings
+     * @return The shared fetcher
+     */
+    public static synchronized PageFetcher getSharedFetcher() {
+        if (sharedFetcher == null)
+            sharedFetcher = new PageFetcher(SettingsUtil.getInt("fetch.threads", 32),
+                                            SettingsUtil.getInt("fetch.hostConcurrency", 2),
+                                            SettingsUtil.getLong("fetch.hostDelay", 0),
+                                            SettingsUtil.getBoolean("fetch.robots", true),
+                                            SettingsUtil.getLong("fetch.robotsTtl", 3600000),
+                                            SettingsUtil.getString("fetch.userAgent", "OpenRefine-Extraction/1.0"));
+        return sharedFetcher;
+    }
+    
+    /**
+     * Reader of the body of a fetched page
+     * @param <T> The type of the result of reading the page
+     */
+    public interface PageReader<T> {
+        /**
+         * Reads the body of the page; the rest of the body is discarded once the reader returns
+         * @param url The URL of the page
+         * @param body The reader of the body
+         * @return The result of reading the page
+         * @throws Exception if the page cannot be read
+         */
+        public T read(URI url, Reader body) throws Exception;
+    }
+    
+    /**
+     * Fetches the page once its host allows it, and reads its body on a fetch thread
+     * @param <T> The type of the result of reading the page
+     * @param url The URL of the page
+     * @param statistics The statistics to count the transferred bytes in
+     * @param reader The reader of the page's body
+     * @return The future result of reading the page, which fails if the page cannot be fetched
+     */
+    public <T> Future<T> fetch(final URI url, final TransferStatistics statistics, final PageReader<T> reader) {
+        final Callable<T> task = new Callable<T>() {
+            public T call() throws Exception {
+                return fetchPage(url, statistics, reader);
+            }
+        };
+        // Get the host again if it was removed as idle in the meantime
+        while (true) {
+            final Host host = getHost(url);
+            synchronized (host) {
+                if (!host.removed) {
+                    final Fetch<T> fetch = new Fetch<T>(host, url, task);
+                    host.queue.add(fetch);
+                    dispatch(host);
+                    return fetch;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Gets the number of pages that were fetched
+     * @return The number of pages
+     */
+    public long getPagesFetched() {
+        return pagesFetched.get();
+    }
+    
+    /**
+     * Gets the number of pages that were not fetched because the host's <tt>robots.txt</tt> disallows them
+     * @return The number of pages
+     */
+    public long getPagesDisallowed() {
+        return pagesDisallowed.get();
+    }
+    
+    /**
+     * Gets the number of hosts whose state is kept
+     * @return The number of hosts
+     */
+    public synchronized int getHostCount() {
+        return hosts.size();
+    }
+    
+    /**
+     * Gets or creates the state of the host of the URL, and periodically removes idle hosts
+     * @param url The URL
+     * @return The host
+     */
+    protected synchronized Host getHost(final URI url) {
+        final long now = System.currentTimeMillis();
+        if (now >= nextPrune) {
+            removeIdleHosts(now);
+            nextPrune = now + HOST_PRUNE_INTERVAL;
+        }
+        final String key = String.format("%s://%s", url.getScheme(), url.getRawAuthority()).toLowerCase();
+        Host host = hosts.get(key);
+        if (host == null)
+            hosts.put(key, host = new Host(URI.create(key + "/robots.txt")));
+        return host;
+    }
+    
+    /**
+     * Removes the hosts without queued or active fetches whose <tt>robots.txt</tt> and delay have expired,
+     * since new state for them would be the same; the caller has locked this fetcher
+     * @param now The current time
+     */
+    protected void removeIdleHosts(final long now) {
+        final Iterator<Host> iterator = hosts.values().iterator();
+        while (iterator.hasNext()) {
+            final Host host = iterator.next();
+            synchronized (host) {
+                if (host.queue.isEmpty() && host.active == 0 && !host.robotsLoading && !host.dispatchScheduled
+                        && now >= host.nextStart && (!followRobots || now >= host.robotsExpiry)) {
+                    host.removed = true;
+                    iterator.remove();
+                }
+            }
+        }
+    }
+    
+    /**
+     * Starts as many of the host's queued fetches as its limits allow,
+     * and schedules another attempt if the host's delay has not passed yet
+     * @param host The host, which the caller has locked
+     */
+    protected void dispatch(final Host host) {
+        while (!host.queue.isEmpty() && host.active < hostConcurrency && !host.robotsLoading && !host.dispatchScheduled) {
+            final long now = System.currentTimeMillis();
+            if (followRobots && now >= host.robotsExpiry) {
+                loadRobots(host);
+                return;
+            }
+            if (now < host.nextStart) {
+                host.dispatchScheduled = true;
+                timer.schedule(new Runnable() {
+                    public void run() {
+                        synchronized (host) {
+                            host.dispatchScheduled = false;
+                            dispatch(host);
+                        }
+                    }
+                }, host.nextStart - now, TimeUnit.MILLISECONDS);
+                return;
+            }
+            final Fetch<?> fetch = host.queue.removeFirst();
+            if (fetch.isCancelled())
+                continue;
+            if (!host.rules.isAllowed(fetch.url)) {
+                pagesDisallowed.incrementAndGet();
+                fetch.fail(new IllegalStateException(String.format("The robots.txt of %s does not allow fetching %s.",
+                                                                   host.robotsUrl.getAuthority(), fetch.url)));
+                continue;
+            }
+            host.active++;
+            host.nextStart = now + getDelay(host);
+            fetchThreads.execute(fetch);
+        }
+    }
+    
+    /**
+     * Gets the minimum delay between the starts of fetches from the host
+     * @param host The host
+     * @return The delay in milliseconds
+     */
+    private long getDelay(final Host host) {
+        return Math.max(hostDelay, Math.min(host.rules.getCrawlDelay(), MAX_CRAWL_DELAY));
+    }
+    
+    /**
+     * Requests the <tt>robots.txt</tt> of the host on a fetch thread, holding back its other fetches
+     * @param host The host, which the caller has locked
+     */
+    private void loadRobots(final Host host) {
+        host.robotsLoading = true;
+        host.active++;
+        fetchThreads.execute(new Runnable() {
+            public void run() {
+                RobotsRules rules;
+                long ttl = robotsTtl;
+                try {
+                    rules = fetchRobots(host.robotsUrl);
+                    // A server error means the host may be overloaded, so nothing is fetched for a while
+                    if (rules == null) {
+                        LOGGER.warn(String.format("%s is unavailable; not fetching from its host for %d seconds.",
+                                                  host.robotsUrl, ROBOTS_RETRY_DELAY / 1000));
+                        rules = RobotsRules.DISALLOW_ALL;
+                        ttl = ROBOTS_RETRY_DELAY;
+                    }
+                }
+                // Connection errors are reported by the page fetches themselves
+                catch (Exception error) {
+                    LOGGER.debug("Could not fetch " + host.robotsUrl, error);
+                    rules = RobotsRules.ALLOW_ALL;
+                    ttl = ROBOTS_RETRY_DELAY;
+                }
+                synchronized (host) {
+                    final long now = System.currentTimeMillis();
+                    host.rules = rules;
+                    host.robotsExpiry = now + ttl;
+                    host.robotsLoading = false;
+                    host.active--;
+                    host.nextStart = Math.max(host.nextStart, now + getDelay(host));
+                    dispatch(host);
+                }
+            }
+        });
+    }
+    
+    /**
+     * Fetches and parses the <tt>robots.txt</tt>
+     * @param robotsUrl The URL of the <tt>robots.txt</tt>
+     * @return The rules for this fetcher's user agent, or <tt>null</tt> if the host has a server error
+     * @throws IOException if the <tt>robots.txt</tt> cannot be fetched
+     */
+    protected RobotsRules fetchRobots(final URI robotsUrl) throws IOException {
+        final HttpGet request = new HttpGet(robotsUrl);
+        request.setHeader("User-Agent", userAgent);
+        final HttpResponse response = HttpClientManager.getClient(robotsUrl).execute(request);
+        final HttpEntity entity = response.getEntity();
+        final int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode < 200 || statusCode >= 300) {
+            EntityUtils.consume(entity);
+            // A missing robots.txt allows everything
+            return statusCode >= 500 ? null : RobotsRules.ALLOW_ALL;
+        }
+        final Reader reader = new InputStreamReader(entity.getContent(), UTF8);
+        try {
+            return RobotsRules.parse(reader, userAgent);
+        }
+        finally {
+            reader.close();
+        }
+    }
+    
+    /**
+     * Fetches the page and reads its body
+     * @param <T> The type of the result of reading the page
+     * @param url The URL of the page
+     * @param statistics The statistics to count the transferred bytes in
+     * @param pageReader The reader of the page's body
+     * @return The result of reading the page
+     * @throws Exception if the page cannot be fetched or read
+     */
+    protected <T> T fetchPage(final URI url, final TransferStatistics statistics, final PageReader<T> pageReader) throws Exception {
+        final HttpGet request = new HttpGet(url);
+        request.setHeader("User-Agent", userAgent);
+        request.setHeader("Accept", "text/html, application/xhtml+xml, */*");
+        request.setHeader("Accept-Encoding", CompressionUtil.ACCEPTED_ENCODINGS);
+        final HttpResponse response = HttpClientManager.getClient(url).execute(request);
+        final HttpEntity entity = statistics.decode(response.getEntity());
+        final int statusCode = response.getStatusLine().getStatusCode();
+        if (statusCode != HttpStatus.SC_OK) {
+            EntityUtils.consume(entity);
+            throw new IllegalStateException(String.format("Fetching %s returned status code %d instead of %s.",
+                                                          url, statusCode, HttpStatus.SC_OK));
+        }
+        pagesFetched.incrementAndGet();
+        final String charset = EntityUtils.getContentCharSet(entity);
+        final EndSensingInputStream input = new EndSensingInputStream(entity.getContent());
+        boolean complete = false;
+        try {
+            final T result = pageReader.read(url, new InputStreamReader(input,
+                    charset == null || !Charset.isSupported(charset) ? UTF8 : Charset.forName(charset)));
+            complete = input.hasEnded();
+            return result;
+        }
+        finally {
+            // Reuse the connection if the body was read to the end, and drop it instead of waiting for the rest otherwise
+            if (complete)
+                input.close();
+            else
+                request.abort();
+        }
+    }
+    
+    /**
+     * Politeness state of a host
+     */
+    protected static class Host {
+        private final URI robotsUrl;
+        private final LinkedList<Fetch<?>> queue = new LinkedList<Fetch<?>>();
+        private RobotsRules rules = RobotsRules.ALLOW_ALL;
+        private long robotsExpiry;
+        private boolean robotsLoading;
+        private boolean dispatchScheduled;
+        private long nextStart;
+        private int active;
+        private boolean removed;
+        
+        /**
+         * Creates a new <tt>Host</tt>
+         * @param robotsUrl The URL of the host's <tt>robots.txt</tt>
+         */
+        public Host(final URI robotsUrl) {
+            this.robotsUrl = robotsUrl;
+        }
+    }
+    
+    /**
+     * Fetch of a page that frees its host's slot when it ends
+     * @param <T> The type of the result of reading the page
+     */
+    protected class Fetch<T> extends FutureTask<T> {
+        private final Host host;
+        private final URI url;
+        
+        /**
+         * Creates a new <tt>Fetch</tt>
+         * @param host The host of the page
+         * @param url The URL of the page
+         * @param task The task that fetches and reads the page
+         */
+        public Fetch(final Host host, final URI url, final Callable<T> task) {
+            super(task);
+            this.host = host;
+            this.url = url;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void run() {
+            try {
+                super.run();
+            }
+            finally {
+                synchronized (host) {
+                    host.active--;
+                    dispatch(host);
+                }
+            }
+        }
+        
+        /**
+         * Fails the fetch without running it
+         * @param error The reason of the failure
+         */
+        public void fail(final Throwable error) {
+            setException(error);
+        }
+    }
+    
+    /**
+     * Stream that remembers whether its end was reached,
+     * since the connection's stream cannot be read again after its end
+     */
+    protected static class EndSensingInputStream extends FilterInputStream {
+        private boolean ended;
+        
+        /**
+         * Creates a new <tt>EndSensingInputStream</tt>
+         * @param input The underlying stream
+         */
+        public EndSensingInputStream(final InputStream input) {
+            super(input);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public int read() throws IOException {
+            if (ended)
+                return -1;
+            final int b = super.read();
+            ended = b < 0;
+            return b;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (ended)
+                return -1;
+            final int count = super.read(buffer, offset, length);
+            ended = count < 0;
+            return count;
+        }
+        
+        /**
+         * Indicates whether the end of the stream was reached
+         * @return <tt>true</tt> if a read returned the end of the stream
+         */
+        public boolean hasEnded() {
+            return ended;
+        }
+    }
+    
+    /**
+     * Factory of named daemon fetch threads
+     */
+    protected static class FetchThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger threadNumber = new AtomicInteger();
+        
+        /**
+         * Creates a new <tt>FetchThreadFactory</tt>
+         * @param name The name of the threads
+         */
+        public FetchThreadFactory(final String name) {
+            this.name = name;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public Thread newThread(final Runnable task) {
+            final Thread thread = new Thread(task, String.format("extraction-%s-%d", name, threadNumber.incrementAndGet()));
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
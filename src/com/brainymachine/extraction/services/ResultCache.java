@@ -0,0 +1,398 @@
+package com.brainymachine.extraction.services;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.log4j.Logger;
+
+import com.brainymachine.extraction.util.HashUtil;
+import com.brainymachine.extraction.util.LongHashIndex;
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Persistent cache of extraction results, stored as append-only segment files.
+ * Only a compact index of key hashes to file positions is kept in memory;
+ * results are read from disk on demand. Results expire after a time-to-live,
+ * and the oldest segments are deleted when the cache exceeds its maximum size.
+ * Only the index is accessed under a lock; records are read and written concurrently.
+ */
+public class ResultCache {
+    private final static Logger LOGGER = Logger.getLogger(ResultCache.class);
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    private final static String SEGMENT_PREFIX = "results-";
+    private final static String SEGMENT_SUFFIX = ".log";
+    private final static String[] EMPTY_RESULT = new String[0];
+    /** Marks a result that is present but expired */
+    private final static String[] EXPIRED_RESULT = new String[0];
+    /** Size of the record length, key hash and timestamp fields */
+    private final static int HEADER_SIZE = 4 + 8 + 8;
+    private final static int OFFSET_BITS = 40;
+    private final static long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private final static long NOT_FOUND = -1;
+    
+    /** The default time-to-live of results in milliseconds (one week) */
+    public final static long DEFAULT_TTL = 7L * 24 * 60 * 60 * 1000;
+    /** The default maximum size of the cache in bytes */
+    public final static long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+    
+    private final File directory;
+    private final long ttl;
+    private final long maxSize;
+    private final long segmentSize;
+    private final TreeMap<Integer, Segment> segments;
+    private final LongHashIndex index;
+    private Segment current;
+    private long totalSize;
+    private long hits;
+    private long misses;
+    
+    /**
+     * Creates a new <tt>ResultCache</tt>, indexing the existing segments in the directory
+     * @param directory The directory of the segment files (created if it does not exist)
+     * @param ttl The time-to-live of results in milliseconds
+     * @param maxSize The maximum size of the cache in bytes
+     * @throws IOException if the segment files cannot be read or created
+     */
+    public ResultCache(final File directory, final long ttl, final long maxSize) throws IOException {
+        this.directory = directory;
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.segmentSize = Math.max(1024 * 1024, maxSize / 8);
+        this.segments = new TreeMap<Integer, Segment>();
+        this.index = new LongHashIndex(1024);
+        
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Could not create cache directory " + directory);
+        // Index the existing segments from old to new, so newer results override older ones
+        final File[] files = directory.listFiles();
+        final TreeMap<Integer, File> segmentFiles = new TreeMap<Integer, File>();
+        for (final File file : files == null ? new File[0] : files) {
+            final String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                try {
+                    segmentFiles.put(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                                                                     name.length() - SEGMENT_SUFFIX.length())), file);
+                }
+                catch (NumberFormatException e) { }
+            }
+        }
+        for (final Map.Entry<Integer, File> segmentFile : segmentFiles.entrySet()) {
+            final Segment segment = new Segment(segmentFile.getKey(), segmentFile.getValue());
+            // Remove segments without unexpired results
+            if (indexSegment(segment) == 0) {
+                segment.close();
+                segment.file.delete();
+                continue;
+            }
+            segments.put(segment.id, segment);
+            totalSize += segment.size;
+        }
+        // Always append to a fresh segment
+        roll();
+        evict();
+        LOGGER.info(String.format("Opened result cache in %s with %d entries in %d segments.",
+                                  directory, index.size(), segments.size()));
+    }
+    
+    /**
+     * Creates a new <tt>ResultCache</tt> configured through the
+     * <tt>extraction.cache.enabled</tt>, <tt>extraction.cache.ttl</tt>
+     * and <tt>extraction.cache.maxSize</tt> settings
+     * @param directory The directory of the segment files
+     * @return The cache, or <tt>null</tt> if caching is disabled or the cache cannot be opened
+     */
+    public static ResultCache fromSettings(final File directory) {
+        if (!SettingsUtil.getBoolean("cache.enabled", true))
+            return null;
+        try {
+            return new ResultCache(directory, SettingsUtil.getLong("cache.ttl", DEFAULT_TTL),
+                                   SettingsUtil.getLong("cache.maxSize", DEFAULT_MAX_SIZE));
+        }
+        catch (IOException error) {
+            LOGGER.error("Could not open the result cache; extracting without cache.", error);
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the cached result for the specified key
+     * @param key The key
+     * @return The cached result, or <tt>null</tt> if it is absent or expired
+     */
+    public String[] get(final String key) {
+        final byte[] keyBytes = key.getBytes(UTF8);
+        final long keyHash = HashUtil.hash64(keyBytes);
+        final long location;
+        final Segment segment;
+        synchronized (this) {
+            location = index.get(keyHash, NOT_FOUND);
+            segment = location == NOT_FOUND ? null : segments.get((int)(location >>> OFFSET_BITS));
+            if (segment == null) {
+                misses++;
+                return null;
+            }
+        }
+        final String[] result = read(segment, location & OFFSET_MASK, keyHash, keyBytes);
+        synchronized (this) {
+            // Drop expired results from the index, unless the key was stored again meanwhile
+            if (result == EXPIRED_RESULT && index.get(keyHash, NOT_FOUND) == location)
+                index.remove(keyHash);
+            if (result == null || result == EXPIRED_RESULT) {
+                misses++;
+                return null;
+            }
+            hits++;
+            return result;
+        }
+    }
+    
+    /**
+     * Stores the result for the specified key
+     * @param key The key
+     * @param result The result
+     */
+    public void put(final String key, final String[] result) {
+        final byte[] keyBytes = key.getBytes(UTF8);
+        final byte[][] valueBytes = new byte[result.length][];
+        int length = HEADER_SIZE + 4 + keyBytes.length + 4;
+        for (int i = 0; i < result.length; i++)
+            length += 4 + (valueBytes[i] = result[i].getBytes(UTF8)).length;
+        
+        final ByteBuffer record = ByteBuffer.allocate(length);
+        final long keyHash = HashUtil.hash64(keyBytes);
+        record.putInt(length - 4).putLong(keyHash).putLong(System.currentTimeMillis());
+        record.putInt(keyBytes.length).put(keyBytes);
+        record.putInt(valueBytes.length);
+        for (final byte[] value : valueBytes)
+            record.putInt(value.length).put(value);
+        record.flip();
+        
+        // Reserve the space of the record, which is then written outside the lock
+        final Segment segment;
+        final long offset;
+        synchronized (this) {
+            try {
+                if (current.size > 0 && current.size + length > segmentSize)
+                    roll();
+            }
+            catch (IOException error) {
+                LOGGER.warn("Could not write to the result cache", error);
+                return;
+            }
+            segment = current;
+            offset = current.size;
+            current.size += length;
+            totalSize += length;
+        }
+        try {
+            while (record.hasRemaining())
+                segment.channel.write(record, offset + record.position());
+        }
+        // The segment was evicted while the record was written
+        catch (ClosedChannelException error) {
+            return;
+        }
+        catch (IOException error) {
+            LOGGER.warn("Could not write to the result cache", error);
+            return;
+        }
+        // Only index the record once it is written, so it is not read before
+        synchronized (this) {
+            if (segments.get(segment.id) == segment) {
+                index.put(keyHash, ((long)segment.id << OFFSET_BITS) | offset);
+                evict();
+            }
+        }
+    }
+    
+    /**
+     * Gets the number of lookups that found a result
+     * @return The number of hits
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+    
+    /**
+     * Gets the number of lookups that found no result
+     * @return The number of misses
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+    
+    /**
+     * Closes all segment files
+     */
+    public synchronized void close() {
+        for (final Segment segment : segments.values())
+            segment.close();
+        segments.clear();
+        index.clear();
+    }
+    
+    /**
+     * Reads the result for the specified key from its record
+     * @param segment The segment of the record
+     * @param offset The position of the record in the segment
+     * @param keyHash The hash of the key
+     * @param keyBytes The key
+     * @return The result, <tt>EXPIRED_RESULT</tt> if it is expired,
+     *         or <tt>null</tt> if the record has another key or cannot be read
+     */
+    private String[] read(final Segment segment, final long offset, final long keyHash, final byte[] keyBytes) {
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(segment.channel, header, offset);
+            final int length = header.getInt();
+            if (header.getLong() != keyHash)
+                return null;
+            if (header.getLong() + ttl < System.currentTimeMillis())
+                return EXPIRED_RESULT;
+            final ByteBuffer record = ByteBuffer.allocate(length - (HEADER_SIZE - 4));
+            readFully(segment.channel, record, offset + HEADER_SIZE);
+            // Verify the full key to rule out hash collisions
+            final byte[] recordKey = new byte[record.getInt()];
+            record.get(recordKey);
+            if (!Arrays.equals(keyBytes, recordKey))
+                return null;
+            final int count = record.getInt();
+            if (count == 0)
+                return EMPTY_RESULT;
+            final String[] result = new String[count];
+            for (int i = 0; i < count; i++) {
+                final int valueLength = record.getInt();
+                result[i] = new String(record.array(), record.position(), valueLength, UTF8);
+                record.position(record.position() + valueLength);
+            }
+            return result;
+        }
+        // The segment was evicted while the record was read
+        catch (ClosedChannelException error) {
+            return null;
+        }
+        catch (IOException error) {
+            LOGGER.warn("Could not read from the result cache", error);
+            return null;
+        }
+    }
+    
+    /**
+     * Adds the unexpired records of the segment to the index,
+     * truncating an incompletely written last record
+     * @param segment The segment
+     * @return The number of unexpired records
+     * @throws IOException if the segment cannot be read
+     */
+    private int indexSegment(final Segment segment) throws IOException {
+        final long expiry = System.currentTimeMillis() - ttl;
+        int unexpired = 0;
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 65536));
+        long offset = 0;
+        try {
+            while (offset + HEADER_SIZE <= segment.size) {
+                final int length = input.readInt();
+                if (length < HEADER_SIZE - 4 || offset + 4 + length > segment.size)
+                    break;
+                final long keyHash = input.readLong();
+                final long timestamp = input.readLong();
+                if (timestamp > expiry) {
+                    index.put(keyHash, ((long)segment.id << OFFSET_BITS) | offset);
+                    unexpired++;
+                }
+                input.skipBytes(length - (HEADER_SIZE - 4));
+                offset += 4 + length;
+            }
+        }
+        catch (EOFException e) { }
+        finally {
+            input.close();
+        }
+        if (offset < segment.size) {
+            LOGGER.warn(String.format("Truncating incomplete record at %d in %s.", offset, segment.file));
+            segment.channel.truncate(offset);
+            segment.size = offset;
+        }
+        return unexpired;
+    }
+    
+    /**
+     * Starts a new segment for appending results
+     * @throws IOException if the segment cannot be created
+     */
+    private void roll() throws IOException {
+        final int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        current = new Segment(id, new File(directory, SEGMENT_PREFIX + id + SEGMENT_SUFFIX));
+        segments.put(id, current);
+    }
+    
+    /**
+     * Deletes the oldest segments until the cache fits its maximum size,
+     * removing their records from the index
+     */
+    private void evict() {
+        while (totalSize > maxSize && segments.size() > 1) {
+            final Segment oldest = segments.remove(segments.firstKey());
+            totalSize -= oldest.size;
+            index.removeValues((long)oldest.id << OFFSET_BITS, (long)(oldest.id + 1) << OFFSET_BITS);
+            oldest.close();
+            if (!oldest.file.delete())
+                LOGGER.warn("Could not delete cache segment " + oldest.file);
+        }
+    }
+    
+    private static void readFully(final FileChannel channel, final ByteBuffer buffer, final long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0)
+                throw new EOFException();
+        }
+        buffer.flip();
+    }
+    
+    /**
+     * Append-only file with cache records
+     */
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private long size;
+        
+        /**
+         * Opens or creates a segment
+         * @param id The segment number
+         * @param file The segment file
+         * @throws IOException if the file cannot be opened
+         */
+        public Segment(final int id, final File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.size = channel.size();
+        }
+        
+        /**
+         * Closes the segment file
+         */
+        public void close() {
+            try {
+                raf.close();
+            }
+            catch (IOException e) { }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.brainymachine.extraction.services;
+
+import java.util.Date;
+import java.util.Random;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Policy that decides whether and when a failed extraction request is retried,
+ * with exponentially growing delays and random jitter
+ */
+@SuppressWarnings("deprecation")
+public class RetryPolicy {
+    /** Status code of responses to clients that send too many requests */
+    public final static int SC_TOO_MANY_REQUESTS = 429;
+    
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random;
+    
+    /**
+     * Creates a new <tt>RetryPolicy</tt>
+     * @param maxAttempts The maximum number of attempts per request, including the first
+     * @param baseDelay The delay in milliseconds before the first retry, which doubles with every retry
+     * @param maxDelay The maximum delay in milliseconds before a retry
+     */
+    public RetryPolicy(final int maxAttempts, final long baseDelay, final long maxDelay) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelay = Math.max(1, baseDelay);
+        this.maxDelay = Math.max(this.baseDelay, maxDelay);
+        this.random = new Random();
+    }
+    
+    /**
+     * Creates a new <tt>RetryPolicy</tt> configured through the <tt>extraction.retry.maxAttempts</tt>,
+     * <tt>extraction.retry.baseDelay</tt> and <tt>extraction.retry.maxDelay</tt> settings
+     * @return The retry policy
+     */
+    public static RetryPolicy fromSettings() {
+        return new RetryPolicy(SettingsUtil.getInt("retry.maxAttempts", 4),
+                               SettingsUtil.getLong("retry.baseDelay", 500),
+                               SettingsUtil.getLong("retry.maxDelay", 30000));
+    }
+    
+    /**
+     * Gets the maximum number of attempts per request, including the first
+     * @return The number of attempts
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+    
+    /**
+     * Indicates whether a response with the specified status code may succeed when retried
+     * @param statusCode The status code
+     * @return <tt>true</tt> if the service is temporarily unable to respond
+     */
+    public boolean isRetriable(final int statusCode) {
+        return statusCode == SC_TOO_MANY_REQUESTS || statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE;
+    }
+    
+    /**
+     * Gets the delay before the next attempt, a random duration up to the exponentially
+     * growing backoff of the attempt, or the duration the service asked to wait
+     * @param attempt The number of the failed attempt, starting at 1
+     * @param retryAfter The delay in milliseconds the service asked for, or -1 if it did not
+     * @return The delay in milliseconds, or -1 if the request should not be retried
+     */
+    public long getDelay(final int attempt, final long retryAfter) {
+        if (attempt >= maxAttempts || retryAfter > maxDelay)
+            return -1;
+        final long backoff = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 30));
+        final long jitter;
+        synchronized (random) {
+            jitter = (long)(random.nextDouble() * backoff);
+        }
+        return retryAfter >= 0 ? Math.min(maxDelay, retryAfter + jitter / 10) : jitter;
+    }
+    
+    /**
+     * Gets the delay the service asked to wait before retrying, through the <tt>Retry-After</tt> header
+     * in seconds or as a date
+     * @param response The response
+     * @return The delay in milliseconds, or -1 if the response has no valid header
+     */
+    public static long getRetryAfter(final HttpResponse response) {
+        final Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null)
+            return -1;
+        final String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000);
+        }
+        catch (NumberFormatException e) { }
+        try {
+            final Date date = DateUtils.parseDate(value);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+        catch (DateParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.brainymachine.extraction.services;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.util.ArrayList;
+
+/**
+ * Rules of a host's <tt>robots.txt</tt> for a single user agent:
+ * the paths it may fetch and the delay it should keep between fetches.
+ * Rules are path patterns with <tt>*</tt> wildcards and an optional <tt>$</tt> end anchor;
+ * the longest matching rule decides, and <tt>Allow</tt> wins over an equally long <tt>Disallow</tt>.
+ */
+public class RobotsRules {
+    /** Rules that allow every path */
+    public final static RobotsRules ALLOW_ALL = new RobotsRules(new String[0], new boolean[0], 0);
+    /** Rules that disallow every path */
+    public final static RobotsRules DISALLOW_ALL = new RobotsRules(new String[] { "/" }, new boolean[] { false }, 0);
+    
+    private final String[] patterns;
+    private final boolean[] allowed;
+    private final long crawlDelay;
+    
+    /**
+     * Creates a new <tt>RobotsRules</tt>
+     * @param patterns The path patterns of the rules
+     * @param allowed Whether each rule allows or disallows its paths
+     * @param crawlDelay The delay between fetches in milliseconds
+     */
+    protected RobotsRules(final String[] patterns, final boolean[] allowed, final long crawlDelay) {
+        this.patterns = patterns;
+        this.allowed = allowed;
+        this.crawlDelay = crawlDelay;
+    }
+    
+    /**
+     * Parses the rules of the <tt>robots.txt</tt> for the user agent,
+     * using the groups that name the agent's product token, or the <tt>*</tt> groups if none do
+     * @param reader The reader of the <tt>robots.txt</tt>
+     * @param userAgent The user agent, such as <tt>OpenRefine-Extraction/1.0</tt>
+     * @return The rules
+     * @throws IOException if the <tt>robots.txt</tt> cannot be read
+     */
+    public static RobotsRules parse(final Reader reader, final String userAgent) throws IOException {
+        final String product = userAgent.split("/", 2)[0].trim().toLowerCase();
+        final ArrayList<String> agentPatterns = new ArrayList<String>();
+        final ArrayList<Boolean> agentAllowed = new ArrayList<Boolean>();
+        final ArrayList<String> defaultPatterns = new ArrayList<String>();
+        final ArrayList<Boolean> defaultAllowed = new ArrayList<Boolean>();
+        long agentDelay = -1, defaultDelay = -1;
+        boolean agentGroupFound = false;
+        boolean inAgentGroup = false, inDefaultGroup = false, readingAgents = false;
+        
+        final BufferedReader lines = new BufferedReader(reader);
+        for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+            final int comment = line.indexOf('#');
+            if (comment >= 0)
+                line = line.substring(0, comment);
+            final int colon = line.indexOf(':');
+            if (colon < 0)
+                continue;
+            final String key = line.substring(0, colon).trim().toLowerCase();
+            final String value = line.substring(colon + 1).trim();
+            
+            if (key.equals("user-agent")) {
+                // Consecutive user-agent lines share the rules that follow them
+                if (!readingAgents)
+                    inAgentGroup = inDefaultGroup = false;
+                readingAgents = true;
+                if (value.equals("*")) {
+                    inDefaultGroup = true;
+                }
+                else if (value.toLowerCase().equals(product)) {
+                    inAgentGroup = true;
+                    agentGroupFound = true;
+                }
+                continue;
+            }
+            readingAgents = false;
+            if (key.equals("allow") || key.equals("disallow")) {
+                // An empty disallow rule allows everything, like having no rule
+                if (value.length() == 0)
+                    continue;
+                final boolean allow = key.equals("allow");
+                if (inAgentGroup) {
+                    agentPatterns.add(value);
+                    agentAllowed.add(allow);
+                }
+                if (inDefaultGroup) {
+                    defaultPatterns.add(value);
+                    defaultAllowed.add(allow);
+                }
+            }
+            else if (key.equals("crawl-delay")) {
+                final long delay = parseDelay(value);
+                if (inAgentGroup && delay >= 0)
+                    agentDelay = delay;
+                if (inDefaultGroup && delay >= 0)
+                    defaultDelay = delay;
+            }
+        }
+        
+        final ArrayList<String> patterns = agentGroupFound ? agentPatterns : defaultPatterns;
+        final ArrayList<Boolean> allowed = agentGroupFound ? agentAllowed : defaultAllowed;
+        final boolean[] allowedRules = new boolean[allowed.size()];
+        for (int i = 0; i < allowedRules.length; i++)
+            allowedRules[i] = allowed.get(i);
+        return new RobotsRules(patterns.toArray(new String[patterns.size()]), allowedRules,
+                               Math.max(0, agentGroupFound ? agentDelay : defaultDelay));
+    }
+    
+    /**
+     * Parses a crawl delay in seconds
+     * @param value The delay in seconds, possibly fractional
+     * @return The delay in milliseconds, or -1 if the value is invalid
+     */
+    private static long parseDelay(final String value) {
+        try {
+            final double seconds = Double.parseDouble(value);
+            return seconds >= 0 ? (long)(seconds * 1000) : -1;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+    
+    /**
+     * Gets the delay to keep between fetches from the host
+     * @return The delay in milliseconds
+     */
+    public long getCrawlDelay() {
+        return crawlDelay;
+    }
+    
+    /**
+     * Indicates whether the URL may be fetched
+     * @param url The URL
+     * @return <tt>true</tt> if no rule disallows the URL's path and query
+     */
+    public boolean isAllowed(final URI url) {
+        final String rawPath = url.getRawPath();
+        final String path = (rawPath == null || rawPath.length() == 0 ? "/" : rawPath)
+                          + (url.getRawQuery() == null ? "" : "?" + url.getRawQuery());
+        int matchLength = -1;
+        boolean allow = true;
+        for (int i = 0; i < patterns.length; i++) {
+            final int length = patterns[i].length();
+            if ((length > matchLength || (length == matchLength && allowed[i])) && matches(patterns[i], path)) {
+                matchLength = length;
+                allow = allowed[i];
+            }
+        }
+        return allow;
+    }
+    
+    /**
+     * Indicates whether the rule pattern matches the path
+     * @param pattern The pattern, with <tt>*</tt> for any characters and a final <tt>$</tt> for the end of the path
+     * @param path The path
+     * @return <tt>true</tt> if the pattern matches the start of the path, or the whole path if it ends in <tt>$</tt>
+     */
+    protected static boolean matches(final String pattern, final String path) {
+        final boolean anchored = pattern.endsWith("$");
+        final String[] parts = (anchored ? pattern.substring(0, pattern.length() - 1) : pattern).split("\\*", -1);
+        if (!path.startsWith(parts[0]))
+            return false;
+        int position = parts[0].length();
+        for (int i = 1; i < parts.length; i++) {
+            // The last part of an anchored pattern must end the path
+            if (anchored && i == parts.length - 1)
+                return path.length() - position >= parts[i].length() && path.endsWith(parts[i]);
+            final int found = path.indexOf(parts[i], position);
+            if (found < 0)
+                return false;
+            position = found + parts[i].length();
+        }
+        return !anchored || position == path.length();
+    }
+}
@@ -11,10 +11,9 @@ import com.brainymachine.extraction.services.ExtractionService;
 import com.brainymachine.extraction.services.ExtractionServiceBase;
 import com.brainymachine.extraction.util.ParameterList;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 import org.json.JSONTokener;
+import org.json.JSONWriter;
 
 
 /**
@@ -23,7 +22,8 @@ import org.json.JSONTokener;
  */
 public class SparkExtract extends ExtractionServiceBase implements ExtractionService {
     private final static URI SERVICEBASEURL = createUri("http://localhost:5000/extract");
-    private final static String[] PROPERTYNAMES = { "xpath","attribute","column" };
+    private final static String[] PROPERTYNAMES = { "xpath","attribute","column","batch","combine","compress" };
+    private final static String[] RESULTPROPERTYNAMES = { "xpath","attribute" };
 
     /**
      * Creates a new Extraction service connector
@@ -33,6 +33,52 @@ public class SparkExtract extends ExtractionServiceBase implements ExtractionSer
         setProperty("xpath", "//title"); //default
         setProperty("attribute", ""); //default
         setProperty("column", ""); //default
+        setProperty("batch", "1"); //default, no batches
+        setProperty("combine", "false"); //default, one request per service
+        setProperty("compress", "false"); //default, uncompressed request bodies
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Batches are opt-in through the <tt>batch</tt> property,
+     * since the service needs to support the batch protocol.
+     */
+    @Override
+    public int getBatchSize() {
+        try {
+            return Math.max(1, Integer.parseInt(getProperty("batch").trim()));
+        }
+        catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Combining is opt-in through the <tt>combine</tt> property;
+     * services with the same URL then share a single request per page.
+     */
+    @Override
+    public String getCombinationKey() {
+        if (!Boolean.parseBoolean(getProperty("combine").trim()))
+            return null;
+        return getClass().getName() + " " + createExtractionRequestUrl(null);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * Compressed bodies are opt-in through the <tt>compress</tt> property,
+     * since the service needs to decode them.
+     */
+    @Override
+    protected String getRequestCompression() {
+        return getProperty("compress");
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected String[] getResultPropertyNames() {
+        return RESULTPROPERTYNAMES;
     }
     
     /** {@inheritDoc} */
@@ -46,20 +92,26 @@ public class SparkExtract extends ExtractionServiceBase implements ExtractionSer
     
     /** {@inheritDoc} */
     @Override
+    protected void writeBatchExtractionRequestProperties(final JSONWriter body) throws JSONException {
+        body.key("xpath");
+        body.value(getProperty("xpath"));
+        body.key("attribute");
+        body.value(getProperty("attribute"));
+    }
+    
+    /** {@inheritDoc} */
+    @Override
+    protected void writeBatchExtractionRequestItem(final String url, final JSONWriter body) throws JSONException {
+        body.key("url");
+        body.value(url);
+    }
+    
+    /**
+     * {@inheritDoc}
+     * The response is a result object, which the service encodes as a JSON string.
+     */
+    @Override
     protected String[] parseExtractionResponseElement(final JSONTokener tokener) throws JSONException {
-            
-        String response_string = (String)tokener.nextValue();
-        final JSONObject response = new JSONObject(response_string);
-        // Empty result if no resources were found
-        if (!response.has("elements"))
-            return EMPTY_EXTRACTION_RESULT;
-        // Extract resources
-        final JSONArray elements = response.getJSONArray("elements");
-        final String[] results = new String[elements.length()];
-        for (int i = 0; i < elements.length(); i++) {
-            final JSONObject element = elements.getJSONObject(i);
-            results[i] = new String(element.getString("value"));
-        }
-        return results;
+        return parseExtractionResponseItem(tokener);
     }
 }
@@ -0,0 +1,304 @@
+package com.brainymachine.extraction.services;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.brainymachine.extraction.util.HtmlUtil;
+
+/**
+ * Subset of XPath that is matched on a stream of HTML elements, without building a document:
+ * absolute paths of child (<tt>/</tt>) and descendant (<tt>//</tt>) steps with an element name or <tt>*</tt>
+ * and an optional position, such as <tt>//div[2]/a</tt>, optionally ending in <tt>/@attribute</tt> or <tt>/text()</tt>
+ */
+public class StreamingXPath {
+    private final String xpath;
+    private final String[] names;
+    private final boolean[] descendant;
+    private final int[] positions;
+    private final String attribute;
+    private final boolean text;
+    private final boolean single;
+    
+    /**
+     * Creates a new <tt>StreamingXPath</tt>
+     * @param xpath The XPath
+     * @param names The element name of each step, or <tt>*</tt> for any element
+     * @param descendant Whether each step selects descendants instead of children
+     * @param positions The position of each step, or 0 for all positions
+     * @param attribute The selected attribute, or <tt>null</tt> to select elements or text
+     * @param text Whether the text of the elements is selected
+     */
+    protected StreamingXPath(final String xpath, final String[] names, final boolean[] descendant, final int[] positions,
+                             final String attribute, final boolean text) {
+        this.xpath = xpath;
+        this.names = names;
+        this.descendant = descendant;
+        this.positions = positions;
+        this.attribute = attribute;
+        this.text = text;
+        // Child steps with positions select at most one element
+        boolean single = true;
+        for (int i = 0; i < names.length; i++)
+            single &= !descendant[i] && positions[i] > 0;
+        this.single = single;
+    }
+    
+    /**
+     * Compiles the XPath if it belongs to the streaming subset
+     * @param xpath The XPath
+     * @return The compiled XPath, or <tt>null</tt> if it needs a full XPath implementation
+     */
+    public static StreamingXPath compile(final String xpath) {
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<Boolean> descendant = new ArrayList<Boolean>();
+        final ArrayList<Integer> positions = new ArrayList<Integer>();
+        String attribute = null;
+        boolean text = false;
+        int index = 0;
+        final int length = xpath.length();
+        while (index < length) {
+            // Axis
+            if (xpath.charAt(index) != '/' || attribute != null || text)
+                return null;
+            final boolean isDescendant = xpath.startsWith("//", index);
+            index += isDescendant ? 2 : 1;
+            // Node test
+            int end = index;
+            while (end < length && (Character.isLetterOrDigit(xpath.charAt(end)) || "-_.:*@()".indexOf(xpath.charAt(end)) >= 0))
+                end++;
+            final String test = xpath.substring(index, end);
+            index = end;
+            if (test.startsWith("@") && !isDescendant && isName(test.substring(1)) && !names.isEmpty()) {
+                attribute = test.substring(1);
+            }
+            else if (test.equals("text()") && !isDescendant && !names.isEmpty()) {
+                text = true;
+            }
+            else if (test.equals("*") || isName(test)) {
+                names.add(test);
+                descendant.add(isDescendant);
+                // Optional position
+                int position = 0;
+                if (index < length && xpath.charAt(index) == '[') {
+                    final int close = xpath.indexOf(']', index);
+                    if (close < 0)
+                        return null;
+                    try {
+                        position = Integer.parseInt(xpath.substring(index + 1, close));
+                    }
+                    catch (NumberFormatException e) {
+                        return null;
+                    }
+                    if (position < 1)
+                        return null;
+                    index = close + 1;
+                }
+                positions.add(position);
+            }
+            else {
+                return null;
+            }
+        }
+        if (names.isEmpty())
+            return null;
+        
+        final int steps = names.size();
+        final boolean[] descendantSteps = new boolean[steps];
+        final int[] stepPositions = new int[steps];
+        for (int i = 0; i < steps; i++) {
+            descendantSteps[i] = descendant.get(i);
+            stepPositions[i] = positions.get(i);
+        }
+        return new StreamingXPath(xpath, names.toArray(new String[steps]), descendantSteps, stepPositions, attribute, text);
+    }
+    
+    /**
+     * Indicates whether the name is a valid element or attribute name
+     * @param name The name
+     * @return <tt>true</tt> if the name is valid
+     */
+    private static boolean isName(final String name) {
+        if (name.length() == 0 || !(Character.isLetter(name.charAt(0)) || name.charAt(0) == '_'))
+            return false;
+        for (int i = 1; i < name.length(); i++)
+            if (!Character.isLetterOrDigit(name.charAt(i)) && "-_.".indexOf(name.charAt(i)) < 0)
+                return false;
+        return true;
+    }
+    
+    /**
+     * Gets the XPath
+     * @return The XPath
+     */
+    public String getXPath() {
+        return xpath;
+    }
+    
+    /**
+     * Creates a matcher that collects the values of the matching nodes:
+     * the selected attribute or text, or the specified attribute of matching elements,
+     * or their HTML if no attribute is specified
+     * @param elementAttribute The attribute of matching elements to collect (can be empty to collect their HTML)
+     * @param maxResults The number of values after which the matcher is done, or 0 for all values
+     * @return The matcher
+     */
+    public Matcher createMatcher(final String elementAttribute, final int maxResults) {
+        return new Matcher(elementAttribute.toLowerCase(), maxResults > 0 ? maxResults : Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Element that is open while matching, with the steps of the path it matches
+     */
+    protected static class Frame {
+        private final BitSet states = new BitSet();
+        private final BitSet descendantStates = new BitSet();
+        private final HashMap<String, Integer> childCounts = new HashMap<String, Integer>();
+        private int childCount;
+        private StringBuilder capture;
+        private int captureIndex;
+        private boolean hasContent;
+        private boolean matched;
+        
+        /**
+         * Counts a child element
+         * @param name The name of the child element
+         */
+        public void countChild(final String name) {
+            childCount++;
+            final Integer count = childCounts.get(name);
+            childCounts.put(name, count == null ? 1 : count + 1);
+        }
+        
+        /**
+         * Gets the position of the last counted child among the children that match the name
+         * @param name The name, or <tt>*</tt> for any element
+         * @return The position, starting at 1
+         */
+        public int getChildPosition(final String name) {
+            if (name.equals("*"))
+                return childCount;
+            final Integer count = childCounts.get(name);
+            return count == null ? 0 : count;
+        }
+    }
+    
+    /**
+     * Handler that matches the XPath on a stream of elements and collects the values of the matches
+     */
+    public class Matcher implements HtmlUtil.Handler {
+        private final String elementAttribute;
+        private final int maxResults;
+        private final ArrayList<Frame> frames = new ArrayList<Frame>();
+        private final ArrayList<String> results = new ArrayList<String>();
+        private final ArrayList<Frame> captures = new ArrayList<Frame>();
+        private boolean complete;
+        
+        /**
+         * Creates a new <tt>Matcher</tt>
+         * @param elementAttribute The attribute of matching elements to collect (can be empty to collect their HTML)
+         * @param maxResults The number of values after which the matcher is done
+         */
+        public Matcher(final String elementAttribute, final int maxResults) {
+            this.elementAttribute = elementAttribute;
+            this.maxResults = maxResults;
+            // The document is the context of the first step
+            final Frame document = new Frame();
+            document.states.set(0);
+            if (descendant[0])
+                document.descendantStates.set(0);
+            frames.add(document);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void startElement(final String name, final Map<String, String> attributes) {
+            if (isDone())
+                return;
+            final Frame parent = frames.get(frames.size() - 1);
+            parent.countChild(name);
+            parent.hasContent = true;
+            final Frame frame = new Frame();
+            // Advance the steps of the parent's states and the descendant steps of its ancestors
+            for (int state = 0; state < names.length; state++) {
+                if ((parent.states.get(state) || parent.descendantStates.get(state))
+                    && (names[state].equals("*") || names[state].equals(name))
+                    && (positions[state] == 0 || positions[state] == parent.getChildPosition(names[state])))
+                    frame.states.set(state + 1);
+            }
+            frame.descendantStates.or(parent.descendantStates);
+            for (int state = frame.states.nextSetBit(0); state >= 0 && state < names.length; state = frame.states.nextSetBit(state + 1))
+                if (descendant[state])
+                    frame.descendantStates.set(state);
+            frames.add(frame);
+        
+            // Collect no more matches than needed, although captures of earlier matches continue
+            if (frame.states.get(names.length) && results.size() < maxResults) {
+                frame.matched = true;
+                if (attribute != null || (!text && elementAttribute.length() > 0)) {
+                    final String value = attributes.get(attribute != null ? attribute : elementAttribute);
+                    if (value != null)
+                        results.add(value);
+                }
+                else if (!text) {
+                    // Reserve the place of the element's HTML, which is complete at its end
+                    frame.captureIndex = results.size();
+                    frame.capture = new StringBuilder();
+                    results.add(null);
+                    captures.add(frame);
+                }
+            }
+            for (final Frame capture : captures)
+                HtmlUtil.appendStartTag(name, attributes, capture.capture);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void endElement(final String name) {
+            if (isDone() || frames.size() <= 1)
+                return;
+            final Frame frame = frames.remove(frames.size() - 1);
+            // The only element that can match has ended
+            if (frame.matched && single)
+                complete = true;
+            for (final Frame capture : captures)
+                HtmlUtil.appendEndTag(name, frame.hasContent, capture.capture);
+            if (frame.capture != null) {
+                results.set(frame.captureIndex, frame.capture.toString());
+                captures.remove(frame);
+            }
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void text(final String value) {
+            // Text outside the root element is not part of the document
+            if (isDone() || frames.size() == 1)
+                return;
+            final Frame frame = frames.get(frames.size() - 1);
+            frame.hasContent = true;
+            for (final Frame capture : captures)
+                HtmlUtil.appendEscaped(value, capture.capture, false);
+            if (frame.matched && text && results.size() < maxResults)
+                results.add(value);
+        }
+        
+        /**
+         * {@inheritDoc}
+         * Once done, the matcher ignores further content.
+         */
+        @Override
+        public boolean isDone() {
+            return complete || (results.size() >= maxResults && captures.isEmpty());
+        }
+        
+        /**
+         * Gets the values of the matches
+         * @return The values
+         */
+        public String[] getResults() {
+            return results.toArray(new String[results.size()]);
+        }
+    }
+}
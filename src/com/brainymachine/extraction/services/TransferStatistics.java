@@ -0,0 +1,120 @@
+package com.brainymachine.extraction.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import com.brainymachine.extraction.util.CompressionUtil;
+
+/**
+ * Counters of the bytes an extraction service sends and receives,
+ * before and after compression
+ */
+public class TransferStatistics {
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong requestBytesSent = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong responseBytesReceived = new AtomicLong();
+    
+    /**
+     * Records a request body that is sent
+     * @param length The length of the uncompressed body
+     * @param sentLength The length of the body as sent, after compression
+     */
+    public void recordRequest(final long length, final long sentLength) {
+        if (length > 0)
+            requestBytes.addAndGet(length);
+        if (sentLength > 0)
+            requestBytesSent.addAndGet(sentLength);
+    }
+    
+    /**
+     * Wraps the response entity so that its content is decoded according to its content encoding,
+     * counting the bytes received and the decoded bytes while the content is read
+     * @param entity The response entity
+     * @return The decoded entity
+     */
+    public HttpEntity decode(final HttpEntity entity) {
+        return new DecodedEntity(entity);
+    }
+    
+    /**
+     * Gets the number of request body bytes before compression
+     * @return The number of bytes
+     */
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+    
+    /**
+     * Gets the number of request body bytes sent, after compression
+     * @return The number of bytes
+     */
+    public long getRequestBytesSent() {
+        return requestBytesSent.get();
+    }
+    
+    /**
+     * Gets the number of response body bytes after decompression
+     * @return The number of bytes
+     */
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+    
+    /**
+     * Gets the number of response body bytes received, before decompression
+     * @return The number of bytes
+     */
+    public long getResponseBytesReceived() {
+        return responseBytesReceived.get();
+    }
+    
+    /**
+     * Response entity whose content is decoded and counted while it is read
+     */
+    protected class DecodedEntity extends HttpEntityWrapper {
+        private InputStream content;
+        
+        /**
+         * Creates a new <tt>DecodedEntity</tt>
+         * @param entity The received entity
+         */
+        public DecodedEntity(final HttpEntity entity) {
+            super(entity);
+        }
+        
+        /**
+         * {@inheritDoc}
+         * Always returns the same stream, so consuming the entity closes the stream that was read.
+         */
+        @Override
+        public synchronized InputStream getContent() throws IOException {
+            if (content == null) {
+                final Header encoding = wrappedEntity.getContentEncoding();
+                final InputStream received = CompressionUtil.count(wrappedEntity.getContent(), responseBytesReceived);
+                // Keep the received stream if decoding fails, so it can still be consumed
+                content = received;
+                content = CompressionUtil.count(CompressionUtil.decode(received, encoding == null ? null : encoding.getValue()),
+                                                responseBytes);
+            }
+            return content;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public long getContentLength() {
+            return wrappedEntity.getContentEncoding() == null ? wrappedEntity.getContentLength() : -1;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.brainymachine.extraction.services;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+
+import com.brainymachine.extraction.util.SettingsUtil;
+
+/**
+ * Engine for in-process XPath extraction, shared by all services and runs,
+ * with a least-recently-used cache of compiled expressions per XPath
+ * and a short-lived cache of parsed documents per URL or content hash.
+ * XPaths in the streaming subset are matched without parsing documents.
+ */
+public class XPathEngine {
+    private static XPathEngine sharedEngine;
+    
+    private final int maxDocuments;
+    private final long documentTtl;
+    private final ExpressionCache expressions;
+    private final StreamingXPathCache streamingXPaths;
+    private final DocumentCache documents;
+    
+    private final AtomicLong expressionHits = new AtomicLong();
+    private final AtomicLong expressionMisses = new AtomicLong();
+    private final AtomicLong documentHits = new AtomicLong();
+    private final AtomicLong documentMisses = new AtomicLong();
+    private final AtomicLong documentsStreamed = new AtomicLong();
+    private final AtomicLong streamsStopped = new AtomicLong();
+    
+    /**
+     * Creates a new <tt>XPathEngine</tt>
+     * @param maxExpressions The maximum number of XPaths whose compiled expressions are kept
+     * @param maxDocuments The maximum number of parsed documents that are kept
+     * @param documentTtl The time in milliseconds a parsed document is kept
+     */
+    public XPathEngine(final int maxExpressions, final int maxDocuments, final long documentTtl) {
+        this.maxDocuments = Math.max(0, maxDocuments);
+        this.documentTtl = Math.max(0, documentTtl);
+        expressions = new ExpressionCache(Math.max(1, maxExpressions));
+        streamingXPaths = new StreamingXPathCache(Math.max(1, maxExpressions));
+        documents = new DocumentCache(this.maxDocuments);
+    }
+    
+    /**
+     * Gets the engine shared by all services, configured through the <tt>extraction.xpath.expressionCacheSize</tt>,
+     * <tt>extraction.xpath.documentCacheSize</tt> and <tt>extraction.xpath.documentCacheTtl</tt> settings
+     * @return The shared engine
+     */
+    public static synchronized XPathEngine getSharedEngine() {
+        if (sharedEngine == null)
+            sharedEngine = new XPathEngine(SettingsUtil.getInt("xpath.expressionCacheSize", 256),
+                                           SettingsUtil.getInt("xpath.documentCacheSize", 32),
+                                           SettingsUtil.getLong("xpath.documentCacheTtl", 10000));
+        return sharedEngine;
+    }
+    
+    /**
+     * Evaluates the XPath on the document, with a compiled expression from the cache if one is available.
+     * Callers must synchronize on the document while they evaluate expressions on it or read the result,
+     * since DOM implementations are not thread-safe.
+     * @param xpath The XPath
+     * @param document The document
+     * @param returnType The expected result type, one of the <tt>XPathConstants</tt>
+     * @return The result
+     * @throws XPathExpressionException if the XPath is invalid or cannot be evaluated to the result type
+     */
+    public Object evaluate(final String xpath, final Document document, final QName returnType) throws XPathExpressionException {
+        // Compiled expressions are not thread-safe, so each is borrowed by a single thread at a time
+        final ConcurrentLinkedQueue<XPathExpression> pool = expressions.getPool(xpath);
+        XPathExpression expression = pool.poll();
+        if (expression != null) {
+            expressionHits.incrementAndGet();
+        }
+        else {
+            expressionMisses.incrementAndGet();
+            expression = XPathFactory.newInstance().newXPath().compile(xpath);
+        }
+        try {
+            return expression.evaluate(document, returnType);
+        }
+        finally {
+            pool.offer(expression);
+        }
+    }
+    
+    /**
+     * Gets the compiled streaming form of the XPath
+     * @param xpath The XPath
+     * @return The compiled XPath, or <tt>null</tt> if it is not in the streaming subset
+     */
+    public StreamingXPath getStreamingXPath(final String xpath) {
+        return streamingXPaths.getStreamingXPath(xpath);
+    }
+    
+    /**
+     * Records a document that was matched as a stream
+     * @param stopped Whether the stream was stopped before its end because all matches were found
+     */
+    public void recordStream(final boolean stopped) {
+        documentsStreamed.incrementAndGet();
+        if (stopped)
+            streamsStopped.incrementAndGet();
+    }
+    
+    /**
+     * Gets the parsed document with the specified key from the cache, or loads it otherwise.
+     * Concurrent requests for the same document wait for a single load.
+     * @param key The URL or content hash of the document
+     * @param loader The loader of the document
+     * @return The document
+     * @throws Exception if the document cannot be loaded
+     */
+    public Document getDocument(final String key, final Callable<Document> loader) throws Exception {
+        if (maxDocuments == 0) {
+            documentMisses.incrementAndGet();
+            return loader.call();
+        }
+        
+        final long now = System.currentTimeMillis();
+        final CachedDocument cached;
+        boolean loading = false;
+        synchronized (documents) {
+            final CachedDocument existing = documents.get(key);
+            if (existing != null && now - existing.created <= documentTtl) {
+                cached = existing;
+            }
+            else {
+                cached = new CachedDocument(new FutureTask<Document>(loader), now);
+                documents.put(key, cached);
+                loading = true;
+            }
+        }
+        (loading ? documentMisses : documentHits).incrementAndGet();
+        if (loading)
+            cached.document.run();
+        try {
+            return cached.document.get();
+        }
+        catch (ExecutionException error) {
+            // Forget failed loads, so the document is loaded again next time
+            synchronized (documents) {
+                if (documents.get(key) == cached)
+                    documents.remove(key);
+            }
+            throw error.getCause() instanceof Exception ? (Exception)error.getCause() : error;
+        }
+    }
+    
+    /**
+     * Gets the parsed document with the specified key if it is in the cache and loaded,
+     * so callers can skip reading the document again
+     * @param key The URL or content hash of the document
+     * @return The document, or <tt>null</tt> if it is not in the cache, expired, still loading or failed to load
+     */
+    public Document getCachedDocument(final String key) {
+        if (maxDocuments == 0)
+            return null;
+        final CachedDocument cached;
+        synchronized (documents) {
+            cached = documents.get(key);
+        }
+        if (cached == null || System.currentTimeMillis() - cached.created > documentTtl || !cached.document.isDone())
+            return null;
+        try {
+            final Document document = cached.document.get();
+            documentHits.incrementAndGet();
+            return document;
+        }
+        catch (InterruptedException error) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException error) {
+            return null;
+        }
+    }
+    
+    /**
+     * Gets the current cache statistics, counted over all services and runs since the engine was created
+     * @return The statistics
+     */
+    public Statistics getStatistics() {
+        return new Statistics(expressionHits.get(), expressionMisses.get(), documentHits.get(), documentMisses.get(),
+                              documentsStreamed.get(), streamsStopped.get());
+    }
+    
+    /**
+     * Hits and misses of the expression and document caches, and the number of streamed documents
+     */
+    public static class Statistics {
+        private final long expressionHits;
+        private final long expressionMisses;
+        private final long documentHits;
+        private final long documentMisses;
+        private final long documentsStreamed;
+        private final long streamsStopped;
+        
+        /**
+         * Creates new <tt>Statistics</tt>
+         * @param expressionHits The number of evaluations with a cached compiled expression
+         * @param expressionMisses The number of evaluations that compiled their expression
+         * @param documentHits The number of documents taken from the cache
+         * @param documentMisses The number of documents that were loaded
+         * @param documentsStreamed The number of documents that were matched as a stream
+         * @param streamsStopped The number of streamed documents that were not read to the end
+         */
+        public Statistics(final long expressionHits, final long expressionMisses,
+                          final long documentHits, final long documentMisses,
+                          final long documentsStreamed, final long streamsStopped) {
+            this.expressionHits = expressionHits;
+            this.expressionMisses = expressionMisses;
+            this.documentHits = documentHits;
+            this.documentMisses = documentMisses;
+            this.documentsStreamed = documentsStreamed;
+            this.streamsStopped = streamsStopped;
+        }
+        
+        /**
+         * Gets the number of evaluations
+         * @return The number of evaluations
+         */
+        public long getEvaluations() {
+            return expressionHits + expressionMisses;
+        }
+        
+        /**
+         * Gets the fraction of evaluations with a cached compiled expression
+         * @return The hit rate, between 0 and 1
+         */
+        public double getExpressionHitRate() {
+            return getEvaluations() == 0 ? 0 : (double)expressionHits / getEvaluations();
+        }
+        
+        /**
+         * Gets the number of documents that were matched as a stream
+         * @return The number of documents
+         */
+        public long getDocumentsStreamed() {
+            return documentsStreamed;
+        }
+        
+        /**
+         * Gets the number of streamed documents that were not read to the end
+         * @return The number of documents
+         */
+        public long getStreamsStopped() {
+            return streamsStopped;
+        }
+        
+        /**
+         * Gets the number of documents that were requested
+         * @return The number of documents
+         */
+        public long getDocumentRequests() {
+            return documentHits + documentMisses;
+        }
+        
+        /**
+         * Gets the fraction of requested documents that were taken from the cache
+         * @return The hit rate, between 0 and 1
+         */
+        public double getDocumentHitRate() {
+            return getDocumentRequests() == 0 ? 0 : (double)documentHits / getDocumentRequests();
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public String toString() {
+            return String.format("expression cache hit rate %.1f%% of %d evaluations, "
+                                 + "document cache hit rate %.1f%% of %d documents, "
+                                 + "%d documents streamed of which %d stopped early",
+                                 100 * getExpressionHitRate(), getEvaluations(),
+                                 100 * getDocumentHitRate(), getDocumentRequests(),
+                                 documentsStreamed, streamsStopped);
+        }
+    }
+    
+    /**
+     * Parsed document, or the task that loads it, with its creation time
+     */
+    protected static class CachedDocument {
+        private final FutureTask<Document> document;
+        private final long created;
+        
+        /**
+         * Creates a new <tt>CachedDocument</tt>
+         * @param document The task that loads the document
+         * @param created The time the document was requested
+         */
+        public CachedDocument(final FutureTask<Document> document, final long created) {
+            this.document = document;
+            this.created = created;
+        }
+    }
+    
+    /**
+     * Least-recently-used map from keys to cached documents
+     */
+    protected static class DocumentCache extends LinkedHashMap<String, CachedDocument> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+        
+        /**
+         * Creates a new <tt>DocumentCache</tt>
+         * @param maxSize The maximum number of documents
+         */
+        public DocumentCache(final int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, CachedDocument> eldest) {
+            return size() > maxSize;
+        }
+    }
+    
+    /**
+     * Least-recently-used map from XPaths to their compiled streaming form
+     */
+    protected static class StreamingXPathCache extends LinkedHashMap<String, StreamingXPath> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+        
+        /**
+         * Creates a new <tt>StreamingXPathCache</tt>
+         * @param maxSize The maximum number of XPaths
+         */
+        public StreamingXPathCache(final int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+        
+        /**
+         * Gets the compiled streaming form of the XPath, compiling it if it is not cached
+         * @param xpath The XPath
+         * @return The compiled XPath, or <tt>null</tt> if it is not in the streaming subset
+         */
+        public synchronized StreamingXPath getStreamingXPath(final String xpath) {
+            // XPaths outside the subset are cached as null values
+            if (containsKey(xpath))
+                return get(xpath);
+            final StreamingXPath streamingXPath = StreamingXPath.compile(xpath);
+            put(xpath, streamingXPath);
+            return streamingXPath;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, StreamingXPath> eldest) {
+            return size() > maxSize;
+        }
+    }
+    
+    /**
+     * Least-recently-used map from XPaths to pools of their compiled expressions
+     */
+    protected static class ExpressionCache extends LinkedHashMap<String, ConcurrentLinkedQueue<XPathExpression>> {
+        private static final long serialVersionUID = 1L;
+        private final int maxSize;
+        
+        /**
+         * Creates a new <tt>ExpressionCache</tt>
+         * @param maxSize The maximum number of XPaths
+         */
+        public ExpressionCache(final int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+        
+        /**
+         * Gets the pool of compiled expressions of the XPath, creating an empty one if there is none
+         * @param xpath The XPath
+         * @return The pool
+         */
+        public synchronized ConcurrentLinkedQueue<XPathExpression> getPool(final String xpath) {
+            ConcurrentLinkedQueue<XPathExpression> pool = get(xpath);
+            if (pool == null)
+                put(xpath, pool = new ConcurrentLinkedQueue<XPathExpression>());
+            return pool;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, ConcurrentLinkedQueue<XPathExpression>> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.brainymachine.extraction.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Static methods that compress request bodies and decode compressed response streams
+ * with the <tt>gzip</tt> and <tt>deflate</tt> content encodings.
+ */
+public final class CompressionUtil {
+    /** The content encodings that can be decoded, for the <tt>Accept-Encoding</tt> header */
+    public final static String ACCEPTED_ENCODINGS = "gzip, deflate";
+    
+    /**
+     * Private constructor to avoid instance creation.
+     */
+    private CompressionUtil() { }
+    
+    /**
+     * Compresses the data with the <tt>gzip</tt> encoding
+     * @param data The data
+     * @return The compressed data
+     */
+    public static byte[] gzip(final byte[] data) {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+        try {
+            final GZIPOutputStream gzipOutput = new GZIPOutputStream(output);
+            gzipOutput.write(data);
+            gzipOutput.close();
+        }
+        // Writing to memory does not fail
+        catch (IOException error) { throw new RuntimeException(error); }
+        return output.toByteArray();
+    }
+    
+    /**
+     * Creates a stream that decodes the specified stream
+     * @param input The encoded stream
+     * @param contentEncoding The content encoding of the stream (can be null if not encoded)
+     * @return The decoded stream
+     * @throws IOException if the encoding is not supported or the stream cannot be read
+     */
+    public static InputStream decode(final InputStream input, final String contentEncoding) throws IOException {
+        final String encoding = contentEncoding == null ? "identity" : contentEncoding.trim().toLowerCase();
+        if (encoding.length() == 0 || encoding.equals("identity"))
+            return input;
+        if (encoding.equals("gzip") || encoding.equals("x-gzip"))
+            return new GZIPInputStream(input, 8192);
+        if (encoding.equals("deflate"))
+            return createInflaterStream(input);
+        throw new IOException("Unsupported content encoding " + contentEncoding);
+    }
+    
+    /**
+     * Creates a stream that inflates <tt>deflate</tt> encoded data, which some servers send
+     * without the zlib header the encoding prescribes
+     * @param input The encoded stream
+     * @return The inflated stream
+     * @throws IOException if the stream cannot be read
+     */
+    private static InputStream createInflaterStream(final InputStream input) throws IOException {
+        final PushbackInputStream pushbackInput = new PushbackInputStream(input, 2);
+        final byte[] header = new byte[2];
+        int length = 0;
+        for (int read; length < header.length && (read = pushbackInput.read(header, length, header.length - length)) >= 0; )
+            length += read;
+        pushbackInput.unread(header, 0, length);
+        // A zlib header has compression method 8 and a checksum that makes it a multiple of 31
+        final boolean zlibHeader = length == 2 && (header[0] & 0x0f) == 8
+                                   && (((header[0] & 0xff) << 8) | (header[1] & 0xff)) % 31 == 0;
+        return new InflaterInputStream(pushbackInput, new Inflater(!zlibHeader), 8192);
+    }
+    
+    /**
+     * Creates a stream that adds the number of bytes read to the specified counter
+     * @param input The stream
+     * @param counter The counter
+     * @return The counting stream
+     */
+    public static InputStream count(final InputStream input, final AtomicLong counter) {
+        return new CountingInputStream(input, counter);
+    }
+    
+    /**
+     * Stream that counts the bytes read from the underlying stream
+     */
+    protected static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+        
+        /**
+         * Creates a new <tt>CountingInputStream</tt>
+         * @param input The underlying stream
+         * @param counter The counter to add the number of bytes read to
+         */
+        public CountingInputStream(final InputStream input, final AtomicLong counter) {
+            super(input);
+            this.counter = counter;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public int read() throws IOException {
+            final int value = super.read();
+            if (value >= 0)
+                counter.incrementAndGet();
+            return value;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            final int count = super.read(buffer, offset, length);
+            if (count > 0)
+                counter.addAndGet(count);
+            return count;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public long skip(final long length) throws IOException {
+            final long count = super.skip(length);
+            if (count > 0)
+                counter.addAndGet(count);
+            return count;
+        }
+    }
+}
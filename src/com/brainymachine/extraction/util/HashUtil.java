@@ -0,0 +1,64 @@
+package com.brainymachine.extraction.util;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Static methods that calculate content hashes for file names and cache keys.
+ */
+public final class HashUtil {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    
+    /**
+     * Private constructor to avoid instance creation.
+     */
+    private HashUtil() { }
+    
+    /**
+     * Creates a SHA-1 message digest
+     * @return The digest
+     */
+    public static MessageDigest createSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        }
+        // Every Java platform supports SHA-1
+        catch (NoSuchAlgorithmException error) { throw new RuntimeException(error); }
+    }
+    
+    /**
+     * Calculates the SHA-1 hash of the text in UTF-8
+     * @param text The text
+     * @return The hash in hexadecimal digits
+     */
+    public static String sha1(final String text) {
+        return toHex(createSha1().digest(text.getBytes(UTF8)));
+    }
+    
+    /**
+     * Calculates the 64-bit FNV-1a hash of the bytes, for hash indexes that confirm their matches
+     * @param bytes The bytes
+     * @return The hash
+     */
+    public static long hash64(final byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+    
+    /**
+     * Formats the bytes as hexadecimal digits
+     * @param bytes The bytes
+     * @return The digits, two per byte
+     */
+    public static String toHex(final byte[] bytes) {
+        final StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes)
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        return hex.toString();
+    }
+}
@@ -0,0 +1,403 @@
+package com.brainymachine.extraction.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.swing.text.MutableAttributeSet;
+import javax.swing.text.html.HTML;
+import javax.swing.text.html.HTMLEditorKit;
+import javax.swing.text.html.parser.ParserDelegator;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Static methods that parse HTML into DOM documents or a stream of elements,
+ * and serialize DOM nodes as HTML.
+ * The parser is lenient: it accepts unclosed and unknown tags, as browsers do.
+ */
+public final class HtmlUtil {
+    private final static DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY = DocumentBuilderFactory.newInstance();
+    private final static HashSet<String> VOID_ELEMENTS = new HashSet<String>(Arrays.asList(
+            "area", "base", "br", "col", "embed", "hr", "img", "input", "link", "meta", "param", "source", "track", "wbr"));
+    
+    /**
+     * Private constructor to avoid instance creation.
+     */
+    private HtmlUtil() { }
+    
+    /**
+     * Handler of the elements and text of a parsed HTML document.
+     * Elements are properly nested: every started element is ended, and end tags without a start tag are left out.
+     */
+    public interface Handler {
+        /**
+         * Handles the start of an element
+         * @param name The lowercase name of the element
+         * @param attributes The attributes of the element by lowercase name, in alphabetical order
+         */
+        public void startElement(String name, Map<String, String> attributes);
+        
+        /**
+         * Handles the end of an element
+         * @param name The lowercase name of the element
+         */
+        public void endElement(String name);
+        
+        /**
+         * Handles text inside the current element
+         * @param text The text
+         */
+        public void text(String text);
+        
+        /**
+         * Indicates whether the handler needs no further content, which stops parsing
+         * @return <tt>true</tt> if parsing can stop
+         */
+        public boolean isDone();
+    }
+    
+    /**
+     * Parses the HTML into a DOM document with lowercase element and attribute names
+     * @param reader The reader of the HTML
+     * @return The document
+     * @throws IOException if the HTML cannot be read
+     */
+    public static Document parse(final Reader reader) throws IOException {
+        final DocumentHandler handler = new DocumentHandler();
+        parse(reader, handler);
+        return handler.getDocument();
+    }
+    
+    /**
+     * Parses the HTML as a stream, until the end of the HTML or until the handler is done
+     * @param reader The reader of the HTML
+     * @param handler The handler of the elements and text
+     * @return <tt>true</tt> if parsing stopped before the end because the handler is done
+     * @throws IOException if the HTML cannot be read
+     */
+    public static boolean parse(final Reader reader, final Handler handler) throws IOException {
+        final ParserCallback callback = new ParserCallback(handler);
+        try {
+            new ParserDelegator().parse(reader, callback, true);
+        }
+        catch (ParsingStopped stopped) {
+            return true;
+        }
+        callback.closeAll();
+        return false;
+    }
+    
+    /**
+     * Serializes the node as HTML
+     * @param node The node
+     * @return The HTML of an element or document, or the value of other nodes
+     */
+    public static String toHtml(final Node node) {
+        switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+            final StringBuilder html = new StringBuilder();
+            appendHtml(node, html);
+            return html.toString();
+        case Node.DOCUMENT_NODE:
+            final Element root = ((Document)node).getDocumentElement();
+            return root == null ? "" : toHtml(root);
+        default:
+            return node.getTextContent();
+        }
+    }
+    
+    /**
+     * Appends the start tag of an element
+     * @param name The name of the element
+     * @param attributes The attributes of the element
+     * @param html The builder to append to
+     */
+    public static void appendStartTag(final String name, final Map<String, String> attributes, final StringBuilder html) {
+        html.append('<').append(name);
+        for (final Map.Entry<String, String> attribute : attributes.entrySet()) {
+            html.append(' ').append(attribute.getKey()).append("=\"");
+            appendEscaped(attribute.getValue(), html, true);
+            html.append('"');
+        }
+        html.append('>');
+    }
+    
+    /**
+     * Appends the end tag of an element, unless it is a void element without content
+     * @param name The name of the element
+     * @param hasContent Whether the element has child nodes
+     * @param html The builder to append to
+     */
+    public static void appendEndTag(final String name, final boolean hasContent, final StringBuilder html) {
+        if (hasContent || !VOID_ELEMENTS.contains(name))
+            html.append("</").append(name).append('>');
+    }
+    
+    /**
+     * Appends the text with the HTML special characters escaped
+     * @param text The text
+     * @param html The builder to append to
+     * @param attribute Whether the text is an attribute value
+     */
+    public static void appendEscaped(final String text, final StringBuilder html, final boolean attribute) {
+        for (int i = 0; i < text.length(); i++) {
+            final char c = text.charAt(i);
+            switch (c) {
+            case '&': html.append("&amp;"); break;
+            case '<': html.append("&lt;"); break;
+            case '>': html.append("&gt;"); break;
+            case '"': html.append(attribute ? "&quot;" : "\""); break;
+            default: html.append(c);
+            }
+        }
+    }
+    
+    /**
+     * Appends the HTML of the node and its descendants
+     * @param node The node
+     * @param html The builder to append to
+     */
+    private static void appendHtml(final Node node, final StringBuilder html) {
+        switch (node.getNodeType()) {
+        case Node.ELEMENT_NODE:
+            final TreeMap<String, String> attributes = new TreeMap<String, String>();
+            final NamedNodeMap attributeNodes = node.getAttributes();
+            for (int i = 0; i < attributeNodes.getLength(); i++)
+                attributes.put(attributeNodes.item(i).getNodeName(), attributeNodes.item(i).getNodeValue());
+            appendStartTag(node.getNodeName(), attributes, html);
+            for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling())
+                appendHtml(child, html);
+            appendEndTag(node.getNodeName(), node.hasChildNodes(), html);
+            break;
+        case Node.TEXT_NODE:
+            appendEscaped(node.getNodeValue(), html, false);
+            break;
+        }
+    }
+    
+    /**
+     * Indicates whether the name is a valid element or attribute name
+     * @param name The name
+     * @return <tt>true</tt> if the name is valid
+     */
+    private static boolean isValidName(final String name) {
+        if (name.length() == 0)
+            return false;
+        final char first = name.charAt(0);
+        if (!Character.isLetter(first) && first != '_' && first != ':')
+            return false;
+        for (int i = 1; i < name.length(); i++) {
+            final char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != ':' && c != '-' && c != '.')
+                return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Signal that stops the parser once the handler is done
+     */
+    private static class ParsingStopped extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        /**
+         * {@inheritDoc}
+         * The signal does not need a stack trace.
+         */
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+    
+    /**
+     * Parser callback that passes properly nested elements and text to a handler
+     */
+    protected static class ParserCallback extends HTMLEditorKit.ParserCallback {
+        private final Handler handler;
+        private final ArrayList<String> openElements = new ArrayList<String>();
+        
+        /**
+         * Creates a new <tt>ParserCallback</tt>
+         * @param handler The handler
+         */
+        public ParserCallback(final Handler handler) {
+            this.handler = handler;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void handleStartTag(final HTML.Tag tag, final MutableAttributeSet attributes, final int position) {
+            open(tag.toString(), attributes);
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void handleEndTag(final HTML.Tag tag, final int position) {
+            close(tag.toString());
+        }
+        
+        /**
+         * {@inheritDoc}
+         * The parser reports both the start and end tags of unknown elements as simple tags.
+         */
+        @Override
+        public void handleSimpleTag(final HTML.Tag tag, final MutableAttributeSet attributes, final int position) {
+            final String name = tag.toString();
+            if (!(tag instanceof HTML.UnknownTag)) {
+                if (open(name, attributes))
+                    close(name);
+            }
+            else if (attributes.isDefined(HTML.Attribute.ENDTAG)) {
+                close(name);
+            }
+            else {
+                open(name, attributes);
+            }
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void handleText(final char[] data, final int position) {
+            handler.text(new String(data));
+            checkDone();
+        }
+        
+        /**
+         * Ends all elements that are still open
+         */
+        public void closeAll() {
+            for (int i = openElements.size() - 1; i >= 0; i--)
+                handler.endElement(openElements.remove(i));
+        }
+        
+        /**
+         * Opens an element as the child of the current element
+         * @param name The name of the element
+         * @param attributes The attributes of the element
+         * @return <tt>true</tt> if the element was opened, <tt>false</tt> if the name is invalid
+         */
+        private boolean open(final String name, final MutableAttributeSet attributes) {
+            final String elementName = name.toLowerCase();
+            if (!isValidName(elementName))
+                return false;
+            final TreeMap<String, String> attributeValues = new TreeMap<String, String>();
+            final Enumeration<?> attributeNames = attributes.getAttributeNames();
+            while (attributeNames.hasMoreElements()) {
+                final Object attributeName = attributeNames.nextElement();
+                final String attributeKey = attributeName.toString().toLowerCase();
+                if (attributeName != HTML.Attribute.ENDTAG && !IMPLIED.equals(attributeName) && isValidName(attributeKey))
+                    attributeValues.put(attributeKey, attributes.getAttribute(attributeName).toString());
+            }
+            openElements.add(elementName);
+            handler.startElement(elementName, attributeValues);
+            checkDone();
+            return true;
+        }
+        
+        /**
+         * Closes the nearest open element with the specified name and the elements it contains,
+         * ignoring end tags without a matching element and the end tag of the root element
+         * @param name The name of the element
+         */
+        private void close(final String name) {
+            final int index = openElements.lastIndexOf(name.toLowerCase());
+            if (index < 0)
+                return;
+            // The root element stays open until the end, so that content after it belongs to the document
+            for (int i = openElements.size() - 1; i >= Math.max(index, 1); i--)
+                handler.endElement(openElements.remove(i));
+            checkDone();
+        }
+        
+        /**
+         * Stops the parser if the handler is done
+         */
+        private void checkDone() {
+            if (handler.isDone())
+                throw new ParsingStopped();
+        }
+    }
+    
+    /**
+     * Handler that builds a DOM document from the parsed elements and text
+     */
+    public static class DocumentHandler implements Handler {
+        private final Document document;
+        private Node current;
+        
+        /**
+         * Creates a new <tt>DocumentHandler</tt> with an empty document
+         */
+        public DocumentHandler() {
+            try {
+                synchronized (DOCUMENT_BUILDER_FACTORY) {
+                    document = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder().newDocument();
+                }
+            }
+            // The default configuration is always supported
+            catch (ParserConfigurationException error) { throw new RuntimeException(error); }
+            current = document;
+        }
+        
+        /**
+         * Gets the document
+         * @return The document
+         */
+        public Document getDocument() {
+            return document;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void startElement(final String name, final Map<String, String> attributes) {
+            final Element element = document.createElement(name);
+            for (final Map.Entry<String, String> attribute : attributes.entrySet())
+                element.setAttribute(attribute.getKey(), attribute.getValue());
+            getParent().appendChild(element);
+            current = element;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void endElement(final String name) {
+            if (current != document)
+                current = current.getParentNode();
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void text(final String text) {
+            final Node parent = getParent();
+            if (parent != document)
+                parent.appendChild(document.createTextNode(text));
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public boolean isDone() {
+            return false;
+        }
+        
+        /**
+         * Gets the node to add content to
+         * @return The current element, or the root element for content after it
+         */
+        private Node getParent() {
+            if (current == document && document.getDocumentElement() != null)
+                return document.getDocumentElement();
+            return current;
+        }
+    }
+}
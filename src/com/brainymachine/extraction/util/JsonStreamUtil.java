@@ -0,0 +1,195 @@
+package com.brainymachine.extraction.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+import org.json.JSONException;
+import org.json.JSONTokener;
+
+/**
+ * Static methods that read JSON from a <tt>JSONTokener</tt> token by token,
+ * without building intermediate JSON objects.
+ */
+public final class JsonStreamUtil {
+    /**
+     * Private constructor to avoid instance creation.
+     */
+    private JsonStreamUtil() { }
+    
+    /**
+     * Creates a reader of the JSON document in the stream.
+     * Documents that are encoded as a single JSON string are decoded while reading.
+     * @param input The stream
+     * @param charset The character set of the stream
+     * @return The reader
+     * @throws IOException if the stream cannot be read
+     */
+    public static Reader createReader(final InputStream input, final Charset charset) throws IOException {
+        final PushbackReader reader = new PushbackReader(new BufferedReader(new InputStreamReader(input, charset), 8192));
+        int first;
+        do {
+            first = reader.read();
+        } while (first >= 0 && first <= ' ');
+        if (first == '"')
+            return new JsonStringReader(reader);
+        if (first >= 0)
+            reader.unread(first);
+        return reader;
+    }
+    
+    /**
+     * Parses an object key and the subsequent colon
+     * @param tokener The tokener, positioned before the key
+     * @return The key
+     * @throws JSONException if no key can be read
+     */
+    public static String parseKey(final JSONTokener tokener) throws JSONException {
+        final char quote = tokener.nextClean();
+        if (quote != '"' && quote != '\'')
+            throw tokener.syntaxError("Expected a key");
+        final String key = tokener.nextString(quote);
+        if (tokener.nextClean() != ':')
+            throw tokener.syntaxError("Expected a colon after key " + key);
+        return key;
+    }
+    
+    /**
+     * Reads the separator after an array value, and the first character of the next value
+     * @param tokener The tokener
+     * @return <tt>]</tt> at the end of the array, or the first character of the next value
+     * @throws JSONException if there is no valid separator
+     */
+    public static char nextSeparator(final JSONTokener tokener) throws JSONException {
+        final char separator = tokener.nextClean();
+        if (separator == ']')
+            return separator;
+        if (separator != ',')
+            throw tokener.syntaxError("Expected a comma or the end of an array");
+        return tokener.nextClean();
+    }
+    
+    /**
+     * Skips the next value, reading nested objects and arrays without building them
+     * @param tokener The tokener, positioned before the value
+     * @throws JSONException if the value is not valid JSON
+     */
+    public static void skipValue(final JSONTokener tokener) throws JSONException {
+        final char first = tokener.nextClean();
+        switch (first) {
+        case '"':
+        case '\'':
+            tokener.nextString(first);
+            break;
+        case '{':
+            /* Object */
+            char separator = tokener.nextClean();
+            if (separator != '}') {
+                tokener.back();
+                do {
+                    parseKey(tokener);
+                    skipValue(tokener);
+                    separator = tokener.nextClean();
+                } while (separator == ',');
+                if (separator != '}')
+                    throw tokener.syntaxError("Expected the end of an object");
+            }
+            break;
+        case '[':
+            /* Array */
+            char next = tokener.nextClean();
+            while (next != ']') {
+                tokener.back();
+                skipValue(tokener);
+                next = nextSeparator(tokener);
+            }
+            break;
+        default:
+            /* Number, boolean or null */
+            tokener.back();
+            tokener.nextValue();
+        }
+    }
+    
+    /**
+     * Reader that decodes the characters of a JSON string,
+     * ending at its closing quote
+     */
+    protected static class JsonStringReader extends Reader {
+        private final Reader reader;
+        private boolean ended;
+        
+        /**
+         * Creates a new <tt>JsonStringReader</tt>
+         * @param reader The reader, positioned after the opening quote
+         */
+        public JsonStringReader(final Reader reader) {
+            this.reader = reader;
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public int read(final char[] buffer, final int offset, final int length) throws IOException {
+            if (ended)
+                return -1;
+            int count = 0;
+            while (count < length) {
+                final int c = readDecoded();
+                if (c < 0)
+                    break;
+                buffer[offset + count++] = (char)c;
+            }
+            return count == 0 && ended ? -1 : count;
+        }
+        
+        /**
+         * Reads the next decoded character
+         * @return The character, or -1 at the end of the string
+         * @throws IOException if the string cannot be read
+         */
+        private int readDecoded() throws IOException {
+            final int c = reader.read();
+            if (c < 0)
+                throw new IOException("Unterminated JSON string");
+            if (c == '"') {
+                ended = true;
+                return -1;
+            }
+            if (c != '\\')
+                return c;
+            final int escaped = reader.read();
+            switch (escaped) {
+            case 'b': return '\b';
+            case 't': return '\t';
+            case 'n': return '\n';
+            case 'f': return '\f';
+            case 'r': return '\r';
+            case 'u':
+                int code = 0;
+                for (int i = 0; i < 4; i++) {
+                    final int digit = Character.digit(reader.read(), 16);
+                    if (digit < 0)
+                        throw new IOException("Invalid unicode escape in JSON string");
+                    code = code * 16 + digit;
+                }
+                return code;
+            case '"':
+            case '\\':
+            case '/':
+                return escaped;
+            default:
+                throw new IOException("Invalid escape in JSON string");
+            }
+        }
+        
+        /** {@inheritDoc} */
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
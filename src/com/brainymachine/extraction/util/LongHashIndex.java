@@ -0,0 +1,153 @@
+package com.brainymachine.extraction.util;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash map from <tt>long</tt> keys to <tt>long</tt> values,
+ * without boxing or per-entry objects. Not thread-safe.
+ */
+public class LongHashIndex {
+    private final static long FREE = 0;
+    
+    private long[] keys;
+    private long[] values;
+    private int size;
+    
+    /**
+     * Creates a new <tt>LongHashIndex</tt>
+     * @param expectedSize The expected number of entries
+     */
+    public LongHashIndex(final int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        keys = new long[capacity];
+        values = new long[capacity];
+    }
+    
+    /**
+     * Gets the number of entries
+     * @return The number of entries
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Gets the value of the specified key
+     * @param key The key
+     * @param defaultValue The value to return if the key is absent
+     * @return The value
+     */
+    public long get(final long key, final long defaultValue) {
+        final long k = normalize(key);
+        final int mask = keys.length - 1;
+        for (int i = slot(k, mask); ; i = (i + 1) & mask) {
+            if (keys[i] == k)
+                return values[i];
+            if (keys[i] == FREE)
+                return defaultValue;
+        }
+    }
+    
+    /**
+     * Sets the value of the specified key
+     * @param key The key
+     * @param value The value
+     */
+    public void put(final long key, final long value) {
+        if ((size + 1) * 2 > keys.length)
+            resize(keys.length << 1);
+        final long k = normalize(key);
+        final int mask = keys.length - 1;
+        int i = slot(k, mask);
+        while (keys[i] != FREE && keys[i] != k)
+            i = (i + 1) & mask;
+        if (keys[i] == FREE) {
+            keys[i] = k;
+            size++;
+        }
+        values[i] = value;
+    }
+    
+    /**
+     * Removes the entry of the specified key
+     * @param key The key
+     */
+    public void remove(final long key) {
+        final long k = normalize(key);
+        final int mask = keys.length - 1;
+        int gap = slot(k, mask);
+        while (keys[gap] != k) {
+            if (keys[gap] == FREE)
+                return;
+            gap = (gap + 1) & mask;
+        }
+        // Move later entries of the probe sequence into the gap, so their lookups do not stop there
+        for (int i = (gap + 1) & mask; keys[i] != FREE; i = (i + 1) & mask) {
+            if (((i - slot(keys[i], mask)) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                values[gap] = values[i];
+                gap = i;
+            }
+        }
+        keys[gap] = FREE;
+        size--;
+    }
+    
+    /**
+     * Removes all entries with a value in the specified range, shrinking the index if it becomes sparse
+     * @param fromValue The lowest value to remove
+     * @param toValue The value above the highest value to remove
+     */
+    public void removeValues(final long fromValue, final long toValue) {
+        int remaining = 0;
+        for (int j = 0; j < keys.length; j++)
+            if (keys[j] != FREE && (values[j] < fromValue || values[j] >= toValue))
+                remaining++;
+        int capacity = 16;
+        while (capacity < remaining * 2)
+            capacity <<= 1;
+        resize(capacity, fromValue, toValue);
+    }
+    
+    /**
+     * Removes all entries
+     */
+    public void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+    
+    private void resize(final int capacity) {
+        resize(capacity, 0, 0);
+    }
+    
+    private void resize(final int capacity, final long removedFrom, final long removedTo) {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        keys = new long[capacity];
+        values = new long[capacity];
+        size = 0;
+        final int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == FREE || (oldValues[j] >= removedFrom && oldValues[j] < removedTo))
+                continue;
+            int i = slot(oldKeys[j], mask);
+            while (keys[i] != FREE)
+                i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+            size++;
+        }
+    }
+    
+    private static long normalize(final long key) {
+        return key == FREE ? 1 : key;
+    }
+    
+    private static int slot(final long key, final int mask) {
+        final long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int)(mixed ^ (mixed >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,67 @@
+package com.brainymachine.extraction.util;
+
+/**
+ * Static methods that read tuning settings of the extension.
+ * Settings are JVM system properties prefixed with <tt>extraction.</tt>,
+ * e.g. <tt>-Dextraction.workers=16</tt>.
+ */
+public final class SettingsUtil {
+    /** The prefix of all extension settings **/
+    public final static String PREFIX = "extraction.";
+    
+    /**
+     * Private constructor to avoid instance creation.
+     */
+    private SettingsUtil() { }
+    
+    /**
+     * Gets the value of the specified setting
+     * @param name The name of the setting (without prefix)
+     * @param defaultValue The value to return if the setting is absent
+     * @return The setting value
+     */
+    public static String getString(final String name, final String defaultValue) {
+        final String value = System.getProperty(PREFIX + name);
+        return value == null || value.trim().length() == 0 ? defaultValue : value.trim();
+    }
+    
+    /**
+     * Gets the integer value of the specified setting
+     * @param name The name of the setting (without prefix)
+     * @param defaultValue The value to return if the setting is absent or invalid
+     * @return The setting value
+     */
+    public static int getInt(final String name, final int defaultValue) {
+        try {
+            return Integer.parseInt(getString(name, Integer.toString(defaultValue)));
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Gets the long value of the specified setting
+     * @param name The name of the setting (without prefix)
+     * @param defaultValue The value to return if the setting is absent or invalid
+     * @return The setting value
+     */
+    public static long getLong(final String name, final long defaultValue) {
+        try {
+            return Long.parseLong(getString(name, Long.toString(defaultValue)));
+        }
+        catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+    
+    /**
+     * Gets the boolean value of the specified setting
+     * @param name The name of the setting (without prefix)
+     * @param defaultValue The value to return if the setting is absent
+     * @return The setting value
+     */
+    public static boolean getBoolean(final String name, final boolean defaultValue) {
+        return Boolean.parseBoolean(getString(name, Boolean.toString(defaultValue)));
+    }
+}
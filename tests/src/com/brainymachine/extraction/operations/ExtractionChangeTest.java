@@ -0,0 +1,273 @@
+package com.brainymachine.extraction.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.LineNumberReader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+import com.google.refine.model.Cell;
+import com.google.refine.model.Column;
+import com.google.refine.model.ColumnGroup;
+import com.google.refine.model.Project;
+import com.google.refine.model.Row;
+
+/**
+ * Round trips of <tt>ExtractionChange</tt> through the versioned format
+ * and loading of the single-line format of changes saved before versioning
+ */
+public class ExtractionChangeTest {
+    private final static int ROW_COUNT = 100000;
+    private final static String[] SERVICE_NAMES = { "links", "titles", "images" };
+    private final static String[] COLUMN_NAMES = { "Links", "", "Images" };
+    private final static String[][] NOT_EXTRACTED = new String[0][];
+    
+    /**
+     * Creates results with 0 to 4 elements per row and service,
+     * with rows that were not extracted and values that need escaping
+     * @param withFailures Whether some results are failed
+     * @return The extracted elements per row and service
+     */
+    private static String[][][] createElements(final boolean withFailures) {
+        final Random random = new Random(42);
+        final String[][][] rows = new String[ROW_COUNT][][];
+        for (int r = 0; r < ROW_COUNT; r++) {
+            if (r % 10 == 9) {
+                rows[r] = NOT_EXTRACTED;
+                continue;
+            }
+            rows[r] = new String[SERVICE_NAMES.length][];
+            for (int c = 0; c < SERVICE_NAMES.length; c++) {
+                if (withFailures && r % 97 == c) {
+                    rows[r][c] = null;
+                    continue;
+                }
+                rows[r][c] = new String[(r + c) % 5];
+                for (int i = 0; i < rows[r][c].length; i++) {
+                    // Repeat values across rows, as extracted elements do
+                    switch (random.nextInt(4)) {
+                        case 0: rows[r][c][i] = "value " + random.nextInt(100); break;
+                        case 1: rows[r][c][i] = "\"quoted\", [bracketed] and {braced}"; break;
+                        case 2: rows[r][c][i] = "line\nbreak\ttab \\ é中😀"; break;
+                        default: rows[r][c][i] = ""; break;
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+    
+    /**
+     * Writes the elements as a single JSON line, the format of changes saved before versioning
+     * @param rows The extracted elements per row and service
+     * @param addedRows The added row numbers
+     * @return The line
+     */
+    private static String toJsonLine(final String[][][] rows, final int[] addedRows) {
+        final StringBuilder line = new StringBuilder("{\"column\":2,\"services\":[");
+        for (int c = 0; c < SERVICE_NAMES.length; c++)
+            line.append(c > 0 ? "," : "").append(JSONObject.quote(SERVICE_NAMES[c]));
+        line.append("],\"columns\":[");
+        for (int c = 0; c < COLUMN_NAMES.length; c++)
+            line.append(c > 0 ? "," : "").append(JSONObject.quote(COLUMN_NAMES[c]));
+        line.append("],\"elements\":[");
+        for (int r = 0; r < rows.length; r++) {
+            line.append(r > 0 ? ",[" : "[");
+            for (int c = 0; c < rows[r].length; c++) {
+                line.append(c > 0 ? ",[" : "[");
+                for (int i = 0; i < rows[r][c].length; i++)
+                    line.append(i > 0 ? "," : "").append("{\"extractedText\":").append(JSONObject.quote(rows[r][c][i])).append('}');
+                line.append(']');
+            }
+            line.append(']');
+        }
+        line.append("],\"addedRows\":[");
+        for (int i = 0; i < addedRows.length; i++)
+            line.append(i > 0 ? "," : "").append(addedRows[i]);
+        return line.append("]}").toString();
+    }
+    
+    /**
+     * Asserts that the results hold the elements
+     * @param expected The extracted elements per row and service
+     * @param results The results
+     */
+    private static void assertResults(final String[][][] expected, final ExtractionResults results) {
+        assertEquals(SERVICE_NAMES.length, results.getServiceCount());
+        assertEquals(expected.length, results.getRowCount());
+        for (int r = 0; r < expected.length; r++) {
+            assertEquals("results of row " + r, expected[r].length > 0, results.hasResults(r));
+            for (int c = 0; c < expected[r].length; c++) {
+                final String message = String.format("row %d, service %d", r, c);
+                assertEquals(message, expected[r][c] == null, results.isFailed(r, c));
+                final int elementCount = expected[r][c] == null ? 0 : expected[r][c].length;
+                assertEquals(message, elementCount, results.getElementCount(r, c));
+                for (int i = 0; i < elementCount; i++)
+                    assertEquals(message, expected[r][c][i], results.getElement(r, c, i));
+            }
+        }
+    }
+    
+    /**
+     * Loads a saved change
+     * @param saved The saved change
+     * @return The change
+     * @throws Exception if the change cannot be loaded
+     */
+    private static ExtractionChange load(final String saved) throws Exception {
+        return (ExtractionChange)ExtractionChange.load(new LineNumberReader(new StringReader(saved)), null);
+    }
+    
+    /**
+     * Saves the change
+     * @param change The change
+     * @return The saved change
+     * @throws Exception if the change cannot be saved
+     */
+    private static String save(final ExtractionChange change) throws Exception {
+        final StringWriter writer = new StringWriter();
+        change.save(writer, new Properties());
+        return writer.toString();
+    }
+    
+    @Test
+    public void roundTripsVersionedFormat() throws Exception {
+        final String[][][] rows = createElements(true);
+        final String saved = save(new ExtractionChange(2, SERVICE_NAMES, COLUMN_NAMES, rows));
+        assertTrue(saved.startsWith("version="));
+        assertTrue(saved.endsWith("/ec/\n"));
+        
+        final ExtractionChange loaded = load(saved);
+        assertResults(rows, loaded.getResults());
+        // Saving the loaded change gives the same lines
+        assertEquals(saved, save(loaded));
+    }
+    
+    @Test
+    public void roundTripsResultsWithoutRows() throws Exception {
+        final String[][][] rows = new String[0][][];
+        final ExtractionChange loaded = load(save(new ExtractionChange(0, SERVICE_NAMES, COLUMN_NAMES, rows)));
+        assertResults(rows, loaded.getResults());
+    }
+    
+    @Test
+    public void loadsSingleLineFormat() throws Exception {
+        final String[][][] rows = createElements(false);
+        final String line = toJsonLine(rows, new int[0]);
+        
+        // Results with another number of elements than services were truncated or failed to load before
+        assertResults(rows, ((ExtractionChange)ExtractionChange.loadJsonLine(line)).getResults());
+        final ExtractionChange loaded = load(line + "\n");
+        assertResults(rows, loaded.getResults());
+        // The loaded change is saved in the versioned format
+        final String saved = save(loaded);
+        assertTrue(saved.startsWith("version="));
+        assertResults(rows, load(saved).getResults());
+    }
+    
+    @Test
+    public void loadsSingleLineFormatWithAddedRows() throws Exception {
+        final String[][][] rows = createElements(false);
+        final String saved = save(load(toJsonLine(rows, new int[] { 3, 5, 8 })));
+        assertTrue(saved.contains("\naddedRowCount=3\n3\n5\n8\n/ec/\n"));
+    }
+    
+    @Test
+    public void loadsRowsIntoChangeStore() throws Exception {
+        final File directory = File.createTempFile("changes-", "");
+        directory.delete();
+        ChangeStore.setSharedStore(new ChangeStore(directory));
+        try {
+            final String[][][] rows = createElements(true);
+            final String saved = save(new ExtractionChange(2, SERVICE_NAMES, COLUMN_NAMES, rows));
+            final ExtractionChange loaded = load(saved);
+            assertEquals(1, directory.list().length);
+            // The change is saved from the store and reloads its results from there
+            assertEquals(saved, save(loaded));
+            assertResults(rows, loaded.getResults());
+            
+            final String[][][] singleLineRows = createElements(false);
+            final ExtractionChange loadedLine = load(toJsonLine(singleLineRows, new int[0]));
+            assertEquals(save(new ExtractionChange(2, SERVICE_NAMES, COLUMN_NAMES, singleLineRows)), save(loadedLine));
+            assertResults(singleLineRows, loadedLine.getResults());
+            assertEquals(2, directory.list().length);
+        }
+        finally {
+            ChangeStore.setSharedStore(null);
+            for (final File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+    
+    /**
+     * Describes the column groups of the project
+     * @param project The project
+     * @return The start, span and key column of each group
+     */
+    private static List<String> describeColumnGroups(final Project project) {
+        final ArrayList<String> groups = new ArrayList<String>();
+        for (final ColumnGroup group : project.columnModel.columnGroups)
+            groups.add(group.startColumnIndex + "+" + group.columnSpan + "@" + group.keyColumnIndex);
+        return groups;
+    }
+    
+    @Test
+    public void shiftsColumnGroupsAndRestoresThemOnRevert() throws Exception {
+        final Project project = new Project();
+        for (final String name : new String[] { "A", "B", "C", "D", "E" })
+            project.columnModel.columns.add(new Column(project.columnModel.allocateNewCellIndex(), name));
+        for (int r = 0; r < 3; r++) {
+            final Row row = new Row(5);
+            for (int c = 0; c < 5; c++)
+                row.cells.add(new Cell("r" + r + "c" + c, null));
+            project.rows.add(row);
+        }
+        // A group that spans the created columns, one after them and one that ends just before them
+        project.columnModel.columnGroups.add(new ColumnGroup(0, 3, 2));
+        project.columnModel.columnGroups.add(new ColumnGroup(3, 2, 3));
+        project.columnModel.columnGroups.add(new ColumnGroup(0, 2, 0));
+        final List<String> groups = describeColumnGroups(project);
+        
+        final String[][][] rows = { { { "x" }, { "y", "z" }, {} }, NOT_EXTRACTED, { {}, {}, { "w" } } };
+        final ExtractionChange change = new ExtractionChange(2, SERVICE_NAMES, COLUMN_NAMES, rows);
+        change.apply(project);
+        assertEquals(8, project.columnModel.columns.size());
+        assertEquals("Links", project.columnModel.columns.get(2).getName());
+        assertEquals(Arrays.asList("0+6@5", "6+2@6", "0+2@0"), describeColumnGroups(project));
+        assertEquals(4, project.rows.size());
+        
+        change.revert(project);
+        assertEquals(5, project.columnModel.columns.size());
+        assertEquals("C", project.columnModel.columns.get(2).getName());
+        assertEquals(groups, describeColumnGroups(project));
+        assertEquals(3, project.rows.size());
+        for (final Row row : project.rows)
+            for (int cellIndex = 5; cellIndex < row.cells.size(); cellIndex++)
+                assertNull(row.cells.get(cellIndex));
+    }
+    
+    @Test
+    public void rejectsIncompleteChanges() throws Exception {
+        final String saved = save(new ExtractionChange(2, SERVICE_NAMES, COLUMN_NAMES, createElements(true)));
+        boolean failed = false;
+        try {
+            load(saved.substring(0, saved.indexOf("rowCount=")) + "/ec/\n");
+        }
+        catch (Exception error) {
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+}
@@ -0,0 +1,95 @@
+package com.brainymachine.extraction.operations;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Writing, loading and resuming the records of an <tt>ExtractionCheckpoint</tt>
+ */
+public class ExtractionCheckpointTest {
+    private File file;
+    
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("extraction-test-", ".checkpoint");
+    }
+    
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+    
+    /**
+     * Writes a checkpoint with a record per text, with the text and its index as elements of both services
+     * @param texts The texts
+     */
+    private void writeCheckpoint(final String... texts) throws IOException {
+        final ExtractionCheckpoint checkpoint = new ExtractionCheckpoint(file, 2);
+        for (int i = 0; i < texts.length; i++)
+            checkpoint.append(texts[i], new String[][] { { texts[i] }, { String.valueOf(i), "" } });
+        checkpoint.flush();
+        checkpoint.close();
+    }
+    
+    @Test
+    public void readsResultsOfIndexedTexts() throws IOException {
+        writeCheckpoint("page-1", "", "página-3");
+        final ExtractionCheckpoint checkpoint = new ExtractionCheckpoint(file, 2);
+        assertEquals(3, checkpoint.load());
+        try {
+            assertArrayEquals(new String[][] { { "página-3" }, { "2", "" } }, checkpoint.getResults("página-3"));
+            assertArrayEquals(new String[][] { { "page-1" }, { "0", "" } }, checkpoint.getResults("page-1"));
+            assertArrayEquals(new String[][] { { "" }, { "1", "" } }, checkpoint.getResults(""));
+            assertNull(checkpoint.getResults("page-4"));
+        }
+        finally {
+            checkpoint.close();
+        }
+    }
+    
+    @Test
+    public void discardsIncompleteRecord() throws IOException {
+        writeCheckpoint("page-1", "page-2");
+        final long validLength = file.length();
+        final FileOutputStream output = new FileOutputStream(file, true);
+        output.write(new byte[] { 0, 0, 0, 6, 'p', 'a', 'g' });
+        output.close();
+        
+        final ExtractionCheckpoint checkpoint = new ExtractionCheckpoint(file, 2);
+        assertEquals(2, checkpoint.load());
+        assertEquals(validLength, file.length());
+        // Records appended after loading are not resumed, but the indexed ones still are
+        checkpoint.append("page-3", new String[][] { {}, {} });
+        checkpoint.flush();
+        try {
+            assertNull(checkpoint.getResults("page-3"));
+            assertArrayEquals(new String[][] { { "page-2" }, { "1", "" } }, checkpoint.getResults("page-2"));
+        }
+        finally {
+            checkpoint.close();
+        }
+    }
+    
+    @Test
+    public void rejectsOtherServiceCount() throws IOException {
+        writeCheckpoint("page-1");
+        boolean failed = false;
+        try {
+            new ExtractionCheckpoint(file, 3).load();
+        }
+        catch (IOException error) {
+            failed = true;
+        }
+        assertTrue(failed);
+    }
+}
@@ -0,0 +1,220 @@
+package com.brainymachine.extraction.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brainymachine.extraction.services.CircuitBreaker;
+import com.brainymachine.extraction.services.ExtractionService;
+import com.brainymachine.extraction.services.RetryPolicy;
+import com.brainymachine.extraction.services.SparkExtract;
+import com.brainymachine.extraction.services.StubHttpServer;
+import com.google.refine.browsing.RowVisitor;
+import com.google.refine.expr.EvalError;
+import com.google.refine.model.Cell;
+import com.google.refine.model.Column;
+import com.google.refine.model.Project;
+import com.google.refine.model.Row;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Extraction runs of <tt>ExtractionProcess</tt> on a project against a stub extraction service,
+ * which answers each URL with a single element and fails on URLs that start with <tt>fail</tt>
+ * or on all URLs during an outage
+ */
+public class ExtractionProcessTest {
+    private final static Pattern URL_PATTERN = Pattern.compile("(?:^|&)url=([^&]*)");
+    
+    private StubHttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    /** The numbers of the first and last requests that fail because the service is down */
+    private volatile int outageStart, outageEnd;
+    private final AtomicInteger awaits = new AtomicInteger();
+    
+    @Before
+    public void startServer() throws IOException {
+        System.setProperty("extraction.workers", "1");
+        server = new StubHttpServer();
+        server.handle("/extract", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final Matcher matcher = URL_PATTERN.matcher(StubHttpServer.readBody(exchange));
+                final String url = matcher.find() ? URLDecoder.decode(matcher.group(1), "UTF-8") : "";
+                final int request = requests.incrementAndGet();
+                if (url.startsWith("fail") || request >= outageStart && request <= outageEnd)
+                    StubHttpServer.respond(exchange, 500, "text/plain", "failed");
+                else
+                    StubHttpServer.respond(exchange, 200, "application/json",
+                                           "{\"elements\":[{\"value\":\"" + url + "/0\"}]}");
+            }
+        });
+    }
+    
+    @After
+    public void stopServer() {
+        server.stop();
+        System.clearProperty("extraction.workers");
+    }
+    
+    /**
+     * Creates a project with a single column of texts
+     * @param texts The texts of the rows
+     * @return The project
+     */
+    private static Project createProject(final List<String> texts) {
+        final Project project = new Project();
+        project.columnModel.columns.add(new Column(project.columnModel.allocateNewCellIndex(), "Texts"));
+        for (final String text : texts) {
+            final Row row = new Row(1);
+            row.cells.add(new Cell(text, null));
+            project.rows.add(row);
+        }
+        return project;
+    }
+    
+    /**
+     * Creates a service that sends single texts to the stub, without retries
+     * @return The service
+     */
+    private SparkExtract createService() {
+        final SparkExtract service = new SparkExtract();
+        service.setServiceUrl(server.getUrl("/extract"));
+        service.setProperty("batch", "1");
+        service.setRetryPolicy(new RetryPolicy(1, 1, 1));
+        return service;
+    }
+    
+    /**
+     * Creates a process that extracts all rows of the project's first column, without checkpoints,
+     * and counts how often it waits for an unavailable service
+     * @param project The project
+     * @param service The service
+     * @return The process
+     */
+    private ExtractionProcess createProcess(final Project project, final ExtractionService service) {
+        return createProcess(project, service, null);
+    }
+    
+    /**
+     * Creates a process that extracts all rows of the project's first column
+     * and counts how often it waits for an unavailable service
+     * @param project The project
+     * @param service The service
+     * @param checkpointDirectory The directory for checkpoints (can be null to disable checkpoints)
+     * @return The process
+     */
+    private ExtractionProcess createProcess(final Project project, final ExtractionService service,
+                                            final File checkpointDirectory) {
+        final Map<String, ExtractionService> services = new LinkedHashMap<String, ExtractionService>();
+        services.put("links", service);
+        return new ExtractionProcess(project, project.columnModel.columns.get(0), services, null, "test", null,
+                                     checkpointDirectory) {
+            @Override
+            protected void visitFilteredRows(final RowVisitor visitor) {
+                visitor.start(project);
+                for (int r = 0; r < project.rows.size(); r++)
+                    if (visitor.visit(project, r, project.rows.get(r)))
+                        break;
+                visitor.end(project);
+            }
+            
+            @Override
+            protected boolean awaitService(final CircuitBreaker circuitBreaker) throws InterruptedException {
+                awaits.incrementAndGet();
+                return super.awaitService(circuitBreaker);
+            }
+        };
+    }
+    
+    @Test
+    public void marksFailedTextsAsErrors() throws Exception {
+        final Project project = createProject(Arrays.asList("page-1", "fail-1", "page-2", "fail-2"));
+        final ExtractionResults results = createProcess(project, createService()).performExtraction();
+        
+        for (int r = 0; r < 4; r++) {
+            final boolean failed = r % 2 == 1;
+            assertTrue(results.hasResults(r));
+            assertEquals("row " + r, failed, results.isFailed(r, 0));
+            assertEquals("row " + r, failed ? 0 : 1, results.getElementCount(r, 0));
+        }
+        
+        // Failed texts get an error cell instead of an empty one, so they can be extracted again
+        new ExtractionChange(1, new String[] { "links" }, new String[] { "Links" }, results).apply(project);
+        final int cellIndex = project.columnModel.columns.get(1).getCellIndex();
+        assertEquals("page-1/0", project.rows.get(0).getCell(cellIndex).value);
+        assertTrue(project.rows.get(1).getCell(cellIndex).value instanceof EvalError);
+        assertEquals("page-2/0", project.rows.get(2).getCell(cellIndex).value);
+        assertTrue(project.rows.get(3).getCell(cellIndex).value instanceof EvalError);
+    }
+    
+    @Test
+    public void waitsForUnavailableServiceAndResumes() throws Exception {
+        final Project project = createProject(Arrays.asList("page-1", "page-2", "page-3", "page-4", "page-5",
+                                                            "page-6", "page-7", "page-8", "page-9", "page-10"));
+        final SparkExtract service = createService();
+        service.setCircuitBreaker(new CircuitBreaker("stub", 2, 150));
+        // The service is down for three requests: two open the circuit and the first probe fails
+        outageStart = 4;
+        outageEnd = 6;
+        final long start = System.currentTimeMillis();
+        final ExtractionResults results = createProcess(project, service).performExtraction();
+        
+        // The extraction waited twice for the circuit and sent no requests while it was open
+        assertEquals(2, awaits.get());
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        assertEquals(10, requests.get());
+        for (int r = 0; r < 10; r++) {
+            final boolean failed = r >= 3 && r <= 5;
+            assertTrue(results.hasResults(r));
+            assertEquals("row " + r, failed, results.isFailed(r, 0));
+            assertEquals("row " + r, failed ? 0 : 1, results.getElementCount(r, 0));
+        }
+        assertEquals("page-10/0", results.getElement(9, 0, 0));
+    }
+    
+    @Test
+    public void deletesStaleCheckpoints() throws Exception {
+        final File directory = File.createTempFile("extraction-test-", "");
+        directory.delete();
+        directory.mkdir();
+        final File stale = new File(directory, "1-stale.checkpoint");
+        final File recent = new File(directory, "2-recent.checkpoint");
+        final File other = new File(directory, "stale.txt");
+        final long staleTime = System.currentTimeMillis() - 120000;
+        for (final File file : new File[] { stale, recent, other })
+            file.createNewFile();
+        stale.setLastModified(staleTime);
+        other.setLastModified(staleTime);
+        System.setProperty("extraction.checkpoint.maxAge", "60000");
+        try {
+            final Project project = createProject(Arrays.asList("page-1"));
+            final ExtractionCheckpoint checkpoint = createProcess(project, createService(), directory).openCheckpoint(1);
+            assertFalse(stale.exists());
+            assertTrue(recent.exists());
+            assertTrue(other.exists());
+            assertEquals(directory, checkpoint.getFile().getParentFile());
+        }
+        finally {
+            System.clearProperty("extraction.checkpoint.maxAge");
+            for (final File file : directory.listFiles())
+                file.delete();
+            directory.delete();
+        }
+    }
+}
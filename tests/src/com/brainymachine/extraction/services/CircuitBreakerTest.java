@@ -0,0 +1,155 @@
+package com.brainymachine.extraction.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * States of <tt>CircuitBreaker</tt> as a service sends requests to a stub
+ * that fails with status code 500 until it is available
+ */
+public class CircuitBreakerTest {
+    private StubHttpServer server;
+    private final AtomicInteger requests = new AtomicInteger();
+    private volatile boolean available;
+    /** The latch that holds back responses, or <tt>null</tt> to respond immediately */
+    private volatile CountDownLatch responses;
+    
+    @Before
+    public void startServer() throws IOException {
+        server = new StubHttpServer();
+        server.handle("/extract", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                StubHttpServer.readBody(exchange);
+                requests.incrementAndGet();
+                final CountDownLatch latch = responses;
+                if (latch != null) {
+                    try {
+                        latch.await(10, TimeUnit.SECONDS);
+                    }
+                    catch (InterruptedException e) { }
+                }
+                if (available)
+                    StubHttpServer.respond(exchange, 200, "application/json", "{\"elements\":[]}");
+                else
+                    StubHttpServer.respond(exchange, 500, "text/plain", "failed");
+            }
+        });
+    }
+    
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+    
+    /**
+     * Creates a service that sends single texts to the stub, without retries
+     * @param circuitBreaker The circuit breaker of the service
+     * @return The service
+     */
+    private SparkExtract createService(final CircuitBreaker circuitBreaker) {
+        final SparkExtract service = new SparkExtract();
+        service.setServiceUrl(server.getUrl("/extract"));
+        service.setProperty("batch", "1");
+        service.setRetryPolicy(new RetryPolicy(1, 1, 1));
+        service.setCircuitBreaker(circuitBreaker);
+        return service;
+    }
+    
+    /**
+     * Extracts a text, expecting the service to fail
+     * @param service The service
+     * @return The failure
+     */
+    private static Exception extractFailing(final SparkExtract service) {
+        try {
+            service.extractElementValues("page-1");
+        }
+        catch (Exception error) {
+            return error;
+        }
+        fail("The extraction should fail");
+        return null;
+    }
+    
+    @Test
+    public void opensAfterThresholdAndFailsFast() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("stub", 3, 60000);
+        final SparkExtract service = createService(circuitBreaker);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+            assertTrue(extractFailing(service) instanceof IllegalStateException);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertTrue(circuitBreaker.getRetryDelay() > 0);
+        
+        // Requests fail without reaching the service while the circuit is open
+        for (int i = 0; i < 5; i++)
+            assertTrue(extractFailing(service) instanceof CircuitOpenException);
+        assertEquals(3, requests.get());
+    }
+    
+    @Test
+    public void letsSingleProbeThroughWhileHalfOpen() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("stub", 1, 100);
+        final SparkExtract service = createService(circuitBreaker);
+        extractFailing(service);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        Thread.sleep(150);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState());
+        
+        // Hold back the response to the probe while other requests try to get through
+        responses = new CountDownLatch(1);
+        final Thread probe = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    service.extractElementValues("page-1");
+                }
+                catch (Exception error) {
+                    throw new IllegalStateException(error);
+                }
+            }
+        };
+        probe.start();
+        while (requests.get() < 2)
+            Thread.sleep(5);
+        for (int i = 0; i < 3; i++)
+            assertTrue(extractFailing(service) instanceof CircuitOpenException);
+        assertEquals(2, requests.get());
+        
+        // A successful probe closes the circuit
+        available = true;
+        responses.countDown();
+        probe.join();
+        assertEquals(CircuitBreaker.State.CLOSED, circuitBreaker.getState());
+        service.extractElementValues("page-2");
+        assertEquals(3, requests.get());
+    }
+    
+    @Test
+    public void reopensAfterFailedProbe() throws Exception {
+        final CircuitBreaker circuitBreaker = new CircuitBreaker("stub", 1, 100);
+        final SparkExtract service = createService(circuitBreaker);
+        extractFailing(service);
+        Thread.sleep(150);
+        
+        assertTrue(extractFailing(service) instanceof IllegalStateException);
+        assertEquals(CircuitBreaker.State.OPEN, circuitBreaker.getState());
+        assertTrue(extractFailing(service) instanceof CircuitOpenException);
+        assertEquals(2, requests.get());
+    }
+}
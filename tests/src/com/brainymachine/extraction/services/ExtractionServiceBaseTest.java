@@ -0,0 +1,288 @@
+package com.brainymachine.extraction.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Batch extraction requests and retries of <tt>ExtractionServiceBase</tt> against a stub extraction service.
+ * The stub answers each requested URL of the form <tt>page-N</tt> with N elements,
+ * fails on <tt>fail</tt>, and answers one item less than requested on <tt>short</tt>.
+ * Queued outages are answered first, one per request.
+ */
+public class ExtractionServiceBaseTest {
+    private final static Pattern URL_PATTERN = Pattern.compile("\"url\":\"([^\"]*)\"|(?:^|&)url=([^&]*)");
+    
+    private StubHttpServer server;
+    private final List<List<String>> requests = Collections.synchronizedList(new ArrayList<List<String>>());
+    /** Status code and <tt>Retry-After</tt> header, or <tt>null</tt>, of the responses to the next requests */
+    private final LinkedList<String[]> outages = new LinkedList<String[]>();
+    private File cacheDirectory;
+    private ResultCache cache;
+    
+    @Before
+    public void startServer() throws IOException {
+        server = new StubHttpServer();
+        server.handle("/extract", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                final String body = StubHttpServer.readBody(exchange);
+                final ArrayList<String> urls = new ArrayList<String>();
+                final Matcher matcher = URL_PATTERN.matcher(body);
+                while (matcher.find())
+                    urls.add(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+                requests.add(urls);
+                final String[] outage;
+                synchronized (outages) {
+                    outage = outages.poll();
+                }
+                if (outage != null) {
+                    if (outage[1] != null)
+                        exchange.getResponseHeaders().set("Retry-After", outage[1]);
+                    StubHttpServer.respond(exchange, Integer.parseInt(outage[0]), "text/plain", "unavailable");
+                    return;
+                }
+                if (urls.contains("fail")) {
+                    StubHttpServer.respond(exchange, 500, "text/plain", "failed");
+                    return;
+                }
+                // Single requests are form encoded and get a single result object
+                if (!body.startsWith("{")) {
+                    StubHttpServer.respond(exchange, 200, "application/json", toResult(urls.get(0)));
+                    return;
+                }
+                final StringBuilder response = new StringBuilder("{\"status\":\"ok\",\"items\":[");
+                final int itemCount = urls.contains("short") ? urls.size() - 1 : urls.size();
+                for (int i = 0; i < itemCount; i++)
+                    response.append(i > 0 ? "," : "").append(toResult(urls.get(i)));
+                StubHttpServer.respond(exchange, 200, "application/json", response.append("]}").toString());
+            }
+        });
+    }
+    
+    /**
+     * Creates the result object of the stub for a URL of the form <tt>page-N</tt>
+     * @param url The URL
+     * @return The result object with N elements
+     */
+    private static String toResult(final String url) {
+        final StringBuilder result = new StringBuilder("{\"elements\":[");
+        final int elementCount = url.startsWith("page-") ? Integer.parseInt(url.substring(5)) : 0;
+        for (int j = 0; j < elementCount; j++)
+            result.append(j > 0 ? "," : "").append("{\"value\":\"").append(url).append('/').append(j).append("\"}");
+        return result.append("]}").toString();
+    }
+    
+    @After
+    public void stopServer() {
+        server.stop();
+        if (cache != null)
+            cache.close();
+        if (cacheDirectory != null) {
+            for (final File file : cacheDirectory.listFiles())
+                file.delete();
+            cacheDirectory.delete();
+        }
+    }
+    
+    /**
+     * Creates a service that sends batches to the stub, without retries
+     * @param maxElements The maximum number of elements per text, or 0 for no maximum
+     * @return The service
+     */
+    private SparkExtract createService(final int maxElements) {
+        return createService(maxElements, new RetryPolicy(1, 1, 1));
+    }
+    
+    /**
+     * Creates a service that sends batches to the stub
+     * @param maxElements The maximum number of elements per text, or 0 for no maximum
+     * @param retryPolicy The retry policy
+     * @return The service
+     */
+    private SparkExtract createService(final int maxElements, final RetryPolicy retryPolicy) {
+        final SparkExtract service = new SparkExtract() {
+            @Override
+            protected int getMaxElements() {
+                return maxElements;
+            }
+        };
+        service.setServiceUrl(server.getUrl("/extract"));
+        service.setProperty("batch", "10");
+        service.setRetryPolicy(retryPolicy);
+        return service;
+    }
+    
+    /**
+     * Gets the expected elements of a URL of the form <tt>page-N</tt>
+     * @param url The URL
+     * @param maxElements The maximum number of elements, or 0 for no maximum
+     * @return The elements
+     */
+    private static String[] expectedElements(final String url, final int maxElements) {
+        int count = Integer.parseInt(url.substring(5));
+        if (maxElements > 0)
+            count = Math.min(count, maxElements);
+        final String[] elements = new String[count];
+        for (int j = 0; j < count; j++)
+            elements[j] = url + "/" + j;
+        return elements;
+    }
+    
+    @Test
+    public void sendsTextsInSingleRequest() throws Exception {
+        final List<String> urls = Arrays.asList("page-2", "page-0", "page-4", "page-1", "page-3");
+        final String[][] results = createService(0).extractElementValues(urls);
+        
+        assertEquals(1, requests.size());
+        assertEquals(urls, requests.get(0));
+        assertEquals(urls.size(), results.length);
+        for (int i = 0; i < urls.size(); i++)
+            assertArrayEquals(urls.get(i), expectedElements(urls.get(i), 0), results[i]);
+    }
+    
+    @Test
+    public void capsElementsPerText() throws Exception {
+        final List<String> urls = Arrays.asList("page-5", "page-1", "page-3");
+        final String[][] results = createService(2).extractElementValues(urls);
+        
+        assertEquals(1, requests.size());
+        for (int i = 0; i < urls.size(); i++)
+            assertArrayEquals(urls.get(i), expectedElements(urls.get(i), 2), results[i]);
+    }
+    
+    @Test
+    public void failsBatchOnServerError() throws Exception {
+        try {
+            createService(0).extractElementValues(Arrays.asList("page-1", "fail", "page-2"));
+            fail("A server error should fail the batch");
+        }
+        catch (IllegalStateException error) {
+            assertTrue(error.getMessage(), error.getMessage().contains("500"));
+        }
+        assertEquals(1, requests.size());
+    }
+    
+    /**
+     * Queues an outage of the stub
+     * @param statusCode The status code of the response
+     * @param retryAfter The <tt>Retry-After</tt> header of the response, or <tt>null</tt> for none
+     */
+    private void addOutage(final int statusCode, final String retryAfter) {
+        synchronized (outages) {
+            outages.add(new String[] { Integer.toString(statusCode), retryAfter });
+        }
+    }
+    
+    @Test
+    public void retriesUnavailableServiceUntilItSucceeds() throws Exception {
+        addOutage(503, null);
+        addOutage(503, null);
+        final List<String> urls = Arrays.asList("page-1", "page-2");
+        final String[][] results = createService(0, new RetryPolicy(3, 1, 10)).extractElementValues(urls);
+        
+        assertEquals(3, requests.size());
+        for (final List<String> request : requests)
+            assertEquals(urls, request);
+        assertArrayEquals(expectedElements("page-1", 0), results[0]);
+        assertArrayEquals(expectedElements("page-2", 0), results[1]);
+    }
+    
+    @Test
+    public void waitsForRetryAfter() throws Exception {
+        addOutage(503, "1");
+        final long start = System.currentTimeMillis();
+        final String[][] results = createService(0, new RetryPolicy(2, 1, 5000))
+                                   .extractElementValues(Arrays.asList("page-1", "page-2"));
+        
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Retried after " + elapsed + " ms", elapsed >= 1000);
+        assertEquals(2, requests.size());
+        assertArrayEquals(expectedElements("page-2", 0), results[1]);
+    }
+    
+    @Test
+    public void givesUpWhenRetryAfterExceedsMaxDelay() throws Exception {
+        addOutage(503, "60");
+        final long start = System.currentTimeMillis();
+        try {
+            createService(0, new RetryPolicy(3, 1, 1000)).extractElementValues(Arrays.asList("page-1", "page-2"));
+            fail("A Retry-After beyond the maximum delay should fail the batch");
+        }
+        catch (IllegalStateException error) {
+            assertTrue(error.getMessage(), error.getMessage().contains("503"));
+        }
+        assertEquals(1, requests.size());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+    
+    @Test
+    public void doesNotRetryServerError() throws Exception {
+        try {
+            createService(0, new RetryPolicy(3, 1, 10)).extractElementValues(Arrays.asList("page-1", "fail"));
+            fail("A server error should fail the batch");
+        }
+        catch (IllegalStateException error) {
+            assertTrue(error.getMessage(), error.getMessage().contains("500"));
+        }
+        assertEquals(1, requests.size());
+    }
+    
+    @Test
+    public void failsBatchOnMissingItems() throws Exception {
+        try {
+            createService(0).extractElementValues(Arrays.asList("page-1", "short", "page-2"));
+            fail("A response with fewer items than texts should fail the batch");
+        }
+        catch (IllegalStateException error) {
+            assertTrue(error.getMessage(), error.getMessage().contains("2 items instead of 3"));
+        }
+    }
+    
+    @Test
+    public void requestsOnlyUncachedTexts() throws Exception {
+        cacheDirectory = File.createTempFile("extraction-cache-", "");
+        cacheDirectory.delete();
+        final SparkExtract service = createService(0);
+        cache = new ResultCache(cacheDirectory, ResultCache.DEFAULT_TTL, ResultCache.DEFAULT_MAX_SIZE);
+        service.setResultCache(cache);
+        
+        service.extractElementValues(Arrays.asList("page-1", "page-2"));
+        final String[][] results = service.extractElementValues(Arrays.asList("page-2", "page-3", "page-1"));
+        
+        assertEquals(2, requests.size());
+        assertEquals(Arrays.asList("page-3"), requests.get(1));
+        assertArrayEquals(expectedElements("page-2", 0), results[0]);
+        assertArrayEquals(expectedElements("page-3", 0), results[1]);
+        assertArrayEquals(expectedElements("page-1", 0), results[2]);
+    }
+    
+    @Test
+    public void extractsSingleTextsWithoutBatches() throws Exception {
+        final SparkExtract service = createService(0);
+        service.setProperty("batch", "1");
+        final String[][] results = service.extractElementValues(Arrays.asList("page-1", "page-2"));
+        
+        assertEquals(2, requests.size());
+        assertArrayEquals(expectedElements("page-1", 0), results[0]);
+        assertArrayEquals(expectedElements("page-2", 0), results[1]);
+    }
+}
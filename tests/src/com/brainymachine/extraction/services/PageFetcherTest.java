@@ -0,0 +1,189 @@
+package com.brainymachine.extraction.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Politeness and failures of <tt>PageFetcher</tt> against an embedded server.
+ * The server answers pages below <tt>/pages</tt> with their path after a short pause,
+ * and <tt>/missing</tt> with status code 404.
+ */
+public class PageFetcherTest {
+    private final static long PAGE_DURATION = 100;
+    
+    private StubHttpServer server;
+    private String robots = "";
+    private final List<Long> pageStarts = Collections.synchronizedList(new ArrayList<Long>());
+    private final AtomicInteger activePages = new AtomicInteger();
+    private final AtomicInteger maxActivePages = new AtomicInteger();
+    
+    @Before
+    public void startServer() throws IOException {
+        server = new StubHttpServer();
+        server.handle("/robots.txt", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                StubHttpServer.respond(exchange, 200, "text/plain", robots);
+            }
+        });
+        server.handle("/pages", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                pageStarts.add(System.currentTimeMillis());
+                final int active = activePages.incrementAndGet();
+                synchronized (maxActivePages) {
+                    maxActivePages.set(Math.max(maxActivePages.get(), active));
+                }
+                try {
+                    Thread.sleep(PAGE_DURATION);
+                }
+                catch (InterruptedException e) { }
+                finally {
+                    activePages.decrementAndGet();
+                }
+                StubHttpServer.respond(exchange, 200, "text/html", exchange.getRequestURI().getPath());
+            }
+        });
+        server.handle("/missing", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                StubHttpServer.respond(exchange, 404, "text/plain", "not found");
+            }
+        });
+    }
+    
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+    
+    /**
+     * Reader that returns the first line of the body
+     */
+    private final static PageFetcher.PageReader<String> LINE_READER = new PageFetcher.PageReader<String>() {
+        @Override
+        public String read(final URI url, final Reader body) throws IOException {
+            return new BufferedReader(body).readLine();
+        }
+    };
+    
+    /**
+     * Fetches the pages at the paths of the server concurrently
+     * @param fetcher The fetcher
+     * @param paths The paths
+     * @return The future first lines of the pages
+     */
+    private List<Future<String>> fetch(final PageFetcher fetcher, final String... paths) {
+        final ArrayList<Future<String>> pages = new ArrayList<Future<String>>();
+        for (final String path : paths)
+            pages.add(fetcher.fetch(URI.create(server.getUrl(path)), new TransferStatistics(), LINE_READER));
+        return pages;
+    }
+    
+    /**
+     * Asserts that the fetch failed with a message that contains the text
+     * @param page The future page
+     * @param text The text
+     */
+    private static void assertFailed(final Future<String> page, final String text) throws InterruptedException {
+        try {
+            page.get();
+            fail("The fetch should fail");
+        }
+        catch (ExecutionException error) {
+            assertTrue(error.getCause().toString(), error.getCause() instanceof IllegalStateException);
+            assertTrue(error.getCause().getMessage(), error.getCause().getMessage().contains(text));
+        }
+    }
+    
+    @Test
+    public void skipsPagesDisallowedByRobots() throws Exception {
+        robots = "User-agent: *\nDisallow: /pages/private\n";
+        final PageFetcher fetcher = new PageFetcher(4, 4, 0, true, 60000, "test-agent");
+        final List<Future<String>> pages = fetch(fetcher, "/pages/public", "/pages/private/1", "/pages/public/2");
+        
+        assertEquals("/pages/public", pages.get(0).get());
+        assertFailed(pages.get(1), "robots.txt");
+        assertEquals("/pages/public/2", pages.get(2).get());
+        assertEquals(2, pageStarts.size());
+        assertEquals(1, fetcher.getPagesDisallowed());
+        assertEquals(2, fetcher.getPagesFetched());
+    }
+    
+    @Test
+    public void pacesFetchesByCrawlDelay() throws Exception {
+        robots = "User-agent: *\nCrawl-delay: 0.3\n";
+        final PageFetcher fetcher = new PageFetcher(4, 4, 0, true, 60000, "test-agent");
+        for (final Future<String> page : fetch(fetcher, "/pages/1", "/pages/2", "/pages/3"))
+            page.get();
+        
+        assertEquals(3, pageStarts.size());
+        for (int i = 1; i < pageStarts.size(); i++) {
+            final long gap = pageStarts.get(i) - pageStarts.get(i - 1);
+            assertTrue("Fetches started " + gap + " ms apart", gap >= 250);
+        }
+    }
+    
+    @Test
+    public void capsConcurrentFetchesPerHost() throws Exception {
+        final PageFetcher fetcher = new PageFetcher(8, 2, 0, false, 60000, "test-agent");
+        final List<Future<String>> pages = fetch(fetcher, "/pages/1", "/pages/2", "/pages/3",
+                                                 "/pages/4", "/pages/5", "/pages/6");
+        for (int i = 0; i < pages.size(); i++)
+            assertEquals("/pages/" + (i + 1), pages.get(i).get());
+        
+        assertEquals(6, pageStarts.size());
+        assertEquals(2, maxActivePages.get());
+    }
+    
+    @Test
+    public void failsFetchOfUnavailablePage() throws Exception {
+        final PageFetcher fetcher = new PageFetcher(4, 2, 0, false, 60000, "test-agent");
+        final List<Future<String>> pages = fetch(fetcher, "/missing", "/pages/1");
+        
+        assertFailed(pages.get(0), "status code 404");
+        // The failure frees the host's slot for the other pages
+        assertEquals("/pages/1", pages.get(1).get());
+        
+        final Future<String> unreachable = fetcher.fetch(URI.create("http://127.0.0.1:1/pages/1"),
+                                                         new TransferStatistics(), LINE_READER);
+        try {
+            unreachable.get();
+            fail("The fetch from an unreachable host should fail");
+        }
+        catch (ExecutionException error) {
+            assertTrue(error.getCause().toString(), error.getCause() instanceof IOException);
+        }
+    }
+    
+    @Test
+    public void removesIdleConnectionPools() throws Exception {
+        final PageFetcher fetcher = new PageFetcher(4, 2, 0, false, 60000, "test-agent");
+        fetch(fetcher, "/pages/1").get(0).get();
+        assertTrue(HttpClientManager.getEndpointCount() > 0);
+        
+        HttpClientManager.evictIdle(0);
+        assertEquals(0, HttpClientManager.getEndpointCount());
+        // A removed pool is created again when its endpoint is used
+        assertEquals("/pages/2", fetch(fetcher, "/pages/2").get(0).get());
+    }
+}
@@ -0,0 +1,104 @@
+package com.brainymachine.extraction.services;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URI;
+
+import org.junit.Test;
+
+/**
+ * Parsing and matching of <tt>robots.txt</tt> rules by <tt>RobotsRules</tt>
+ */
+public class RobotsRulesTest {
+    /**
+     * Parses the <tt>robots.txt</tt> for the test agent
+     * @param robots The <tt>robots.txt</tt>
+     * @return The rules
+     */
+    private static RobotsRules parse(final String robots) throws IOException {
+        return RobotsRules.parse(new StringReader(robots), "TestAgent/1.0");
+    }
+    
+    /**
+     * Indicates whether the rules allow the path
+     * @param rules The rules
+     * @param path The path and query
+     * @return <tt>true</tt> if the path is allowed
+     */
+    private static boolean isAllowed(final RobotsRules rules, final String path) {
+        return rules.isAllowed(URI.create("http://example.com" + path));
+    }
+    
+    @Test
+    public void matchesWildcards() {
+        assertTrue(RobotsRules.matches("/private", "/private/page"));
+        assertFalse(RobotsRules.matches("/private", "/public/private"));
+        assertTrue(RobotsRules.matches("/*.pdf", "/docs/report.pdf"));
+        assertTrue(RobotsRules.matches("/*.pdf", "/docs/report.pdf?download=1"));
+        assertTrue(RobotsRules.matches("/*/edit", "/pages/1/edit/history"));
+        assertFalse(RobotsRules.matches("/*/edit", "/pages/1/view"));
+        assertTrue(RobotsRules.matches("/*", "/"));
+    }
+    
+    @Test
+    public void matchesEndAnchor() {
+        assertTrue(RobotsRules.matches("/*.pdf$", "/docs/report.pdf"));
+        assertFalse(RobotsRules.matches("/*.pdf$", "/docs/report.pdf?download=1"));
+        assertTrue(RobotsRules.matches("/$", "/"));
+        assertFalse(RobotsRules.matches("/$", "/index.html"));
+        assertTrue(RobotsRules.matches("/page$", "/page"));
+        assertFalse(RobotsRules.matches("/page$", "/pages"));
+        // The anchored part cannot overlap the part before the wildcard
+        assertFalse(RobotsRules.matches("/ab*b$", "/ab"));
+    }
+    
+    @Test
+    public void longestMatchDecides() throws IOException {
+        final RobotsRules rules = parse("User-agent: *\n"
+                                        + "Disallow: /shop\n"
+                                        + "Allow: /shop/catalog\n"
+                                        + "Disallow: /shop/catalog/*.json$\n");
+        assertTrue(isAllowed(rules, "/"));
+        assertFalse(isAllowed(rules, "/shop/cart"));
+        assertTrue(isAllowed(rules, "/shop/catalog/shoes"));
+        assertFalse(isAllowed(rules, "/shop/catalog/shoes.json"));
+        assertTrue(isAllowed(rules, "/shop/catalog/shoes.json?page=2"));
+    }
+    
+    @Test
+    public void allowWinsTie() throws IOException {
+        final RobotsRules rules = parse("User-agent: *\n"
+                                        + "Disallow: /page\n"
+                                        + "Allow: /page\n"
+                                        + "Disallow: /*.php\n"
+                                        + "Allow: /a.php\n");
+        assertTrue(isAllowed(rules, "/page/1"));
+        assertTrue(isAllowed(rules, "/a.php"));
+        assertFalse(isAllowed(rules, "/b.php"));
+    }
+    
+    @Test
+    public void usesGroupOfAgent() throws IOException {
+        final String robots = "User-agent: *\n"
+                              + "Disallow: /\n"
+                              + "Crawl-delay: 5\n"
+                              + "\n"
+                              + "User-agent: OtherAgent\n"
+                              + "User-agent: testagent\n"
+                              + "Disallow: /private # comment\n"
+                              + "Disallow:\n"
+                              + "Crawl-delay: 0.5\n";
+        final RobotsRules rules = parse(robots);
+        assertTrue(isAllowed(rules, "/public"));
+        assertFalse(isAllowed(rules, "/private/1"));
+        assertEquals(500, rules.getCrawlDelay());
+        
+        final RobotsRules otherRules = RobotsRules.parse(new StringReader(robots), "ThirdAgent");
+        assertFalse(isAllowed(otherRules, "/public"));
+        assertEquals(5000, otherRules.getCrawlDelay());
+    }
+}
@@ -0,0 +1,137 @@
+package com.brainymachine.extraction.services;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+
+import javax.xml.xpath.XPathConstants;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.brainymachine.extraction.util.HtmlUtil;
+
+/**
+ * Matches of <tt>StreamingXPath</tt> compared with the evaluation of the same XPath
+ * by <tt>XPathEngine</tt> on the document of the same HTML
+ */
+public class StreamingXPathTest {
+    private final static String HTML = "<html><head><title>Test</title></head><body>"
+        + "<div id=\"a\"><a href=\"/1\">One</a><p>Intro</p></div>"
+        + "<div id=\"b\"><a href=\"/2\">Two</a><div id=\"c\"><span>Nested</span><a href=\"/3\">Three</a></div></div>"
+        + "<p>First</p><p>Second</p>"
+        + "<div id=\"d\"><a href=\"/4\">Four</a><a href=\"/5\">Five</a></div>"
+        + "</body></html>";
+    
+    private final XPathEngine engine = new XPathEngine(16, 16, 60000);
+    
+    /**
+     * Evaluates the XPath on the document of the HTML and collects the values of the nodes
+     * the way <tt>LocalExtract</tt> does
+     * @param xpath The XPath
+     * @param attribute The attribute of matching elements to collect (can be empty to collect their HTML)
+     * @return The values
+     */
+    private String[] evaluate(final String xpath, final String attribute) throws Exception {
+        final Document document = HtmlUtil.parse(new StringReader(HTML));
+        final NodeList nodes = (NodeList)engine.evaluate(xpath, document, XPathConstants.NODESET);
+        final ArrayList<String> values = new ArrayList<String>();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            final Node node = nodes.item(i);
+            if (node.getNodeType() != Node.ELEMENT_NODE)
+                values.add(node.getTextContent());
+            else if (attribute.length() == 0)
+                values.add(HtmlUtil.toHtml(node));
+            else if (((Element)node).hasAttribute(attribute))
+                values.add(((Element)node).getAttribute(attribute));
+        }
+        return values.toArray(new String[values.size()]);
+    }
+    
+    /**
+     * Matches the XPath on the stream of the HTML
+     * @param xpath The XPath
+     * @param attribute The attribute of matching elements to collect (can be empty to collect their HTML)
+     * @param maxResults The number of values after which the matcher is done, or 0 for all values
+     * @return The values
+     */
+    private static String[] stream(final String xpath, final String attribute, final int maxResults) throws Exception {
+        final StreamingXPath.Matcher matcher = StreamingXPath.compile(xpath).createMatcher(attribute, maxResults);
+        HtmlUtil.parse(new StringReader(HTML), matcher);
+        return matcher.getResults();
+    }
+    
+    /**
+     * Asserts that streaming the XPath finds the same values as evaluating it on the document
+     * @param xpath The XPath
+     * @param attribute The attribute of matching elements to collect (can be empty to collect their HTML)
+     * @param count The expected number of values
+     */
+    private void assertSameResults(final String xpath, final String attribute, final int count) throws Exception {
+        final String[] expected = evaluate(xpath, attribute);
+        assertEquals(xpath, count, expected.length);
+        assertArrayEquals(xpath, expected, stream(xpath, attribute, 0));
+    }
+    
+    @Test
+    public void matchesPositionedSteps() throws Exception {
+        assertSameResults("//div[2]/a", "", 1);
+        assertSameResults("//div[2]/a", "href", 1);
+        assertSameResults("/html/body/div[3]/a[2]", "", 1);
+    }
+    
+    @Test
+    public void matchesTextAndAttributes() throws Exception {
+        assertSameResults("/html/body/p/text()", "", 2);
+        assertSameResults("//a/@href", "", 5);
+        assertSameResults("//div/a/text()", "", 5);
+    }
+    
+    @Test
+    public void matchesNestedElements() throws Exception {
+        // The element matched in div#b contains the one matched in div#c
+        assertSameResults("//div/*[2]", "", 4);
+        assertSameResults("//div//a", "", 5);
+        assertSameResults("//div", "id", 4);
+    }
+    
+    @Test
+    public void stopsAtMaxElements() throws Exception {
+        final StreamingXPath.Matcher matcher = StreamingXPath.compile("//a/@href").createMatcher("", 2);
+        assertTrue(HtmlUtil.parse(new StringReader(HTML), matcher));
+        assertTrue(matcher.isDone());
+        final String[] all = evaluate("//a/@href", "");
+        assertArrayEquals(new String[] { all[0], all[1] }, matcher.getResults());
+        
+        // A path of positioned child steps matches a single element and is done at its end
+        final StreamingXPath.Matcher single = StreamingXPath.compile("/html[1]/body[1]/div[1]").createMatcher("", 0);
+        assertTrue(HtmlUtil.parse(new StringReader(HTML), single));
+        assertArrayEquals(evaluate("/html[1]/body[1]/div[1]", ""), single.getResults());
+        
+        final StreamingXPath.Matcher unbounded = StreamingXPath.compile("//a").createMatcher("href", 0);
+        assertFalse(HtmlUtil.parse(new StringReader(HTML), unbounded));
+    }
+    
+    @Test
+    public void rejectsXPathsOutsideSubset() {
+        assertNull(StreamingXPath.compile("//@x"));
+        assertNull(StreamingXPath.compile("//div[last()]"));
+        assertNull(StreamingXPath.compile("//div/"));
+        assertNull(StreamingXPath.compile("//div[0]"));
+        assertNull(StreamingXPath.compile("//text()"));
+        assertNull(StreamingXPath.compile("//a/@href/text()"));
+        assertNull(StreamingXPath.compile("count(//a)"));
+        assertNull(StreamingXPath.compile("div/a"));
+        assertNotNull(StreamingXPath.compile("//div[2]/a"));
+        assertNotNull(StreamingXPath.compile("/html/body/*[1]/@id"));
+    }
+}
@@ -0,0 +1,97 @@
+package com.brainymachine.extraction.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embedded HTTP server on the loopback interface that answers test requests,
+ * so services and fetchers can be tested without network access
+ */
+public class StubHttpServer {
+    private final static Charset UTF8 = Charset.forName("UTF-8");
+    
+    private final HttpServer server;
+    private final ExecutorService executor;
+    
+    /**
+     * Creates and starts a new <tt>StubHttpServer</tt> on a free port
+     * @throws IOException if the server cannot be started
+     */
+    public StubHttpServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0), 0);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+    }
+    
+    /**
+     * Gets the URL of the path on this server
+     * @param path The path, starting with a slash
+     * @return The URL
+     */
+    public String getUrl(final String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+    
+    /**
+     * Answers the requests of the path and the paths below it with the handler
+     * @param path The path
+     * @param handler The handler
+     */
+    public void handle(final String path, final HttpHandler handler) {
+        server.createContext(path, handler);
+    }
+    
+    /**
+     * Stops the server
+     */
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+    
+    /**
+     * Reads the body of the request
+     * @param exchange The exchange
+     * @return The body
+     * @throws IOException if the body cannot be read
+     */
+    public static String readBody(final HttpExchange exchange) throws IOException {
+        final InputStream input = exchange.getRequestBody();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        for (int read = input.read(buffer); read >= 0; read = input.read(buffer))
+            body.write(buffer, 0, read);
+        input.close();
+        return new String(body.toByteArray(), UTF8);
+    }
+    
+    /**
+     * Sends a response and ends the exchange
+     * @param exchange The exchange
+     * @param statusCode The status code
+     * @param contentType The content type
+     * @param body The body
+     * @throws IOException if the response cannot be sent
+     */
+    public static void respond(final HttpExchange exchange, final int statusCode, final String contentType,
+                               final String body) throws IOException {
+        final byte[] bytes = body.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(statusCode, bytes.length == 0 ? -1 : bytes.length);
+        final OutputStream output = exchange.getResponseBody();
+        output.write(bytes);
+        output.close();
+    }
+}